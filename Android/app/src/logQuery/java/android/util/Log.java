@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package android.util;
+
+/**
+ * The part of android.util.Log used by the decoder, for running the log tools on the JVM.
+ * Warnings and errors go to stderr, the output of the tools is not affected.
+ */
+public final class Log {
+    private Log() { }
+
+    public static int d(String tag, String msg) { return 0; }
+
+    public static int i(String tag, String msg) { return 0; }
+
+    public static int w(String tag, String msg) { return print(tag, msg); }
+
+    public static int e(String tag, String msg) { return print(tag, msg); }
+
+    private static int print(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+}
@@ -15,12 +15,15 @@ import androidx.lifecycle.ViewModelProvider;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import androidx.annotation.Nullable;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,11 +34,13 @@ import androidx.viewpager2.widget.ViewPager2;
 import android.content.pm.PackageManager;
 import android.widget.LinearLayout;
 
+import com.microsoft.maps.GeoboundingBox;
 import com.microsoft.maps.Geopath;
 import com.microsoft.maps.Geopoint;
 import com.microsoft.maps.Geoposition;
 import com.microsoft.maps.MapAnimationKind;
 import com.microsoft.maps.MapCamera;
+import com.microsoft.maps.MapCameraChangedEventArgs;
 import com.microsoft.maps.MapElement;
 import com.microsoft.maps.MapElementLayer;
 import com.microsoft.maps.MapElementTappedEventArgs;
@@ -49,27 +54,86 @@ import com.microsoft.maps.MapStyleSheet;
 import com.microsoft.maps.MapStyleSheets;
 import com.microsoft.maps.MapTappedEventArgs;
 import com.microsoft.maps.MapView;
+import com.microsoft.maps.OnMapCameraChangedListener;
 import com.microsoft.maps.OnMapElementTappedListener;
 
 import org.opendroneid.android.BuildConfig;
 import org.opendroneid.android.R;
 import org.opendroneid.android.data.AircraftObject;
 import org.opendroneid.android.data.LocationData;
+import org.opendroneid.android.data.PositionIndex;
 import org.opendroneid.android.data.SystemData;
+import org.opendroneid.android.data.Trail;
 import org.opendroneid.android.data.Util;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class AircraftMapView extends Fragment {
     private static final String TAG = "AircraftMapView";
     private MapView mapView;
     private MapElementLayer pinLayer;
+    // Shown instead of the pin layer below CLUSTER_ZOOM
+    private MapElementLayer clusterLayer;
     private MapImage markerImage;
     private MapImage markerPilotImage;
     private AircraftViewModel model;
 
     private final HashMap<AircraftObject, MapObserver> aircraftObservers = new HashMap<>();
+    private MapObserver selected;
+
+    // Only the aircraft inside the viewport, widened by this fraction of its size on each side,
+    // are observed and drawn. The others are looked at again on camera changes and periodically
+    private static final double VIEWPORT_MARGIN = 0.25;
+    private static final long VIEWPORT_SCAN_MILLIS = 1000;
+    private boolean viewportDirty;
+    private long lastViewportScan;
+    // The aircraft observed and drawn, and those found in the viewport by the last scan
+    private final Set<MapObserver> attachedObservers = new HashSet<>();
+    private final Set<MapObserver> visibleObservers = new HashSet<>();
+    private final List<AircraftObject> foundAircraft = new ArrayList<>();
+    private final List<MapObserver> leftObservers = new ArrayList<>();
+    // Set once the map has been centered on the first aircraft with a location
+    private boolean centered;
+
+    // Below this zoom level nearby aircraft are drawn as one badge showing their count
+    private static final int CLUSTER_ZOOM = 14;
+    private static final int MAX_BADGE_COUNT = 99;
+
+    // Vertex cap of the trails of all aircraft together
+    private static final int TRAIL_VERTEX_BUDGET = 20000;
+
+    // Aircraft whose markers need to be moved at the next frame
+    private final Set<MapObserver> pendingMoves = new HashSet<>();
+    private boolean frameScheduled;
+    private boolean clustered;
+    private boolean clustersDirty;
+    // Zoom level the clusters were computed for
+    private int clusterZoom = -1;
+    private final HashMap<Long, Cluster> clusters = new HashMap<>();
+    private final SparseArray<MapImage> badgeImages = new SparseArray<>();
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            applyUpdates();
+        }
+    };
+
+    /** Aircraft in one grid cell, drawn as a single badge */
+    private static class Cluster {
+        MapIcon icon;
+        int count;
+        int shownCount;
+        double latitudeSum;
+        double longitudeSum;
+    }
 
     private final Util.DiffObserver<AircraftObject> allAircraftObserver = new Util.DiffObserver<AircraftObject>() {
         @Override
@@ -90,12 +154,195 @@ public class AircraftMapView extends Fragment {
     private void trackAircraft(AircraftObject aircraftObject) {
         MapObserver observer = new MapObserver(aircraftObject);
         aircraftObservers.put(aircraftObject, observer);
+        updateTrailCaps();
+        viewportDirty = true;
+        scheduleUpdate();
+    }
+
+    /** Shares the global vertex budget between the trails of the tracked aircraft */
+    private void updateTrailCaps() {
+        int cap = Math.min(AircraftObject.MAX_TRAIL_VERTICES, TRAIL_VERTEX_BUDGET / Math.max(1, aircraftObservers.size()));
+        for (MapObserver observer : aircraftObservers.values())
+            observer.setTrailCap(cap);
     }
 
     private void stopTrackingAircraft(AircraftObject aircraftObject) {
         MapObserver observer = aircraftObservers.remove(aircraftObject);
         if (observer == null) return;
-        observer.stop();
+        observer.detach();
+        pendingMoves.remove(observer);
+        visibleObservers.remove(observer);
+        if (selected == observer)
+            selected = null;
+        updateTrailCaps();
+        clustersDirty = true;
+        scheduleUpdate();
+    }
+
+    /** Applies the collected changes at the next frame, however many arrive before it */
+    private void scheduleUpdate() {
+        if (frameScheduled)
+            return;
+        frameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void applyUpdates() {
+        if (mapView == null)
+            return;
+        if (viewportDirty)
+            updateViewport();
+        int zoom = (int) mapView.getZoomLevel();
+        boolean cluster = zoom < CLUSTER_ZOOM;
+        if (cluster != clustered) {
+            clustered = cluster;
+            pinLayer.setVisible(!cluster);
+            clusterLayer.setVisible(cluster);
+            if (cluster) {
+                clustersDirty = true;
+            } else {
+                pendingMoves.addAll(attachedObservers);
+            }
+        }
+
+        // The hidden markers are moved when the pin layer is shown again
+        if (!clustered) {
+            for (MapObserver observer : pendingMoves)
+                observer.moveMarkers();
+        } else if (!pendingMoves.isEmpty()) {
+            clustersDirty = true;
+        }
+        pendingMoves.clear();
+
+        if (clustered && (clustersDirty || zoom != clusterZoom))
+            updateClusters(zoom);
+    }
+
+    /**
+     * Observes the aircraft that are inside the viewport plus the margin, and stops observing and
+     * drawing the ones that left it. The selected aircraft is always observed.
+     */
+    private void updateViewport() {
+        viewportDirty = false;
+        lastViewportScan = System.currentTimeMillis();
+        GeoboundingBox bounds = mapView.getBounds();
+        if (bounds == null)
+            return;
+        double latitudeMargin = (bounds.getNorth() - bounds.getSouth()) * VIEWPORT_MARGIN;
+        double north = bounds.getNorth() + latitudeMargin;
+        double south = bounds.getSouth() - latitudeMargin;
+        double width = bounds.getEast() - bounds.getWest();
+        if (width < 0)
+            width += 360;
+        double west = bounds.getWest() - width * VIEWPORT_MARGIN;
+        double east = bounds.getEast() + width * VIEWPORT_MARGIN;
+        boolean allLongitudes = width * (1 + 2 * VIEWPORT_MARGIN) >= 360;
+        // Bring the widened longitudes back into -180..180. West may then be east of east,
+        // when the viewport crosses the antimeridian
+        if (west < -180)
+            west += 360;
+        if (east > 180)
+            east -= 360;
+
+        // The data manager keeps the positions of all aircraft indexed by grid cell, so only the
+        // aircraft in the cells of the viewport are looked at
+        visibleObservers.clear();
+        if (selected != null)
+            visibleObservers.add(selected);
+        PositionIndex index = model.getPositionIndex();
+        if (index != null) {
+            foundAircraft.clear();
+            index.find(south, north, west, east, allLongitudes, foundAircraft);
+            for (AircraftObject aircraft : foundAircraft) {
+                MapObserver observer = aircraftObservers.get(aircraft);
+                if (observer != null)
+                    visibleObservers.add(observer);
+            }
+        }
+
+        leftObservers.clear();
+        for (MapObserver observer : attachedObservers)
+            if (!visibleObservers.contains(observer))
+                leftObservers.add(observer);
+        for (MapObserver observer : leftObservers) {
+            observer.detach();
+            pendingMoves.remove(observer);
+            clustersDirty = true;
+        }
+        for (MapObserver observer : visibleObservers) {
+            if (!observer.attached) {
+                observer.attach();
+                clustersDirty = true;
+            }
+        }
+
+        if (!centered) {
+            for (MapObserver observer : aircraftObservers.values()) {
+                LocationData loc = observer.aircraft.getLocation();
+                if (loc != null && (loc.getLatitude() != 0.0 || loc.getLongitude() != 0.0)) {
+                    centered = true;
+                    mapView.setScene(MapScene.createFromLocation(
+                            new Geopoint(loc.getLatitude(), loc.getLongitude())), MapAnimationKind.NONE);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Groups the aircraft by grid cell in Web Mercator pixels at the zoom level, so that the
+     * clusters stay put while panning. Cluster icons are reused while their cell is occupied.
+     */
+    private void updateClusters(int zoom) {
+        clustersDirty = false;
+        clusterZoom = zoom;
+        double cells = PositionIndex.cellsAt(zoom);
+        for (Cluster cluster : clusters.values()) {
+            cluster.count = 0;
+            cluster.latitudeSum = 0;
+            cluster.longitudeSum = 0;
+        }
+        for (MapObserver observer : attachedObservers) {
+            LocationData loc = observer.aircraft.getLocation();
+            if (loc == null || (loc.getLatitude() == 0.0 && loc.getLongitude() == 0.0))
+                continue;
+            long key = PositionIndex.cellKey(PositionIndex.cellX(loc.getLongitude(), cells),
+                                             PositionIndex.cellY(loc.getLatitude(), cells));
+            Cluster cluster = clusters.get(key);
+            if (cluster == null) {
+                cluster = new Cluster();
+                clusters.put(key, cluster);
+            }
+            cluster.count++;
+            cluster.latitudeSum += loc.getLatitude();
+            cluster.longitudeSum += loc.getLongitude();
+        }
+
+        Iterator<Cluster> it = clusters.values().iterator();
+        while (it.hasNext()) {
+            Cluster cluster = it.next();
+            if (cluster.count == 0) {
+                if (cluster.icon != null)
+                    clusterLayer.getElements().remove(cluster.icon);
+                it.remove();
+                continue;
+            }
+            Geopoint location = new Geopoint(cluster.latitudeSum / cluster.count,
+                    cluster.longitudeSum / cluster.count);
+            if (cluster.icon == null) {
+                cluster.icon = new MapIcon();
+                cluster.icon.setNormalizedAnchorPoint(new PointF(0.5f, 0.5f));
+                cluster.icon.setTag(cluster);
+                cluster.icon.setLocation(location);
+                clusterLayer.getElements().add(cluster.icon);
+            } else {
+                cluster.icon.setLocation(location);
+            }
+            if (cluster.count != cluster.shownCount) {
+                cluster.icon.setImage(getBadgeImage(cluster.count));
+                cluster.shownCount = cluster.count;
+            }
+        }
     }
 
     private static final int DESIRED_ZOOM = 17;
@@ -107,9 +354,13 @@ public class AircraftMapView extends Fragment {
 
         model = new ViewModelProvider(getActivity()).get(AircraftViewModel.class);
         model.getAllAircraft().observe(getViewLifecycleOwner(), allAircraftObserver);
+        model.getClock().observe(getViewLifecycleOwner(), now -> {
+            if (now != null && now - lastViewportScan >= VIEWPORT_SCAN_MILLIS) {
+                viewportDirty = true;
+                scheduleUpdate();
+            }
+        });
         model.getActiveAircraft().observe(getViewLifecycleOwner(), new Observer<AircraftObject>() {
-            MapObserver last = null;
-
             @Override
             public void onChanged(@Nullable AircraftObject object) {
                 if (object == null || object.getLocation() == null)
@@ -124,17 +375,17 @@ public class AircraftMapView extends Fragment {
                 Geopoint ll = new Geopoint(object.getLocation().getLatitude(), object.getLocation().getLongitude());
                 Log.i(TAG, "centering on " + object + " at " + ll);
 
-                if (last != null && last.marker != null) {
-                    last.marker.setOpacity(0.5f);
-                    if (last.markerPilot != null)
-                        last.markerPilot.setOpacity(0.5f);
+                if (selected != null && selected.marker != null) {
+                    selected.marker.setOpacity(0.5f);
+                    if (selected.markerPilot != null)
+                        selected.markerPilot.setOpacity(0.5f);
                 }
                 if (observer.marker != null)
                     observer.marker.setOpacity(1.0f);
                 if (observer.markerPilot != null)
                     observer.markerPilot.setOpacity(1.0f);
 
-                last = observer;
+                selected = observer;
 
                 double zoom = mapView.getZoomLevel();
                 if (zoom < DESIRED_ZOOM - ALLOWED_ZOOM_MARGIN || zoom > DESIRED_ZOOM + ALLOWED_ZOOM_MARGIN)
@@ -149,21 +400,43 @@ public class AircraftMapView extends Fragment {
     class MapObserver implements Observer<LocationData> {
         private MapIcon marker;
         private MapIcon markerPilot;
-        //private Polyline polyline;
-        //private PolylineOptions polylineOptions;
+        private MapPolyline trailLine;
+        // The trail is kept by the data manager for every aircraft, this is the version drawn
+        private int drawnTrailVersion;
 
         private final AircraftObject aircraft;
+        // Whether the aircraft is observed and drawn, while it is in or near the viewport
+        boolean attached;
 
         MapObserver(AircraftObject active) {
             aircraft = active;
+        }
+
+        void attach() {
+            attached = true;
+            attachedObservers.add(this);
+            // The trail line was removed when detached
+            drawnTrailVersion = aircraft.getTrail().getVersion() - 1;
             aircraft.location.observe(AircraftMapView.this, this);
             aircraft.system.observe(AircraftMapView.this, systemObserver);
-            //polylineOptions = new PolylineOptions()
-            //        .color(Color.RED)
-            //        .clickable(true);
+            pendingMoves.add(this);
+        }
+
+        void setTrailCap(int cap) {
+            Trail trail = aircraft.getTrail();
+            if (cap == trail.getMaxVertices())
+                return;
+            int version = trail.getVersion();
+            trail.setMaxVertices(cap);
+            if (trail.getVersion() != version && attached) {
+                pendingMoves.add(this);
+                scheduleUpdate();
+            }
         }
 
-        void stop() {
+        void detach() {
+            attached = false;
+            attachedObservers.remove(this);
             aircraft.location.removeObserver(this);
             aircraft.system.removeObserver(systemObserver);
             if (marker != null) {
@@ -174,24 +447,74 @@ public class AircraftMapView extends Fragment {
                 pinLayer.getElements().remove(markerPilot);
                 markerPilot = null;
             }
-            //if (polyline != null) {
-            //    polyline.remove();
-            //   polyline = null;
-            //}
-            //polylineOptions = null;
+            if (trailLine != null) {
+                pinLayer.getElements().remove(trailLine);
+                trailLine = null;
+            }
         }
 
         private final Observer<SystemData> systemObserver = new Observer<SystemData>() {
             @Override
             public void onChanged(@Nullable SystemData ignore) {
-                SystemData sys = aircraft.getSystem();
-                if (sys == null)
-                    return;
+                pendingMoves.add(MapObserver.this);
+                scheduleUpdate();
+            }
+        };
 
-                // filter out zero data
-                if (sys.getOperatorLatitude() == 0.0 && sys.getOperatorLongitude() == 0.0)
-                    return;
+        @Override
+        public void onChanged(@Nullable LocationData ignore) {
+            // The data manager has already added the fix to the trail
+            pendingMoves.add(this);
+            scheduleUpdate();
+        }
+
+        private float getOpacity() {
+            return selected == this ? 1.0f : 0.5f;
+        }
 
+        /** Moves the markers to the latest locations, creating them at the first valid one */
+        void moveMarkers() {
+            if (!attached)
+                return;
+            LocationData loc = aircraft.getLocation();
+            // filter out zero data
+            if (loc != null && (loc.getLatitude() != 0.0 || loc.getLongitude() != 0.0)) {
+                Geopoint latLng = new Geopoint(loc.getLatitude(), loc.getLongitude());
+                if (marker == null) {
+                    String id = "ID missing";
+                    if (aircraft.getIdentification1() != null)
+                        id = aircraft.getIdentification1().getUasIdAsString();
+                    marker = new MapIcon();
+                    marker.setTitle("aircraft " + id);
+                    marker.setOpacity(getOpacity());
+                    marker.setImage(markerImage);
+                    marker.setNormalizedAnchorPoint(new PointF(0.5f, 1f));
+                    marker.setLocation(latLng);
+                    marker.setTag(aircraft);
+                    pinLayer.getElements().add(marker);
+                } else
+                    marker.setLocation(latLng);
+            }
+
+            Trail trail = aircraft.getTrail();
+            if (trail.getVersion() != drawnTrailVersion && trail.size() >= 2) {
+                List<Geoposition> positions = new ArrayList<>(trail.size());
+                for (int i = 0; i < trail.size(); i++)
+                    positions.add(new Geoposition(trail.getLatitude(i), trail.getLongitude(i)));
+                if (trailLine == null) {
+                    trailLine = new MapPolyline();
+                    trailLine.setStrokeColor(Color.RED);
+                    trailLine.setStrokeWidth(2);
+                    trailLine.setPath(new Geopath(positions));
+                    pinLayer.getElements().add(trailLine);
+                } else
+                    trailLine.setPath(new Geopath(positions));
+                drawnTrailVersion = trail.getVersion();
+            }
+
+            SystemData sys = aircraft.getSystem();
+            // filter out zero data
+            if (sys != null && (sys.getOperatorLatitude() != 0.0 || sys.getOperatorLongitude() != 0.0)) {
                 Geopoint latLng = new Geopoint(sys.getOperatorLatitude(), sys.getOperatorLongitude());
                 if (markerPilot == null) {
                     String id = "ID missing";
@@ -199,59 +522,18 @@ public class AircraftMapView extends Fragment {
                         id = aircraft.getIdentification1().getUasIdAsString();
                     markerPilot = new MapIcon();
                     markerPilot.setTitle(sys.getOperatorLocationType().toString() + ": " + id);
-                    markerPilot.setOpacity(0.5f);
+                    markerPilot.setOpacity(getOpacity());
                     if (markerPilotImage != null) {
                         markerPilot.setImage(markerPilotImage);
                         markerPilot.setNormalizedAnchorPoint(new PointF(0.5f, 1f));
                     }
                     markerPilot.setLocation(latLng);
-                    markerPilot.setTag(new Pair<>(aircraft, this));
+                    markerPilot.setTag(new Pair<>(aircraft, systemObserver));
                     pinLayer.getElements().add(markerPilot);
                 } else {
                     markerPilot.setLocation(latLng);
                 }
             }
-        };
-
-        @Override
-        public void onChanged(@Nullable LocationData ignore) {
-            boolean zoom = false;
-            LocationData loc = aircraft.getLocation();
-            if (loc == null)
-                return;
-
-            // filter out zero data
-            if (loc.getLatitude() == 0.0 && loc.getLongitude() == 0.0)
-                return;
-
-            Geopoint latLng = new Geopoint(loc.getLatitude(), loc.getLongitude());
-            if (marker == null) {
-                String id = "ID missing";
-                if (aircraft.getIdentification1() != null)
-                    id = aircraft.getIdentification1().getUasIdAsString();
-                marker = new MapIcon();
-                marker.setTitle("aircraft " + id);
-                marker.setOpacity(0.5f);
-                marker.setImage(markerImage);
-                marker.setNormalizedAnchorPoint(new PointF(0.5f, 1f));
-                marker.setLocation(latLng);
-                marker.setTag(aircraft);
-                pinLayer.getElements().add(marker);
-
-                zoom = true;
-            } else
-                marker.setLocation(latLng);
-
-            //polylineOptions.add(latLng);
-            //if (polyline != null) {
-            //    polyline.remove();
-            //    polyline = null;
-            //}
-            //polyline = googleMap.addPolyline(polylineOptions);
-
-            if (zoom) {
-                mapView.setScene(MapScene.createFromLocation(latLng), MapAnimationKind.NONE);
-            }
         }
     }
 
@@ -277,6 +559,31 @@ public class AircraftMapView extends Fragment {
             }
         });
         mapView.getLayers().add(pinLayer);
+        clusterLayer = new MapElementLayer();
+        clusterLayer.setVisible(false);
+        clusterLayer.addOnMapElementTappedListener(new OnMapElementTappedListener() {
+            @Override
+            public boolean onMapElementTapped(MapElementTappedEventArgs mapElementTappedEventArgs) {
+                // Zoom in far enough to show the aircraft of the cluster
+                for (MapElement element : mapElementTappedEventArgs.mapElements) {
+                    if (element.getTag() instanceof Cluster) {
+                        mapView.setScene(MapScene.createFromLocationAndZoomLevel(
+                                ((MapIcon) element).getLocation(), CLUSTER_ZOOM), MapAnimationKind.NONE);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        mapView.getLayers().add(clusterLayer);
+        mapView.addOnMapCameraChangedListener(new OnMapCameraChangedListener() {
+            @Override
+            public boolean onMapCameraChanged(MapCameraChangedEventArgs mapCameraChangedEventArgs) {
+                viewportDirty = true;
+                scheduleUpdate();
+                return false;
+            }
+        });
         markerImage = getPinImage();
         return parent;
     }
@@ -291,6 +598,7 @@ public class AircraftMapView extends Fragment {
     public void onStart() {
         super.onStart();
         mapView.onStart();
+        scheduleUpdate();
     }
 
     @Override
@@ -314,6 +622,8 @@ public class AircraftMapView extends Fragment {
     @Override
     public void onStop() {
         super.onStop();
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        frameScheduled = false;
         mapView.onStop();
     }
 
@@ -366,4 +676,28 @@ public class AircraftMapView extends Fragment {
 
         return new MapImage(bitmap);
     }
+
+    private MapImage getBadgeImage(int count) {
+        int shown = Math.min(count, MAX_BADGE_COUNT + 1);
+        MapImage image = badgeImages.get(shown);
+        if (image != null)
+            return image;
+
+        float density = getResources().getDisplayMetrics().density;
+        int size = (int) (36 * density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.RED);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(14 * density);
+        paint.setTextAlign(Paint.Align.CENTER);
+        String text = shown > MAX_BADGE_COUNT ? MAX_BADGE_COUNT + "+" : String.format(Locale.US, "%d", shown);
+        canvas.drawText(text, size / 2f, size / 2f - (paint.descent() + paint.ascent()) / 2, paint);
+
+        image = new MapImage(bitmap);
+        badgeImages.put(shown, image);
+        return image;
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.app;
+
+import org.opendroneid.android.data.AircraftObject;
+import org.opendroneid.android.data.Connection;
+import org.opendroneid.android.data.LocationData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The order of the aircraft list by a selectable key. Each aircraft keeps the key it was last
+ * placed by, and is only moved when its current key is far enough from that one, so small changes
+ * of distance or signal do not shuffle the rows. Equal keys are kept in the order of arrival.
+ * Every change is reported as the insert, remove or move of one position.
+ */
+class AircraftOrder {
+    enum Key { ARRIVAL, DISTANCE, RSSI, LAST_SEEN }
+
+    interface Listener {
+        void onMoved(int from, int to);
+    }
+
+    // How far a key must change before the aircraft is placed again
+    private static final double DISTANCE_MIN_CHANGE_METERS = 10;
+    private static final double DISTANCE_MIN_CHANGE_RATIO = 0.1;
+    private static final double RSSI_MIN_CHANGE = 4;
+    private static final double LAST_SEEN_MIN_CHANGE_MILLIS = 5000;
+
+    private static class Entry {
+        final AircraftObject aircraft;
+        final long sequence;
+        // Sorted ascending, unknown values are positive infinity and go last
+        double key;
+
+        Entry(AircraftObject aircraft, long sequence) {
+            this.aircraft = aircraft;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Entry> COMPARATOR = (a, b) -> {
+        int result = Double.compare(a.key, b.key);
+        return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+    };
+
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final HashMap<AircraftObject, Entry> byAircraft = new HashMap<>();
+    private long nextSequence;
+    private Key key = Key.ARRIVAL;
+
+    Key getKey() { return key; }
+
+    int size() { return entries.size(); }
+
+    boolean contains(AircraftObject aircraft) { return byAircraft.containsKey(aircraft); }
+
+    /** Inserts the aircraft at the place of its key and returns that position */
+    int add(AircraftObject aircraft) {
+        if (byAircraft.containsKey(aircraft))
+            return -1;
+        Entry entry = new Entry(aircraft, nextSequence++);
+        entry.key = currentKey(aircraft);
+        int position = insertionPoint(entry);
+        entries.add(position, entry);
+        byAircraft.put(aircraft, entry);
+        return position;
+    }
+
+    /** Removes the aircraft and returns the position it had, or -1 if it was not listed */
+    int remove(AircraftObject aircraft) {
+        Entry entry = byAircraft.remove(aircraft);
+        if (entry == null)
+            return -1;
+        int position = Collections.binarySearch(entries, entry, COMPARATOR);
+        entries.remove(position);
+        return position;
+    }
+
+    void clear() {
+        entries.clear();
+        byAircraft.clear();
+    }
+
+    List<AircraftObject> getAircraft() {
+        List<AircraftObject> list = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+            list.add(entry.aircraft);
+        return list;
+    }
+
+    /**
+     * Places every aircraft whose key changed by more than the minimum change again. The list
+     * stays sorted by the placed keys between the moves, so each one is a binary search.
+     */
+    void update(Listener listener) {
+        if (key == Key.ARRIVAL)
+            return;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            double current = currentKey(entry.aircraft);
+            if (!changed(entry.key, current))
+                continue;
+            entries.remove(i);
+            entry.key = current;
+            int to = insertionPoint(entry);
+            entries.add(to, entry);
+            if (to != i) {
+                listener.onMoved(i, to);
+                // The entry after this one moved up into its place
+                if (to > i)
+                    i--;
+            }
+        }
+    }
+
+    /** Changes the key, moving the aircraft one by one to their places in the new order */
+    void setKey(Key key, Listener listener) {
+        if (key == this.key)
+            return;
+        this.key = key;
+        for (Entry entry : entries)
+            entry.key = currentKey(entry.aircraft);
+        ArrayList<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, COMPARATOR);
+        for (int to = 0; to < sorted.size(); to++) {
+            Entry entry = sorted.get(to);
+            int from = entries.indexOf(entry);
+            if (from == to)
+                continue;
+            entries.remove(from);
+            entries.add(to, entry);
+            listener.onMoved(from, to);
+        }
+    }
+
+    private int insertionPoint(Entry entry) {
+        // The sequence is unique, so the entry is never found
+        return -Collections.binarySearch(entries, entry, COMPARATOR) - 1;
+    }
+
+    private double currentKey(AircraftObject aircraft) {
+        switch (key) {
+            case DISTANCE: {
+                // The distance is zero until the location of the receiver is known
+                LocationData location = aircraft.getLocation();
+                if (location == null || location.getDistance() <= 0)
+                    return Double.POSITIVE_INFINITY;
+                return location.getDistance();
+            }
+            case RSSI: {
+                Connection connection = aircraft.getConnection();
+                return connection != null ? -connection.rssi : Double.POSITIVE_INFINITY;
+            }
+            case LAST_SEEN: {
+                Connection connection = aircraft.getConnection();
+                return connection != null ? -connection.lastSeen : Double.POSITIVE_INFINITY;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    private boolean changed(double placed, double current) {
+        if (Double.isInfinite(placed) || Double.isInfinite(current))
+            return placed != current;
+        double difference = Math.abs(current - placed);
+        switch (key) {
+            case DISTANCE:
+                return difference > Math.max(DISTANCE_MIN_CHANGE_METERS,
+                        DISTANCE_MIN_CHANGE_RATIO * Math.min(placed, current));
+            case RSSI:
+                return difference >= RSSI_MIN_CHANGE;
+            case LAST_SEEN:
+                return difference >= LAST_SEEN_MIN_CHANGE_MILLIS;
+            default:
+                return false;
+        }
+    }
+}
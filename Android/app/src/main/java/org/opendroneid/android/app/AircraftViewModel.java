@@ -11,6 +11,8 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 import org.opendroneid.android.data.AircraftObject;
+import org.opendroneid.android.data.PositionIndex;
+import org.opendroneid.android.data.SearchIndex;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -19,6 +21,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AircraftViewModel extends ViewModel {
     private final MutableLiveData<Set<AircraftObject>> aircraft = new MutableLiveData<>();
     private final MutableLiveData<AircraftObject> selected = new MutableLiveData<>();
+    private final MutableLiveData<AircraftOrder.Key> listOrder = new MutableLiveData<>();
+    private final MutableLiveData<String> searchQuery = new MutableLiveData<>();
+    private final UiClock clock = new UiClock();
+    private SearchIndex searchIndex;
+    private PositionIndex positionIndex;
 
     public AircraftViewModel() {
         Set<AircraftObject> list = new HashSet<>();
@@ -41,4 +48,40 @@ public class AircraftViewModel extends ViewModel {
         return aircraft;
     }
 
+    void setListOrder(AircraftOrder.Key key) {
+        listOrder.setValue(key);
+    }
+
+    LiveData<AircraftOrder.Key> getListOrder() {
+        return listOrder;
+    }
+
+    void setSearchQuery(String query) {
+        searchQuery.setValue(query);
+    }
+
+    LiveData<String> getSearchQuery() {
+        return searchQuery;
+    }
+
+    void setSearchIndex(SearchIndex index) {
+        searchIndex = index;
+    }
+
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    void setPositionIndex(PositionIndex index) {
+        positionIndex = index;
+    }
+
+    PositionIndex getPositionIndex() {
+        return positionIndex;
+    }
+
+    LiveData<Long> getClock() {
+        return clock;
+    }
+
 }
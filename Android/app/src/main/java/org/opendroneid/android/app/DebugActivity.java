@@ -28,6 +28,7 @@ import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.FragmentTransaction;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 
 import android.os.Environment;
 import android.os.Handler;
@@ -42,19 +43,30 @@ import android.widget.Toast;
 import org.opendroneid.android.Constants;
 import org.opendroneid.android.PermissionUtils;
 import org.opendroneid.android.R;
+import org.opendroneid.android.log.BinaryLogFormat;
+import org.opendroneid.android.log.ColumnarLog;
+import org.opendroneid.android.log.LogBenchmark;
+import org.opendroneid.android.log.LogReplay;
+import org.opendroneid.android.log.LogRotation;
 import org.opendroneid.android.log.LogWriter;
+import org.opendroneid.android.log.TrackStore;
 import org.opendroneid.android.bluetooth.BluetoothScanner;
+import org.opendroneid.android.bluetooth.FramePipeline;
 import org.opendroneid.android.bluetooth.WiFiNaNScanner;
 import org.opendroneid.android.bluetooth.WiFiBeaconScanner;
 import org.opendroneid.android.bluetooth.OpenDroneIdDataManager;
+import org.opendroneid.android.bluetooth.SwarmSimulator;
 import org.opendroneid.android.data.AircraftObject;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DebugActivity extends AppCompatActivity {
     LocationManager locationManager;
@@ -64,18 +76,35 @@ public class DebugActivity extends AppCompatActivity {
 
     private AircraftViewModel mModel;
     OpenDroneIdDataManager dataManager;
+    FramePipeline framePipeline;
+    SwarmSimulator swarmSimulator;
+    LogReplay logReplay;
 
     private static final String TAG = DebugActivity.class.getSimpleName();
 
     public static final String SHARED_PREF_NAME = "DebugActivity";
     public static final String SHARED_PREF_ENABLE_LOG = "EnableLog";
+    public static final String SHARED_PREF_BINARY_LOG = "BinaryLog";
+    public static final String SHARED_PREF_MAPPED_LOG = "MappedLog";
+    public static final String SHARED_PREF_TRACK_STORE = "TrackStore";
+    public static final String SHARED_PREF_LIST_ORDER = "ListOrder";
+
+    // Log segments are closed at 64 MB or after an hour, and all logs are kept below 1 GB
+    private static final long LOG_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long LOG_SEGMENT_MILLIS = 60 * 60 * 1000;
+    private static final long LOG_DISK_CAP_BYTES = 1024L * 1024 * 1024;
+    // Subdirectory of the logs for the columnar tables
+    private static final String COLUMNAR_DIR = "columnar";
+
     private MenuItem mMenuLogItem;
 
     private File loggerFile;
+    // Segments left by a crash are recovered once per process, not for every new activity
+    private static boolean logRecoveryDone = false;
     private LogWriter logger;
-
-    private Handler handler;
-    private Runnable runnableCode;
+    private TrackStore trackStore;
+    // Closes the log, which waits for its writer thread, off the main thread
+    private final ExecutorService closeExecutor = Executors.newSingleThreadExecutor();
 
     private Location lastKnownGpsLocation;
     private Location lastKnownNetworkLocation;
@@ -103,6 +132,25 @@ public class DebugActivity extends AppCompatActivity {
         inflater.inflate(R.menu.main_menu, menu);
         mMenuLogItem = menu.findItem(R.id.menu_log);
         mMenuLogItem.setChecked(getLogEnabled());
+        menu.findItem(R.id.menu_log_binary).setChecked(getBinaryLogEnabled());
+        menu.findItem(R.id.menu_log_mapped).setChecked(getMappedLogEnabled());
+        menu.findItem(R.id.track_store).setChecked(getTrackStoreEnabled());
+        menu.findItem(listOrderMenuId(getListOrder())).setChecked(true);
+        SearchView searchView = (SearchView) menu.findItem(R.id.search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                mModel.setSearchQuery(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String query) {
+                mModel.setSearchQuery(query);
+                return true;
+            }
+        });
         checkBluetoothSupport(menu);
         checkNaNSupport(menu);
         checkWiFiSupport(menu);
@@ -149,6 +197,8 @@ public class DebugActivity extends AppCompatActivity {
         int id = item.getItemId();
         if (id == R.id.clear) {
             dataManager.getAircraft().clear();
+            dataManager.getSearchIndex().clear();
+            dataManager.getPositionIndex().clear();
             mModel.setAllAircraft(dataManager.getAircraft());
             LogWriter.bumpSession();
             return true;
@@ -161,25 +211,186 @@ public class DebugActivity extends AppCompatActivity {
             mMenuLogItem.setChecked(enabled);
             if (enabled) {
                 createNewLogfile();
-                wiFiNaNScanner.setLogger(logger);
-                wiFiBeaconScanner.setLogger(logger);
             } else {
-                logger.close();
-                btScanner.setLogger(null);
-                wiFiNaNScanner.setLogger(null);
-                wiFiBeaconScanner.setLogger(null);
+                closeLogger();
+            }
+            return true;
+        } else if (id == R.id.menu_log_binary) {
+            boolean binary = !getBinaryLogEnabled();
+            setBinaryLogEnabled(binary);
+            item.setChecked(binary);
+            if (getLogEnabled()) {
+                // Continue in a new file with the selected format
+                closeLogger();
+                createNewLogfile();
+            }
+            return true;
+        } else if (id == R.id.menu_log_mapped) {
+            boolean mapped = !getMappedLogEnabled();
+            setMappedLogEnabled(mapped);
+            item.setChecked(mapped);
+            if (getLogEnabled()) {
+                // Continue in a new file with the selected output
+                closeLogger();
+                createNewLogfile();
             }
             return true;
+        } else if (id == R.id.track_store) {
+            boolean enabled = !getTrackStoreEnabled();
+            setTrackStoreEnabled(enabled);
+            item.setChecked(enabled);
+            if (enabled)
+                openTrackStore();
+            else
+                closeTrackStore();
+            return true;
+        } else if (id == R.id.order_arrival || id == R.id.order_distance ||
+                id == R.id.order_rssi || id == R.id.order_last_seen) {
+            AircraftOrder.Key key = AircraftOrder.Key.ARRIVAL;
+            for (AircraftOrder.Key k : AircraftOrder.Key.values())
+                if (listOrderMenuId(k) == id)
+                    key = k;
+            setListOrder(key);
+            item.setChecked(true);
+            mModel.setListOrder(key);
+            return true;
         } else if (id == R.id.log_location) {
             if (getLogEnabled())
-                Toast.makeText(getBaseContext(), "Logging to " + loggerFile, Toast.LENGTH_LONG).show();
+                Toast.makeText(getBaseContext(), "Logging to " +
+                        (logger != null ? logger.getCurrentFile() : loggerFile) +
+                        (logger != null ? "\n" + logger.getStats() : "") +
+                        "\n" + framePipeline.getRing().getStats(), Toast.LENGTH_LONG).show();
             else
                 Toast.makeText(getBaseContext(), "Logging not activated", Toast.LENGTH_LONG).show();
             return true;
+        } else if (id == R.id.benchmark_log) {
+            runLogBenchmark();
+            return true;
+        } else if (id == R.id.replay_log) {
+            toggleLogReplay(item);
+            return true;
+        } else if (id == R.id.export_columnar) {
+            exportColumnar();
+            return true;
+        } else if (id == R.id.simulate_swarm) {
+            toggleSwarmSimulator(item);
+            return true;
+        } else if (id == R.id.wifi_nan) {
+            if (wiFiNaNScanner != null)
+                Toast.makeText(getBaseContext(), wiFiNaNScanner.getStats().toString(), Toast.LENGTH_LONG).show();
+            return true;
         }
         return false;
     }
 
+    private void toggleSwarmSimulator(MenuItem item) {
+        if (swarmSimulator == null) {
+            SwarmSimulator.Config config = new SwarmSimulator.Config();
+            Location location = dataManager.receiverLocation;
+            if (location != null) {
+                config.centerLatitude = location.getLatitude();
+                config.centerLongitude = location.getLongitude();
+            }
+            Handler mainHandler = new Handler(Looper.getMainLooper());
+            swarmSimulator = new SwarmSimulator(config, framePipeline, mainHandler::post);
+            swarmSimulator.startScan();
+            item.setChecked(true);
+        } else {
+            swarmSimulator.stopScan();
+            Toast.makeText(getBaseContext(), swarmSimulator.getStats().toString(), Toast.LENGTH_LONG).show();
+            swarmSimulator = null;
+            item.setChecked(false);
+        }
+    }
+
+    private void runLogBenchmark() {
+        File dir = getLoggerFileDir("benchmark").getParentFile();
+        Toast.makeText(getBaseContext(), "Benchmarking logging in " + dir, Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            StringBuilder report = new StringBuilder();
+            try {
+                for (LogBenchmark.Result result : LogBenchmark.run(dir, 100000))
+                    report.append(result).append('\n');
+            } catch (IOException e) {
+                Log.e(TAG, "log benchmark failed", e);
+                report.append("Log benchmark failed: ").append(e.getMessage());
+            }
+            runOnUiThread(() -> Toast.makeText(getBaseContext(), report.toString().trim(),
+                                               Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
+    /** Returns the most recently written complete log file, or null */
+    private File newestLog() {
+        File newest = null;
+        File[] files = getLoggerFileDir("replay").getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(LogRotation.GZIP_SUFFIX))
+                    name = name.substring(0, name.length() - LogRotation.GZIP_SUFFIX.length());
+                if (!(name.endsWith(".csv") || name.endsWith(BinaryLogFormat.FILE_EXTENSION)))
+                    continue;
+                if (newest == null || file.lastModified() > newest.lastModified())
+                    newest = file;
+            }
+        }
+        return newest;
+    }
+
+    private void exportColumnar() {
+        File log = newestLog();
+        if (log == null) {
+            Toast.makeText(getBaseContext(), "No log file to export", Toast.LENGTH_LONG).show();
+            return;
+        }
+        File dir = new File(log.getParentFile(), COLUMNAR_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Toast.makeText(getBaseContext(), "Could not create " + dir, Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(getBaseContext(), "Exporting " + log.getName(), Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            String message;
+            try {
+                List<File> tables = ColumnarLog.export(log, dir);
+                message = "Exported " + tables.size() + " tables to " + dir;
+            } catch (IOException e) {
+                Log.e(TAG, "columnar export failed", e);
+                message = "Columnar export failed: " + e.getMessage();
+            }
+            String text = message;
+            runOnUiThread(() -> Toast.makeText(getBaseContext(), text, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
+    private void toggleLogReplay(MenuItem item) {
+        if (logReplay == null) {
+            File newest = newestLog();
+            if (newest == null) {
+                Toast.makeText(getBaseContext(), "No log file to replay", Toast.LENGTH_LONG).show();
+                return;
+            }
+            Handler mainHandler = new Handler(Looper.getMainLooper());
+            logReplay = new LogReplay(newest, framePipeline, mainHandler::post);
+            logReplay.setFinishedListener((replay, stats) -> {
+                if (replay != logReplay)
+                    return;
+                Toast.makeText(getBaseContext(), stats.toString(), Toast.LENGTH_LONG).show();
+                logReplay = null;
+                item.setChecked(false);
+            });
+            logReplay.startScan();
+            Toast.makeText(getBaseContext(), "Replaying " + newest.getName(), Toast.LENGTH_LONG).show();
+            item.setChecked(true);
+        } else {
+            logReplay.stopScan();
+            Toast.makeText(getBaseContext(), logReplay.getStats().toString(), Toast.LENGTH_LONG).show();
+            logReplay = null;
+            item.setChecked(false);
+        }
+    }
+
     boolean getLogEnabled() {
         SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
         return pref.getBoolean(SHARED_PREF_ENABLE_LOG, true);
@@ -190,6 +401,89 @@ public class DebugActivity extends AppCompatActivity {
         pref.edit().putBoolean(SHARED_PREF_ENABLE_LOG, enabled).apply();
     }
 
+    boolean getBinaryLogEnabled() {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        return pref.getBoolean(SHARED_PREF_BINARY_LOG, false);
+    }
+
+    void setBinaryLogEnabled(boolean enabled) {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        pref.edit().putBoolean(SHARED_PREF_BINARY_LOG, enabled).apply();
+    }
+
+    boolean getMappedLogEnabled() {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        return pref.getBoolean(SHARED_PREF_MAPPED_LOG, false);
+    }
+
+    void setMappedLogEnabled(boolean enabled) {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        pref.edit().putBoolean(SHARED_PREF_MAPPED_LOG, enabled).apply();
+    }
+
+    boolean getTrackStoreEnabled() {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        return pref.getBoolean(SHARED_PREF_TRACK_STORE, false);
+    }
+
+    void setTrackStoreEnabled(boolean enabled) {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        pref.edit().putBoolean(SHARED_PREF_TRACK_STORE, enabled).apply();
+    }
+
+    AircraftOrder.Key getListOrder() {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        String name = pref.getString(SHARED_PREF_LIST_ORDER, AircraftOrder.Key.ARRIVAL.name());
+        try {
+            return AircraftOrder.Key.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return AircraftOrder.Key.ARRIVAL;
+        }
+    }
+
+    void setListOrder(AircraftOrder.Key key) {
+        SharedPreferences pref = getSharedPreferences(SHARED_PREF_NAME, 0);
+        pref.edit().putString(SHARED_PREF_LIST_ORDER, key.name()).apply();
+    }
+
+    private static int listOrderMenuId(AircraftOrder.Key key) {
+        switch (key) {
+            case DISTANCE: return R.id.order_distance;
+            case RSSI: return R.id.order_rssi;
+            case LAST_SEEN: return R.id.order_last_seen;
+            default: return R.id.order_arrival;
+        }
+    }
+
+    private void openTrackStore() {
+        trackStore = new TrackStore(this, framePipeline.getRing());
+        new ViewModelProvider(this).get(DetailViewModel.class).setTrackStore(trackStore);
+    }
+
+    private void closeTrackStore() {
+        if (trackStore == null)
+            return;
+        new ViewModelProvider(this).get(DetailViewModel.class).setTrackStore(null);
+        TrackStore closed = trackStore;
+        trackStore = null;
+        // Waits for the last commit, which may take seconds
+        Context context = getApplicationContext();
+        closeExecutor.execute(() -> {
+            closed.close();
+            String text = "Track store: " + closed.getStats();
+            runOnUiThread(() -> Toast.makeText(context, text, Toast.LENGTH_LONG).show());
+        });
+    }
+
+    private void closeLogger() {
+        if (logger == null)
+            return;
+        framePipeline.setLogger(null);
+        LogWriter closed = logger;
+        logger = null;
+        closeExecutor.execute(closed::close);
+    }
+
     private File getLoggerFileDir(String name) {
         File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS), "OpenDroneID");
         if (!file.mkdirs()) {
@@ -197,18 +491,29 @@ public class DebugActivity extends AppCompatActivity {
         }
         String pattern = "yyyy-MM-dd_HH-mm-ss.SSS";
         SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern, Locale.US);
-        return new File(file, "log_" + Build.MODEL + "_" + name + "_" + simpleDateFormat.format(new Date()) + ".csv");
+        return new File(file, "log_" + Build.MODEL + "_" + name + "_" + simpleDateFormat.format(new Date()) +
+                (getBinaryLogEnabled() ? BinaryLogFormat.FILE_EXTENSION : ".csv"));
     }
 
     private void createNewLogfile() {
         loggerFile = getLoggerFileDir(btScanner.getBluetoothAdapter().getName());
 
         try {
-            logger = new LogWriter(loggerFile);
+            LogRotation rotation = new LogRotation(LOG_SEGMENT_BYTES, LOG_SEGMENT_MILLIS, true,
+                                                   LOG_DISK_CAP_BYTES, "log_");
+            if (!logRecoveryDone) {
+                // Segments left by a crash, before this log starts its own
+                rotation.recoverInterrupted(loggerFile);
+                logRecoveryDone = true;
+            }
+            logger = new LogWriter(loggerFile,
+                    getBinaryLogEnabled() ? LogWriter.Format.BINARY : LogWriter.Format.CSV,
+                    LogWriter.DEFAULT_QUEUE_CAPACITY, LogWriter.OverflowPolicy.DROP_NEWEST, null,
+                    rotation, getMappedLogEnabled());
         } catch (IOException e) {
             e.printStackTrace();
         }
-        btScanner.setLogger(logger);
+        framePipeline.setLogger(logger);
     }
 
     @Override
@@ -217,6 +522,7 @@ public class DebugActivity extends AppCompatActivity {
 
         setContentView(R.layout.activity_debug);
         mModel = new ViewModelProvider(this).get(AircraftViewModel.class);
+        mModel.setListOrder(getListOrder());
 
         dataManager = new OpenDroneIdDataManager(new OpenDroneIdDataManager.Callback() {
             @Override
@@ -225,8 +531,13 @@ public class DebugActivity extends AppCompatActivity {
             }
         });
 
-        btScanner = new BluetoothScanner(this, dataManager);
+        mModel.setSearchIndex(dataManager.getSearchIndex());
+        mModel.setPositionIndex(dataManager.getPositionIndex());
+        framePipeline = new FramePipeline(dataManager);
+        btScanner = new BluetoothScanner(this, framePipeline);
         createNewLogfile();
+        if (getTrackStoreEnabled())
+            openTrackStore();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
                 getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI_AWARE)) {
@@ -297,10 +608,10 @@ public class DebugActivity extends AppCompatActivity {
         mModel.getAllAircraft().observe(this, listObserver);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-            wiFiNaNScanner = new WiFiNaNScanner(this, dataManager, logger);
+            wiFiNaNScanner = new WiFiNaNScanner(this, framePipeline);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            wiFiBeaconScanner = new WiFiBeaconScanner(this, dataManager, logger);
+            wiFiBeaconScanner = new WiFiBeaconScanner(this, framePipeline);
 
         addDeviceList();
 
@@ -345,17 +656,6 @@ public class DebugActivity extends AppCompatActivity {
     protected void onResume() {
         Log.d(TAG, "onResume");
 
-        // Wake the main Activity thread regularly, to update time counters and other UI elements
-        handler = new Handler();
-        runnableCode = () -> {
-            for (AircraftObject aircraft : dataManager.aircraft.values()) {
-                aircraft.updateShadowBasicId();
-                aircraft.connection.setValue(aircraft.connection.getValue());
-            }
-            handler.postDelayed(runnableCode, 1000);
-        };
-        handler.post(runnableCode);
-
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED &&
                 ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
             if (gpsLocationListener != null)
@@ -384,8 +684,6 @@ public class DebugActivity extends AppCompatActivity {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && wiFiBeaconScanner != null)
             wiFiBeaconScanner.stopScan();
 
-        handler.removeCallbacks(runnableCode);
-
         if (gpsLocationListener != null)
             locationManager.removeUpdates(gpsLocationListener);
         if (networkLocationListener != null)
@@ -394,6 +692,18 @@ public class DebugActivity extends AppCompatActivity {
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (logReplay != null)
+            logReplay.stopScan();
+        closeTrackStore();
+        // A recreated activity starts its own log, this one must not keep writing
+        closeLogger();
+        // Runs the pending closes to the end
+        closeExecutor.shutdown();
+        super.onDestroy();
+    }
+
     private void showErrorText(int messageId) {
         Toast.makeText(this, messageId, Toast.LENGTH_SHORT).show();
     }
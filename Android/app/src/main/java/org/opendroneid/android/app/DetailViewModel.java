@@ -6,6 +6,11 @@
  */
 package org.opendroneid.android.app;
 
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Transformations;
@@ -19,14 +24,66 @@ import org.opendroneid.android.data.AuthenticationData;
 import org.opendroneid.android.data.SelfIdData;
 import org.opendroneid.android.data.OperatorIdData;
 import org.opendroneid.android.data.SystemData;
+import org.opendroneid.android.log.TrackStore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DetailViewModel extends ViewModel {
+    private static final String TAG = "DetailViewModel";
+
     private final MutableLiveData<AircraftObject> selected = new MutableLiveData<>();
+    private TrackStore trackStore;
+    // The UAS ID of the history being shown or loaded. Results for another one are discarded
+    private volatile String historyUasId;
+    // Loads one history at a time, in the order of the requests
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     void select(AircraftObject item) {
         selected.setValue(item);
+        historyUasId = null;
+        history.setValue(null);
+    }
+
+    void setTrackStore(TrackStore trackStore) {
+        this.trackStore = trackStore;
+        historyUasId = null;
     }
 
+    /** Looks up what the track store knows about the UAS ID, once per UAS ID and off the main thread */
+    void loadHistory(String uasId) {
+        TrackStore store = trackStore;
+        // Serial numbers are padded with zeros
+        int end = uasId.indexOf('\0');
+        String id = end >= 0 ? uasId.substring(0, end) : uasId;
+        if (store == null || id.isEmpty() || id.equals(historyUasId))
+            return;
+        historyUasId = id;
+        historyExecutor.execute(() -> {
+            if (!id.equals(historyUasId))
+                return;
+            try {
+                TrackStore.History result = store.getHistory(id);
+                // The selection may change until the result arrives on the main thread
+                mainHandler.post(() -> {
+                    if (id.equals(historyUasId))
+                        history.setValue(result);
+                });
+            } catch (SQLException | IllegalStateException e) {
+                // The store may be closed meanwhile
+                Log.w(TAG, "could not read the history of " + id, e);
+            }
+        });
+    }
+
+    @Override
+    protected void onCleared() {
+        historyExecutor.shutdownNow();
+    }
+
+    final MutableLiveData<TrackStore.History> history = new MutableLiveData<>();
+
     final LiveData<Identification> identification1 = Transformations.switchMap(selected,
             input -> input.identification1);
 
@@ -18,10 +18,13 @@ import android.widget.TextView;
 
 import org.opendroneid.android.Constants;
 import org.opendroneid.android.R;
+import org.opendroneid.android.data.Connection;
 import org.opendroneid.android.data.Identification;
 
 import android.graphics.Color;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
 
 public class DeviceDetailFragment extends DialogFragment {
@@ -33,6 +36,7 @@ public class DeviceDetailFragment extends DialogFragment {
     private TextView conLastUpdate;
     private TextView conMsgDelta;
     private TextView distance;
+    private TextView history;
 
     private TextView infoLastUpdate1;
     private TextView infoType1;
@@ -120,9 +124,16 @@ public class DeviceDetailFragment extends DialogFragment {
             else
                 msgVersion.setTextColor(Color.GRAY);
             receiveTime.setText(connection.getTimestampAsString());
+            conMsgDelta.setText(connection.getMsgDeltaAsString());
+        });
+
+        // The elapsed times change with the clock, not with the received messages
+        AircraftViewModel aircraftModel = new ViewModelProvider(getActivity()).get(AircraftViewModel.class);
+        aircraftModel.getClock().observe(getViewLifecycleOwner(), now -> {
+            Connection connection = model.connection.getValue();
+            if (connection == null) return;
             conStarted.setText(String.format(Locale.US,"%s ago", DeviceList.elapsed(connection.firstSeen)));
             conLastUpdate.setText(String.format(Locale.US,"%s ago", DeviceList.elapsed(connection.lastSeen)));
-            conMsgDelta.setText(connection.getMsgDeltaAsString());
         });
 
         model.identification1.observe(getViewLifecycleOwner(), identification -> {
@@ -133,6 +144,17 @@ public class DeviceDetailFragment extends DialogFragment {
             infoType1.setText(identification.getUaType().name());
             infoIdType1.setText(identification.getIdType().name());
             setUasIdText(identification, infoUasId1);
+            model.loadHistory(identification.getUasIdAsString());
+        });
+
+        model.history.observe(getViewLifecycleOwner(), trackHistory -> {
+            if (trackHistory == null) {
+                history.setText("–");
+                return;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+            history.setText(String.format(Locale.US, "%d flights, %d positions since %s",
+                    trackHistory.flights, trackHistory.samples, format.format(new Date(trackHistory.firstSeen))));
         });
 
         model.identification2.observe(getViewLifecycleOwner(), identification -> {
@@ -230,6 +252,7 @@ public class DeviceDetailFragment extends DialogFragment {
         conLastUpdate = view.findViewById(R.id.conLastUpdate);
         conMsgDelta = view.findViewById(R.id.conMsgDelta);
         distance = view.findViewById(R.id.distance);
+        history = view.findViewById(R.id.history);
 
         infoLastUpdate1 = view.findViewById(R.id.infoLastUpdate1);
         infoType1 = view.findViewById(R.id.infoType1);
@@ -7,7 +7,6 @@
 package org.opendroneid.android.app;
 
 import androidx.core.content.ContextCompat;
-import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 
 import android.graphics.Color;
@@ -34,13 +33,17 @@ import org.opendroneid.android.data.AircraftObject;
 import org.opendroneid.android.data.Connection;
 import org.opendroneid.android.data.Identification;
 import org.opendroneid.android.data.LocationData;
+import org.opendroneid.android.data.SearchIndex;
+import org.opendroneid.android.data.Util;
 import com.mikepenz.fastadapter.FastAdapter;
 import com.mikepenz.fastadapter.adapters.ModelAdapter;
 import com.mikepenz.fastadapter.commons.utils.FastAdapterUIUtils;
 import com.mikepenz.fastadapter.items.AbstractItem;
 import com.mikepenz.fastadapter.select.SelectExtension;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
@@ -53,6 +56,13 @@ public class DeviceList extends Fragment {
     private AircraftViewModel mModel;
     private ModelAdapter<AircraftObject, ListItem> mItemAdapter;
     private FastAdapter<ListItem> mAdapter;
+    private RecyclerView mRecyclerView;
+    private final AircraftOrder mOrder = new AircraftOrder();
+    // The trimmed search query, and the aircraft matching it or null without a query
+    private String mQuery = "";
+    private Set<AircraftObject> mMatches;
+    // The version of the search index the matches were found in
+    private int mSearchedVersion;
 
     public static DeviceList newInstance() {
         return new DeviceList();
@@ -60,11 +70,21 @@ public class DeviceList extends Fragment {
 
     private void subscribeToModel(AircraftViewModel model) {
         mModel = model;
-        final Observer<Set<AircraftObject>> listObserver = aircraftList -> {
-            if (aircraftList == null)
-                return;
-            Log.d(TAG, "DeviceList onChanged: " + aircraftList);
-            mItemAdapter.setNewList(new ArrayList<>(aircraftList));
+        // New aircraft are inserted at the place of their key, the rows of the others stay
+        // where they are
+        final Util.DiffObserver<AircraftObject> listObserver = new Util.DiffObserver<AircraftObject>() {
+            @Override
+            public void onAdded(Collection<AircraftObject> added) {
+                for (AircraftObject aircraft : added)
+                    if (matches(aircraft))
+                        addRow(aircraft);
+            }
+
+            @Override
+            public void onRemoved(Collection<AircraftObject> removed) {
+                for (AircraftObject aircraft : removed)
+                    removeRow(aircraft);
+            }
         };
 
         model.getActiveAircraft().observe(getViewLifecycleOwner(), object -> {
@@ -78,6 +98,78 @@ public class DeviceList extends Fragment {
             }
         });
         mModel.getAllAircraft().observe(getViewLifecycleOwner(), listObserver);
+        mModel.getListOrder().observe(getViewLifecycleOwner(), key -> {
+            if (key != null)
+                mOrder.setKey(key, mItemAdapter::move);
+        });
+        mModel.getSearchQuery().observe(getViewLifecycleOwner(), query -> {
+            mQuery = query != null ? query.trim() : "";
+            applySearch();
+        });
+        mModel.getClock().observe(getViewLifecycleOwner(), now -> {
+            // The IDs of an aircraft arrive after it is listed, so the matches are updated when
+            // the index changed
+            SearchIndex index = mModel.getSearchIndex();
+            if (!mQuery.isEmpty() && index != null && index.getVersion() != mSearchedVersion)
+                applySearch();
+            mOrder.update(mItemAdapter::move);
+            refreshVisibleRows(now);
+        });
+    }
+
+    private boolean matches(AircraftObject aircraft) {
+        return mMatches == null || mMatches.contains(aircraft);
+    }
+
+    private void addRow(AircraftObject aircraft) {
+        int position = mOrder.add(aircraft);
+        if (position >= 0)
+            mItemAdapter.add(position, Collections.singletonList(aircraft));
+    }
+
+    private void removeRow(AircraftObject aircraft) {
+        int position = mOrder.remove(aircraft);
+        if (position >= 0)
+            mItemAdapter.remove(position);
+    }
+
+    /**
+     * Shows only the aircraft matching the search query, or all of them without a query. Rows
+     * are only added or removed where the matches changed.
+     */
+    private void applySearch() {
+        Set<AircraftObject> all = mModel.getAllAircraft().getValue();
+        SearchIndex index = mModel.getSearchIndex();
+        if (all == null)
+            return;
+        if (mQuery.isEmpty() || index == null) {
+            mMatches = null;
+        } else {
+            // Read first, so a change during the search is searched again at the next tick
+            mSearchedVersion = index.getVersion();
+            mMatches = new HashSet<>(index.search(mQuery));
+        }
+        for (AircraftObject aircraft : mOrder.getAircraft())
+            if (!matches(aircraft))
+                removeRow(aircraft);
+        for (AircraftObject aircraft : all)
+            if (matches(aircraft) && !mOrder.contains(aircraft))
+                addRow(aircraft);
+    }
+
+    /**
+     * Updates the rows on screen from the latest state of their aircraft at each tick of the UI
+     * clock. The work per tick is bounded by the number of visible rows, whatever the rate of
+     * received messages.
+     */
+    private void refreshVisibleRows(Long now) {
+        if (mRecyclerView == null || now == null)
+            return;
+        for (int i = 0; i < mRecyclerView.getChildCount(); i++) {
+            RecyclerView.ViewHolder holder = mRecyclerView.getChildViewHolder(mRecyclerView.getChildAt(i));
+            if (holder instanceof AircraftViewHolder)
+                ((AircraftViewHolder) holder).refresh(now);
+        }
     }
 
     @Override
@@ -101,6 +193,8 @@ public class DeviceList extends Fragment {
         // Create the ItemAdapter holding your Items
 
         mItemAdapter = new ModelAdapter<>(ListItem::new);
+        // The list is filled again from the model for the new view
+        mOrder.clear();
 
         // Create the managing FastAdapter, by passing in the itemAdapter
         mAdapter = FastAdapter.with(mItemAdapter);
@@ -116,14 +210,22 @@ public class DeviceList extends Fragment {
                 }
             }
         });
-        RecyclerView mRecyclerView = viewGroup.findViewById(R.id.device_list);
+        mRecyclerView = viewGroup.findViewById(R.id.device_list);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        // The list fills its parent, so adding or removing rows does not change its size
+        mRecyclerView.setHasFixedSize(true);
         mRecyclerView.setAdapter(mAdapter);
         mRecyclerView.scrollToPosition(0);
 
         return viewGroup;
     }
 
+    @Override
+    public void onDestroyView() {
+        mRecyclerView = null;
+        super.onDestroyView();
+    }
+
     static String elapsed(long start) {
         long millis = System.currentTimeMillis() - start;
         return String.format(Locale.US, "%02d:%02d ",
@@ -150,13 +252,14 @@ public class DeviceList extends Fragment {
         private final TextView textView2;
         private final TextView rssiView;
         private AircraftObject aircraft;
-        private final View view;
         private final ImageView iconImageView;
         private final Drawable droneIcon;
 
         AircraftViewHolder(View v) {
             super(v);
-            this.view = v;
+            StateListDrawable selectableBackground =
+                    FastAdapterUIUtils.getSelectableBackground(v.getContext(), Color.LTGRAY, true);
+            v.setBackground(selectableBackground);
             textView = v.findViewById(R.id.aircraftName);
             textView2 = v.findViewById(R.id.aircraftFun);
             rssiView = v.findViewById(R.id.rssi);
@@ -169,72 +272,69 @@ public class DeviceList extends Fragment {
             iconImageView = v.findViewById(R.id.drone_icon);
         }
 
+        // Reused for the texts of this row
+        private final StringBuilder text = new StringBuilder();
+        // What the row currently shows, so that unchanged views are not set again
+        private Identification boundShownId;
+        private int boundRssi;
+        private LocationData boundLocation;
+
         private void setIdText(Identification id) {
-            if (id.getUasIdAsString().length() > Constants.MAX_ID_BYTE_SIZE)
+            String uasId = id.getUasIdAsString();
+            if (uasId.length() > Constants.MAX_ID_BYTE_SIZE)
                 textView.setTextSize(9);
             else
                 textView.setTextSize(16);
-            textView.setText(String.format("%s", id.getUasIdAsString()));
+            textView.setText(uasId);
         }
 
-        @Override
-        public void bindView(@NonNull ListItem aircraftItem, @NonNull List<Object> payloads) {
-            if (getContext() == null)
+        /** Updates the views whose part of the aircraft state changed since they were set */
+        void refresh(long now) {
+            if (aircraft == null)
                 return;
+            Identification shown = aircraft.getShownIdentification(now);
+            if (shown != boundShownId) {
+                if (shown != null) {
+                    setIdText(shown);
+                    droneIcon.setColorFilter(0xff00ff00, PorterDuff.Mode.MULTIPLY);
+                    iconImageView.setImageDrawable(droneIcon);
+                }
+                boundShownId = shown;
+            }
 
-            this.aircraft = aircraftItem.object;
+            Connection connection = aircraft.getConnection();
+            if (connection != null && connection.rssi != boundRssi) {
+                text.setLength(0);
+                text.append(connection.rssi).append(" dBm");
+                rssiView.setText(text);
+                boundRssi = connection.rssi;
+            }
 
-            StateListDrawable selectableBackground =
-                    FastAdapterUIUtils.getSelectableBackground(getContext(), Color.LTGRAY, true);
-            view.setBackground(selectableBackground);
-            Identification id = aircraft.getIdentification1();
-            if (id != null)
-                setIdText(id);
-
-            aircraft.connection.observe(DeviceList.this, connectionObserver);
-            aircraft.location.observe(DeviceList.this, locationObserver);
-            aircraft.id1Shadow.observe(DeviceList.this, observer);
-            aircraft.id2Shadow.observe(DeviceList.this, observer);
+            LocationData locationData = aircraft.getLocation();
+            if (locationData != null && locationData != boundLocation) {
+                text.setLength(0);
+                text.append(locationData.getHeightLessPreciseAsString()).append(" over ")
+                        .append(locationData.getHeightType().toString()).append(", ")
+                        .append(locationData.getSpeedHorizontalLessPreciseAsString()).append(", ")
+                        .append(locationData.getDistanceAsString()).append(" away");
+                textView2.setText(text);
+                boundLocation = locationData;
+            }
         }
 
         @Override
-        public void unbindView(@NonNull ListItem aircraftItem) {
-            aircraft.id1Shadow.removeObserver(observer);
-            aircraft.id2Shadow.removeObserver(observer);
-            aircraft.connection.removeObserver(connectionObserver);
-            aircraft.location.removeObserver(locationObserver);
+        public void bindView(@NonNull ListItem aircraftItem, @NonNull List<Object> payloads) {
+            this.aircraft = aircraftItem.object;
+            boundShownId = null;
+            boundRssi = Integer.MIN_VALUE;
+            boundLocation = null;
+            refresh(System.currentTimeMillis());
         }
-        final Observer<Connection> connectionObserver = new Observer<Connection>() {
-            @Override
-            public void onChanged(Connection connection) {
-                if (connection != null)
-                    rssiView.setText(String.format(Locale.US, "%s dBm", connection.rssi));
-            }
-        };
-        final Observer<LocationData> locationObserver = new Observer<LocationData>() {
-            @Override
-            public void onChanged(LocationData locationData) {
-                if (locationData != null)
-                    textView2.setText(String.format(Locale.US, "%s over %s, %s, %s away",
-                            locationData.getHeightLessPreciseAsString(),
-                            locationData.getHeightType().toString(),
-                            locationData.getSpeedHorizontalLessPreciseAsString(),
-                            locationData.getDistanceAsString()));
-            }
-        };
-
-        final Observer<Identification> observer = new Observer<Identification>() {
-            @Override
-            public void onChanged(Identification identification) {
-                if (identification != null) {
-                    Log.w(TAG, "on changed: " + identification.getIdType() + ", " + identification.getUasIdAsString() + ", " + this);
-                    setIdText(identification);
 
-                    droneIcon.setColorFilter(0xff00ff00, PorterDuff.Mode.MULTIPLY);
-                    iconImageView.setImageDrawable(droneIcon);
-                }
-            }
-        };
+        @Override
+        public void unbindView(@NonNull ListItem aircraftItem) {
+            aircraft = null;
+        }
     }
 
     public class ListItem extends AbstractItem<ListItem, AircraftViewHolder> {
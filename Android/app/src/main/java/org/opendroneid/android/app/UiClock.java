@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.app;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+
+/**
+ * The one clock of the UI. It publishes the wall clock time at a fixed rate, for the views to
+ * refresh elapsed times and other time dependent state. It only ticks while a started view
+ * observes it, and a tick only reaches the started views, never the aircraft.
+ */
+public class UiClock extends LiveData<Long> {
+    static final long TICK_MILLIS = 250;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            setValue(System.currentTimeMillis());
+            handler.postDelayed(this, TICK_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onActive() {
+        handler.post(tick);
+    }
+
+    @Override
+    protected void onInactive() {
+        handler.removeCallbacks(tick);
+    }
+}
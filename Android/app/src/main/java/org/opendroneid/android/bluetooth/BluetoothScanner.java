@@ -21,24 +21,24 @@ import android.os.ParcelUuid;
 import android.util.Log;
 
 import org.opendroneid.android.log.LogEntry;
-import org.opendroneid.android.log.LogMessageEntry;
-import org.opendroneid.android.log.LogWriter;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
 
-public class BluetoothScanner {
+public class BluetoothScanner implements Transport {
     private static final String TAG = "BluetoothManager";
 
-    private final OpenDroneIdDataManager dataManager;
-    private LogWriter logger;
+    // Offset of the first message in the scan record: length, AD type, UUID (2), app code, counter
+    private static final int MESSAGE_OFFSET = 6;
+
+    private FrameListener frameListener;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bluetoothLeScanner;
 
-    public BluetoothScanner(Context context, OpenDroneIdDataManager dataManager) {
-        this.dataManager = dataManager;
+    public BluetoothScanner(Context context, FrameListener frameListener) {
+        this.frameListener = frameListener;
 
         Object object = context.getSystemService(Context.BLUETOOTH_SERVICE);
         if (object == null)
@@ -46,7 +46,8 @@ public class BluetoothScanner {
         bluetoothAdapter = ((android.bluetooth.BluetoothManager) object).getAdapter();
     }
 
-    public void setLogger(LogWriter logger) { this.logger = logger; }
+    @Override
+    public void setFrameListener(FrameListener listener) { this.frameListener = listener; }
 
     private static String dumpBytes(byte[] bytes) {
         return LogEntry.toHexString(bytes, bytes.length);
@@ -71,18 +72,17 @@ public class BluetoothScanner {
             String string = String.format(Locale.US, "scan: addr=%s flags=0x%02X rssi=% d, len=%d",
                     addr, advertiseFlags, rssi, bytes != null ? bytes.length : -1);
 
-            String transportType = "BT4";
+            String transportType = BT4;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bluetoothAdapter.isLeCodedPhySupported()) {
                 if (result.getPrimaryPhy() == BluetoothDevice.PHY_LE_CODED)
-                    transportType = "BT5";
+                    transportType = BT5;
             }
 
-            LogMessageEntry logMessageEntry = new LogMessageEntry();
-            dataManager.receiveDataBluetooth(bytes, result, logMessageEntry, transportType);
-
-            StringBuilder csvLog = logMessageEntry.getMessageLogEntry();
-            if (logger != null)
-                logger.logBluetooth(logMessageEntry.getMsgVersion(), result, transportType, csvLog);
+            String macAddress = result.getDevice().getAddress();
+            long macAddressLong = Long.parseLong(macAddress.replace(":", ""), 16);
+            if (bytes != null && frameListener != null)
+                frameListener.onFrame(new RawFrame(transportType, macAddress, macAddressLong, rssi,
+                        result.getTimestampNanos(), bytes, MESSAGE_OFFSET));
 
             Log.w(TAG, "onScanResult: " + string);
             if (bytes != null) {
@@ -110,6 +110,7 @@ public class BluetoothScanner {
     private static final ParcelUuid SERVICE_pUUID = new ParcelUuid(SERVICE_UUID);
     private static final byte[] OPEN_DRONE_ID_AD_CODE = new byte[]{(byte) 0x0D};
 
+    @Override
     @TargetApi(Build.VERSION_CODES.O)
     public void startScan() {
         if (bluetoothAdapter == null)
@@ -140,6 +141,7 @@ public class BluetoothScanner {
         bluetoothLeScanner.startScan(scanFilters, scanSettings, scanCallback);
     }
 
+    @Override
     public void stopScan() {
         if (bluetoothLeScanner != null) {
             bluetoothLeScanner.stopScan(scanCallback);
@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+/**
+ * Source of the wall clock time used for the connection bookkeeping of received aircraft.
+ * Live scanning uses the system clock. Replayed frames carry the time of the recording instead,
+ * see {@link RawFrame#replayTimeMillis}.
+ */
+public interface Clock {
+    long currentTimeMillis();
+
+    Clock SYSTEM = System::currentTimeMillis;
+}
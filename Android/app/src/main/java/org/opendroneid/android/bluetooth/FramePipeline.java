@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+import org.opendroneid.android.log.LogMessageEntry;
+import org.opendroneid.android.log.LogWriter;
+
+/**
+ * The single ingest path for frames from all transports: decode into the data manager and
+ * publish the frame with its decoded messages in the frame ring, where the logger and the
+ * track store read it, if they are enabled. Frames replayed from a log only update the aircraft,
+ * they are neither logged nor stored again. A frame the ring has no room for goes to the logger
+ * through its own queue and overflow policy, so the log has no gap the logger does not count.
+ */
+public class FramePipeline implements Transport.FrameListener {
+    private final OpenDroneIdDataManager dataManager;
+    private final FrameRing ring;
+    private LogWriter logger;
+    // Decodes the frames that are not published in the ring, for the data manager only
+    private final LogMessageEntry unpublishedEntry = new LogMessageEntry();
+
+    public FramePipeline(OpenDroneIdDataManager dataManager) {
+        this(dataManager, FrameRing.DEFAULT_SIZE);
+    }
+
+    public FramePipeline(OpenDroneIdDataManager dataManager, int ringSize) {
+        this.dataManager = dataManager;
+        this.ring = new FrameRing(ringSize);
+    }
+
+    public FrameRing getRing() { return ring; }
+
+    /**
+     * Makes the logger read the ring. The previous logger keeps reading it until it is closed,
+     * so it still writes the frames published before.
+     */
+    public void setLogger(LogWriter logger) {
+        this.logger = logger;
+        if (logger != null)
+            logger.attach(ring);
+    }
+
+    @Override
+    public void onFrame(RawFrame frame) {
+        long receivedMillis = dataManager.receivedMillis(frame);
+        FrameRing.Slot slot = frame.isReplayed() ? null : ring.claim();
+        if (slot == null) {
+            // Replayed frames, and frames dropped because a consumer has fallen behind, still
+            // update the aircraft
+            if (frame.isReplayed() || logger == null) {
+                unpublishedEntry.reset();
+                dataManager.receiveFrame(frame, unpublishedEntry, receivedMillis);
+                return;
+            }
+            // Kept by the logger until it is written
+            LogMessageEntry messages = new LogMessageEntry();
+            dataManager.receiveFrame(frame, messages, receivedMillis);
+            logger.log(frame, messages);
+            return;
+        }
+        slot.frame = frame;
+        slot.receivedMillis = receivedMillis;
+        slot.session = LogWriter.getSession();
+        dataManager.receiveFrame(frame, slot.messages, receivedMillis);
+        ring.publish();
+    }
+}
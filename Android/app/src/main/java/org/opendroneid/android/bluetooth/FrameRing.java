@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+import androidx.annotation.NonNull;
+
+import org.opendroneid.android.log.LogMessageEntry;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated ring of received frames in the style of the LMAX Disruptor. The receiving thread
+ * writes each frame once into the next slot, where the data manager decodes it, and publishes it.
+ * Any number of consumers, e.g. the logger and the track store, then read the slot on their own
+ * threads, each with its own cursor. They share the decoded messages, without a queue, copy or
+ * allocation per consumer.
+ *
+ * There is a single producer: frames arrive on the main thread, where the data manager updates
+ * the aircraft. The producer never waits. If the slowest consumer is a whole ring behind, the
+ * frame is not published and counted as dropped, in the ring and in every consumer, which sees
+ * it in getDropped(). Consumers should therefore only hold slots briefly, and copy what they
+ * keep longer. getStats() shows how far behind each consumer is.
+ */
+public class FrameRing {
+    public static final int DEFAULT_SIZE = 8192;
+
+    public static class Slot {
+        public RawFrame frame;
+        // Wall clock time of the reception, from the clock of the data manager
+        public long receivedMillis;
+        // Log session when the frame was received
+        public int session;
+        // Decoded by the data manager, reset when the slot is reused
+        public final LogMessageEntry messages = new LogMessageEntry();
+    }
+
+    public interface Handler {
+        void onSlot(Slot slot) throws IOException;
+    }
+
+    /** The read position of one consumer. Only used on the thread of that consumer */
+    public class Consumer {
+        final String name;
+        // Sequence of the last slot read. The slots up to it can be reused by the producer
+        private final AtomicLong sequence;
+        // Frames not published while the consumer was attached
+        private final AtomicLong dropped = new AtomicLong();
+
+        Consumer(String name, long sequence) {
+            this.name = name;
+            this.sequence = new AtomicLong(sequence);
+        }
+
+        /** Number of published frames the consumer has not read yet */
+        public long getLag() { return published.get() - sequence.get(); }
+
+        /** Number of frames the consumer missed because they were not published */
+        public long getDropped() { return dropped.get(); }
+
+        /** Waits up to timeoutMillis for a frame to read. Returns false if there is none */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            long next = sequence.get() + 1;
+            if (published.get() >= next)
+                return true;
+            if (timeoutMillis > 0) {
+                synchronized (lock) {
+                    waiters.incrementAndGet();
+                    try {
+                        if (published.get() < next)
+                            lock.wait(timeoutMillis);
+                    } finally {
+                        waiters.decrementAndGet();
+                    }
+                }
+            }
+            return published.get() >= next;
+        }
+
+        /**
+         * Passes up to maxBatch published slots to the handler, waiting up to timeoutMillis for
+         * the first one, and then releases them to the producer. Returns the number of slots read.
+         */
+        public int poll(Handler handler, int maxBatch, long timeoutMillis)
+                throws IOException, InterruptedException {
+            if (!await(timeoutMillis))
+                return 0;
+            long next = sequence.get() + 1;
+            long end = Math.min(published.get(), next + maxBatch - 1);
+            try {
+                for (long s = next; s <= end; s++)
+                    handler.onSlot(slots[(int) (s & mask)]);
+            } finally {
+                sequence.set(end);
+            }
+            return (int) (end - next + 1);
+        }
+    }
+
+    public static class Stats {
+        public long published;
+        public long dropped;
+        public int size;
+        public String slowest;
+        public long maxLag;
+
+        @Override @NonNull
+        public String toString() {
+            return published + " published, " + dropped + " dropped, ring " + size +
+                    (slowest != null ? ", slowest " + slowest + " " + maxLag + " behind" : "");
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final CopyOnWriteArrayList<Consumer> consumers = new CopyOnWriteArrayList<>();
+    // Sequence of the last published slot
+    private final AtomicLong published = new AtomicLong(-1);
+    // Lowest consumer sequence seen by the producer, which saves looking at all consumers
+    private long gatingSequence = -1;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object lock = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    public FrameRing() {
+        this(DEFAULT_SIZE);
+    }
+
+    /** @param size Number of slots, rounded up to a power of two */
+    public FrameRing(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++)
+            slots[i] = new Slot();
+        mask = capacity - 1;
+    }
+
+    /** Starts reading at the next published frame. The name shows in the stats */
+    public Consumer addConsumer(String name) {
+        Consumer consumer = new Consumer(name, published.get());
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    /** Stops the consumer from holding back the producer */
+    public void removeConsumer(Consumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * Returns the slot for the next frame, emptied, or null if the slowest consumer has not read
+     * it yet. The frame is dropped in that case. Called by the producer only.
+     */
+    public Slot claim() {
+        long next = published.get() + 1;
+        long wrapPoint = next - slots.length;
+        if (wrapPoint > gatingSequence) {
+            long min = next - 1;
+            for (Consumer consumer : consumers)
+                min = Math.min(min, consumer.sequence.get());
+            gatingSequence = min;
+            if (wrapPoint > min) {
+                dropped.incrementAndGet();
+                for (Consumer consumer : consumers)
+                    consumer.dropped.incrementAndGet();
+                return null;
+            }
+        }
+        Slot slot = slots[(int) (next & mask)];
+        slot.messages.reset();
+        return slot;
+    }
+
+    /** Makes the slot returned by claim() visible to the consumers */
+    public void publish() {
+        published.set(published.get() + 1);
+        if (waiters.get() > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.published = published.get() + 1;
+        stats.dropped = dropped.get();
+        stats.size = slots.length;
+        for (Consumer consumer : consumers) {
+            long lag = consumer.getLag();
+            if (stats.slowest == null || lag > stats.maxLag) {
+                stats.slowest = consumer.name;
+                stats.maxLag = lag;
+            }
+        }
+        return stats;
+    }
+}
@@ -6,7 +6,6 @@
  */
 package org.opendroneid.android.bluetooth;
 
-import android.bluetooth.le.ScanResult;
 import android.util.Log;
 
 import org.opendroneid.android.Constants;
@@ -15,6 +14,8 @@ import org.opendroneid.android.data.Connection;
 import org.opendroneid.android.data.Identification;
 import org.opendroneid.android.data.AuthenticationData;
 import org.opendroneid.android.data.LocationData;
+import org.opendroneid.android.data.PositionIndex;
+import org.opendroneid.android.data.SearchIndex;
 import org.opendroneid.android.data.SelfIdData;
 import org.opendroneid.android.data.SystemData;
 import org.opendroneid.android.data.OperatorIdData;
@@ -31,6 +32,9 @@ public class OpenDroneIdDataManager {
     public android.location.Location receiverLocation;
 
     private final Callback callback;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final PositionIndex positionIndex = new PositionIndex();
+    private volatile Clock clock = Clock.SYSTEM;
 
     public static class Callback {
         public void onNewAircraft(AircraftObject object) {}
@@ -40,54 +44,48 @@ public class OpenDroneIdDataManager {
         this.callback = callback;
     }
 
+    public void setClock(Clock clock) { this.clock = clock; }
+
+    public Clock getClock() { return clock; }
+
     public ConcurrentHashMap<Long, AircraftObject> getAircraft() {
         return aircraft;
     }
 
-    void receiveDataBluetooth(byte[] data, ScanResult result, LogMessageEntry logMessageEntry,
-                              String transportType) {
-        String macAddress = result.getDevice().getAddress();
-        String macAddressCleaned = macAddress.replace(":", "");
-        long macAddressLong = Long.parseLong(macAddressCleaned,16);
+    public SearchIndex getSearchIndex() { return searchIndex; }
 
-        OpenDroneIdParser.Message<?> message =
-                OpenDroneIdParser.parseData(data, 6, result.getTimestampNanos(), logMessageEntry, receiverLocation);
-        if (message == null)
-            return;
-        receiveData(result.getTimestampNanos(), macAddress, macAddressLong, result.getRssi(),
-                    message, logMessageEntry, transportType);
+    public PositionIndex getPositionIndex() { return positionIndex; }
+
+    /** Wall clock time of the reception of the frame: the recorded time for replayed frames */
+    public long receivedMillis(RawFrame frame) {
+        return frame.isReplayed() ? frame.replayTimeMillis : clock.currentTimeMillis();
     }
 
-    void receiveDataNaN(byte[] data, int peerHash, long timeNano, LogMessageEntry logMessageEntry,
-                        String transportType) {
-        OpenDroneIdParser.Message<?> message =
-                OpenDroneIdParser.parseData(data, 1, timeNano, logMessageEntry, receiverLocation);
-        if (message == null)
-            return;
-        receiveData(timeNano, "NaN ID: " + peerHash, peerHash, 0, message, logMessageEntry, transportType);
+    public void receiveFrame(RawFrame frame, LogMessageEntry logMessageEntry) {
+        receiveFrame(frame, logMessageEntry, receivedMillis(frame));
     }
 
-    void receiveDataWiFiBeacon(byte[] data, String mac, long macLong, int rssi, long timeNano,
-                               LogMessageEntry logMessageEntry, String transportType) {
+    public void receiveFrame(RawFrame frame, LogMessageEntry logMessageEntry, long receivedMillis) {
         OpenDroneIdParser.Message<?> message =
-                OpenDroneIdParser.parseData(data, 1, timeNano, logMessageEntry, receiverLocation);
+                OpenDroneIdParser.parseData(frame.data, frame.offset, frame.timestampNanos,
+                                            logMessageEntry, receiverLocation);
         if (message == null)
             return;
-        receiveData(timeNano, mac, macLong, rssi, message, logMessageEntry, transportType);
+        receiveData(frame.timestampNanos, receivedMillis, frame.endpoint, frame.endpointKey,
+                    frame.rssi, message, logMessageEntry, frame.transportType);
     }
 
     @SuppressWarnings("unchecked")
-    void receiveData(long timeNano, String macAddress, long macAddressLong, int rssi,
+    private void receiveData(long timeNano, long currentTime, String macAddress, long macAddressLong, int rssi,
                      OpenDroneIdParser.Message<?> message, LogMessageEntry logMessageEntry, String transportType) {
 
         // Handle connection
         boolean newAircraft = false;
         AircraftObject ac = aircraft.get(macAddressLong);
         if (ac == null) {
-            ac = createNewAircraft(macAddress, macAddressLong);
+            ac = createNewAircraft(macAddress, macAddressLong, currentTime);
             newAircraft = true;
         }
-        long currentTime = System.currentTimeMillis();
         ac.getConnection().msgDelta = currentTime - ac.getConnection().lastSeen;
         ac.getConnection().lastSeen = currentTime;
         ac.getConnection().rssi = rssi;
@@ -115,6 +113,7 @@ public class OpenDroneIdDataManager {
         switch (message.header.type) {
             case BASIC_ID:
                 handleBasicId(ac, (OpenDroneIdParser.Message<OpenDroneIdParser.BasicId>) message);
+                searchIndex.update(ac);
                 break;
             case LOCATION:
                 handleLocation(ac, (OpenDroneIdParser.Message<OpenDroneIdParser.Location>) message);
@@ -124,20 +123,22 @@ public class OpenDroneIdDataManager {
                 break;
             case SELFID:
                 handleSelfID(ac, (OpenDroneIdParser.Message<OpenDroneIdParser.SelfID>) message);
+                searchIndex.update(ac);
                 break;
             case SYSTEM:
                 handleSystem(ac, (OpenDroneIdParser.Message<OpenDroneIdParser.SystemMsg>) message);
                 break;
             case OPERATOR_ID:
                 handleOperatorID(ac, (OpenDroneIdParser.Message<OpenDroneIdParser.OperatorID>) message);
+                searchIndex.update(ac);
                 break;
         }
     }
 
-    private AircraftObject createNewAircraft(String macAddress, long macAddressLong) {
+    private AircraftObject createNewAircraft(String macAddress, long macAddressLong, long currentTime) {
         AircraftObject ac = new AircraftObject(macAddressLong);
         Connection connection = new Connection();
-        connection.firstSeen = System.currentTimeMillis();
+        connection.firstSeen = currentTime;
         connection.macAddress = macAddress;
         ac.connection.setValue(connection);
 
@@ -205,6 +206,9 @@ public class OpenDroneIdDataManager {
         data.setTimeAccuracy(raw.getTimeAccuracy());
         data.setDistance(raw.distance);
         ac.location.setValue(data);
+        positionIndex.update(ac);
+        if (data.getLatitude() != 0.0 || data.getLongitude() != 0.0)
+            ac.getTrail().add(data.getLatitude(), data.getLongitude());
     }
 
     private void handleAuthentication(AircraftObject ac, OpenDroneIdParser.Message<OpenDroneIdParser.Authentication> message) {
@@ -253,6 +257,7 @@ public class OpenDroneIdDataManager {
         data.setClassValue(raw.classValue);
         data.setOperatorAltitudeGeo(raw.getOperatorAltitudeGeo());
         ac.system.setValue(data);
+        positionIndex.update(ac);
     }
 
     private void handleOperatorID(AircraftObject ac, OpenDroneIdParser.Message<OpenDroneIdParser.OperatorID> message) {
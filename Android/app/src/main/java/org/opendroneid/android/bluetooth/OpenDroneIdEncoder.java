@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+import org.opendroneid.android.Constants;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes Open Drone ID messages in the wire format understood by {@link OpenDroneIdParser}.
+ * Used for generating synthetic traffic. All methods write exactly one message of
+ * Constants.MAX_MESSAGE_SIZE bytes at the current position of the buffer.
+ */
+public class OpenDroneIdEncoder {
+    private static final int PROTOCOL_VERSION = 1;
+
+    // Bluetooth legacy advertising header: length, service data AD type, UUID 0xFFFA, app code
+    private static final int BT_HEADER_SIZE = 5;
+
+    private static ByteBuffer wrap(byte[] buffer, int offset) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, Constants.MAX_MESSAGE_SIZE);
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        return byteBuffer;
+    }
+
+    private static byte header(OpenDroneIdParser.Type type) {
+        return (byte) ((type.id << 4) | PROTOCOL_VERSION);
+    }
+
+    private static void putText(ByteBuffer byteBuffer, byte[] text, int size) {
+        int length = Math.min(text.length, size);
+        byteBuffer.put(text, 0, length);
+        for (int i = length; i < size; i++)
+            byteBuffer.put((byte) 0);
+    }
+
+    private static int encodeAltitude(double altitude) {
+        return (int) Math.round((altitude + 1000) * 2) & 0xFFFF;
+    }
+
+    private static int encodeLatLon(double value) {
+        return (int) Math.round(value * 1e7);
+    }
+
+    public static void encodeBasicId(byte[] buffer, int offset, int idType, int uaType, byte[] uasId) {
+        ByteBuffer byteBuffer = wrap(buffer, offset);
+        byteBuffer.put(header(OpenDroneIdParser.Type.BASIC_ID));
+        byteBuffer.put((byte) ((idType << 4) | (uaType & 0x0F)));
+        putText(byteBuffer, uasId, Constants.MAX_ID_BYTE_SIZE);
+    }
+
+    public static void encodeLocation(byte[] buffer, int offset, int status, double direction,
+                                      double speedHorizontal, double speedVertical,
+                                      double latitude, double longitude, double altitudeGeodetic,
+                                      double height, int locationTimestamp) {
+        ByteBuffer byteBuffer = wrap(buffer, offset);
+        byteBuffer.put(header(OpenDroneIdParser.Type.LOCATION));
+
+        int ewDirection = direction >= 180 ? 1 : 0;
+        int directionValue = (int) Math.round(ewDirection == 1 ? direction - 180 : direction) & 0xFF;
+        int speedMult = speedHorizontal > 255 * 0.25 ? 1 : 0;
+        int speedValue = speedMult == 0
+                ? (int) Math.round(speedHorizontal / 0.25)
+                : (int) Math.round((speedHorizontal - 255 * 0.25) / 0.75);
+        speedValue = Math.max(0, Math.min(254, speedValue));
+        int heightType = 0; // Height above takeoff
+
+        byteBuffer.put((byte) ((status << 4) | (heightType << 2) | (ewDirection << 1) | speedMult));
+        byteBuffer.put((byte) directionValue);
+        byteBuffer.put((byte) speedValue);
+        byteBuffer.put((byte) Math.round(speedVertical / 0.5));
+        byteBuffer.putInt(encodeLatLon(latitude));
+        byteBuffer.putInt(encodeLatLon(longitude));
+        byteBuffer.putShort((short) encodeAltitude(altitudeGeodetic)); // Pressure altitude
+        byteBuffer.putShort((short) encodeAltitude(altitudeGeodetic));
+        byteBuffer.putShort((short) encodeAltitude(height));
+        byteBuffer.put((byte) ((4 << 4) | 10)); // Vertical < 10 m, horizontal < 10 m
+        byteBuffer.put((byte) ((4 << 4) | 3)); // Baro < 10 m, speed < 1 m/s
+        byteBuffer.putShort((short) locationTimestamp);
+        byteBuffer.put((byte) 2); // Time accuracy 0.2 s
+        byteBuffer.put((byte) 0);
+    }
+
+    public static void encodeSelfId(byte[] buffer, int offset, int descriptionType, byte[] description) {
+        ByteBuffer byteBuffer = wrap(buffer, offset);
+        byteBuffer.put(header(OpenDroneIdParser.Type.SELFID));
+        byteBuffer.put((byte) descriptionType);
+        putText(byteBuffer, description, Constants.MAX_STRING_BYTE_SIZE);
+    }
+
+    public static void encodeSystem(byte[] buffer, int offset, double operatorLatitude,
+                                    double operatorLongitude, double operatorAltitude) {
+        ByteBuffer byteBuffer = wrap(buffer, offset);
+        byteBuffer.put(header(OpenDroneIdParser.Type.SYSTEM));
+        byteBuffer.put((byte) ((1 << 2) | 0)); // EU classification, take-off location
+        byteBuffer.putInt(encodeLatLon(operatorLatitude));
+        byteBuffer.putInt(encodeLatLon(operatorLongitude));
+        byteBuffer.putShort((short) 1); // Area count
+        byteBuffer.put((byte) 0); // Area radius
+        byteBuffer.putShort((short) encodeAltitude(-1000)); // Area ceiling
+        byteBuffer.putShort((short) encodeAltitude(-1000)); // Area floor
+        byteBuffer.put((byte) ((1 << 4) | 2)); // EU open category, class 1
+        byteBuffer.putShort((short) encodeAltitude(operatorAltitude));
+        byteBuffer.putInt(0); // Timestamp
+        byteBuffer.put((byte) 0);
+    }
+
+    public static void encodeOperatorId(byte[] buffer, int offset, int operatorIdType, byte[] operatorId) {
+        ByteBuffer byteBuffer = wrap(buffer, offset);
+        byteBuffer.put(header(OpenDroneIdParser.Type.OPERATOR_ID));
+        byteBuffer.put((byte) operatorIdType);
+        putText(byteBuffer, operatorId, Constants.MAX_ID_BYTE_SIZE);
+    }
+
+    /**
+     * Writes a message pack header for the given number of messages. The messages themselves
+     * must be encoded at offset + 3 + i * Constants.MAX_MESSAGE_SIZE.
+     */
+    public static void encodeMessagePackHeader(byte[] buffer, int offset, int messagesInPack) {
+        buffer[offset] = header(OpenDroneIdParser.Type.MESSAGE_PACK);
+        buffer[offset + 1] = (byte) Constants.MAX_MESSAGE_SIZE;
+        buffer[offset + 2] = (byte) messagesInPack;
+    }
+
+    public static int messagePackSize(int messagesInPack) {
+        return 3 + messagesInPack * Constants.MAX_MESSAGE_SIZE;
+    }
+
+    /**
+     * Allocates a Bluetooth advertising frame holding messageSize bytes of message data and
+     * fills in the service data header and the message counter. Returns the frame, the
+     * message data starts at {@link #bluetoothMessageOffset()}.
+     */
+    public static byte[] newBluetoothFrame(int messageSize, int msgCounter) {
+        byte[] frame = new byte[BT_HEADER_SIZE + 1 + messageSize];
+        frame[0] = (byte) (frame.length - 1);
+        frame[1] = 0x16; // Service Data - 16-bit UUID
+        frame[2] = (byte) 0xFA;
+        frame[3] = (byte) 0xFF;
+        frame[4] = 0x0D; // Open Drone ID application code
+        frame[5] = (byte) msgCounter;
+        return frame;
+    }
+
+    public static int bluetoothMessageOffset() { return BT_HEADER_SIZE + 1; }
+
+    /**
+     * Allocates a Wi-Fi NaN or Beacon frame holding messageSize bytes of message data, preceded
+     * by the message counter. The message data starts at offset 1.
+     */
+    public static byte[] newWiFiFrame(int messageSize, int msgCounter) {
+        byte[] frame = new byte[1 + messageSize];
+        frame[0] = (byte) msgCounter;
+        return frame;
+    }
+}
@@ -13,6 +13,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import org.opendroneid.android.Constants;
+import org.opendroneid.android.log.CsvEncoder;
 import org.opendroneid.android.log.LogMessageEntry;
 
 public class OpenDroneIdParser {
@@ -66,7 +67,7 @@ public class OpenDroneIdParser {
     }
 
     public interface Payload {
-        String toCsvString();
+        void appendCsv(CsvEncoder csv);
     }
 
     private static final double LAT_LONG_MULTIPLIER = 1e-7;
@@ -77,6 +78,10 @@ public class OpenDroneIdParser {
         int uaType;
         final byte[] uasId = new byte[Constants.MAX_ID_BYTE_SIZE];
 
+        public int getIdType() { return idType; }
+        public int getUaType() { return uaType; }
+        public byte[] getUasId() { return uasId; }
+
         public static String csvHeader() {
             return "idType" + DELIM
                     + "uaType" + DELIM
@@ -84,10 +89,10 @@ public class OpenDroneIdParser {
         }
 
         @Override
-        public String toCsvString() {
-            return idType + DELIM
-                    + uaType + DELIM
-                    + new String(uasId) + DELIM;
+        public void appendCsv(CsvEncoder csv) {
+            csv.append(idType).delim()
+                    .append(uaType).delim()
+                    .appendText(uasId).delim();
         }
 
         @Override @NonNull
@@ -135,22 +140,23 @@ public class OpenDroneIdParser {
                 return value + 180;
         }
 
-        double getDirection() { return calcDirection(Direction, EWDirection); }
-        double getSpeedHori() { return calcSpeed(speedHori, speedMult); }
+        public int getStatus() { return status; }
+        public double getDirection() { return calcDirection(Direction, EWDirection); }
+        public double getSpeedHori() { return calcSpeed(speedHori, speedMult); }
 
-        double getSpeedVert() { return SPEED_VERTICAL_MULTIPLIER * speedVert; }
+        public double getSpeedVert() { return SPEED_VERTICAL_MULTIPLIER * speedVert; }
 
-        double getLatitude() {
+        public double getLatitude() {
             return LAT_LONG_MULTIPLIER * droneLat;
         }
-        double getLongitude() {
+        public double getLongitude() {
             return LAT_LONG_MULTIPLIER * droneLon;
         }
 
         static double calcAltitude(int value) { return (double) value / 2 - 1000; }
-        double getAltitudePressure() { return calcAltitude(altitudePressure); }
-        double getAltitudeGeodetic() { return calcAltitude(altitudeGeodetic); }
-        double getHeight() { return calcAltitude(height); }
+        public double getAltitudePressure() { return calcAltitude(altitudePressure); }
+        public double getAltitudeGeodetic() { return calcAltitude(altitudeGeodetic); }
+        public double getHeight() { return calcAltitude(height); }
 
         double getTimeAccuracy() { return timeAccuracy * 0.1; }
 
@@ -177,26 +183,26 @@ public class OpenDroneIdParser {
         }
 
         @Override
-        public String toCsvString() {
-            return status + DELIM
-                    + heightType + DELIM
-                    + EWDirection + DELIM
-                    + speedMult + DELIM
-                    + Direction + DELIM
-                    + speedHori + DELIM
-                    + speedVert + DELIM
-                    + droneLat + DELIM
-                    + droneLon + DELIM
-                    + altitudePressure + DELIM
-                    + altitudeGeodetic + DELIM
-                    + height + DELIM
-                    + horizontalAccuracy + DELIM
-                    + verticalAccuracy + DELIM
-                    + baroAccuracy + DELIM
-                    + speedAccuracy + DELIM
-                    + timestamp + DELIM
-                    + timeAccuracy + DELIM
-                    + distance + DELIM;
+        public void appendCsv(CsvEncoder csv) {
+            csv.append(status).delim()
+                    .append(heightType).delim()
+                    .append(EWDirection).delim()
+                    .append(speedMult).delim()
+                    .append(Direction).delim()
+                    .append(speedHori).delim()
+                    .append(speedVert).delim()
+                    .append(droneLat).delim()
+                    .append(droneLon).delim()
+                    .append(altitudePressure).delim()
+                    .append(altitudeGeodetic).delim()
+                    .append(height).delim()
+                    .append(horizontalAccuracy).delim()
+                    .append(verticalAccuracy).delim()
+                    .append(baroAccuracy).delim()
+                    .append(speedAccuracy).delim()
+                    .append(timestamp).delim()
+                    .append(timeAccuracy).delim()
+                    .append(distance).delim();
         }
         
         @Override @NonNull
@@ -244,22 +250,14 @@ public class OpenDroneIdParser {
                     + "authData" + DELIM;
         }
 
-        private String authDataToString() {
-            StringBuilder sb = new StringBuilder();
-            for (byte authDatum : authData) {
-                sb.append(String.format("%02X ", authDatum));
-            }
-            return sb.toString();
-        }
-
         @Override
-        public String toCsvString() {
-            return authType + DELIM
-                    + authDataPage + DELIM
-                    + authLastPageIndex + DELIM
-                    + authLength + DELIM
-                    + authTimestamp + DELIM
-                    + authDataToString() + DELIM;
+        public void appendCsv(CsvEncoder csv) {
+            csv.append(authType).delim()
+                    .append(authDataPage).delim()
+                    .append(authLastPageIndex).delim()
+                    .append(authLength).delim()
+                    .append(authTimestamp).delim()
+                    .appendHex(authData, authData.length).delim();
         }
 
         @Override @NonNull
@@ -279,15 +277,18 @@ public class OpenDroneIdParser {
         int descriptionType;
         final byte[] operationDescription = new byte[Constants.MAX_STRING_BYTE_SIZE];
 
+        public int getDescriptionType() { return descriptionType; }
+        public byte[] getOperationDescription() { return operationDescription; }
+
         public static String csvHeader() {
             return "descriptionType" + DELIM
                     + "operationDescription" + DELIM;
         }
 
         @Override
-        public String toCsvString() {
-            return descriptionType + DELIM
-                    + new String(operationDescription) + DELIM;
+        public void appendCsv(CsvEncoder csv) {
+            csv.append(descriptionType).delim()
+                    .appendText(operationDescription).delim();
         }
 
         @Override @NonNull
@@ -312,18 +313,21 @@ public class OpenDroneIdParser {
         int classValue;
         int operatorAltitudeGeo;
 
-        double getLatitude() {
+        public double getLatitude() {
             return LAT_LONG_MULTIPLIER * operatorLatitude;
         }
-        double getLongitude() {
+        public double getLongitude() {
             return LAT_LONG_MULTIPLIER * operatorLongitude;
         }
 
-        int getAreaRadius() { return areaRadius * 10; }
+        public int getAreaCount() { return areaCount; }
+        public int getAreaRadius() { return areaRadius * 10; }
         static double calcAltitude(int value) { return (double) value / 2 - 1000; }
-        double getAreaCeiling() { return calcAltitude(areaCeiling); }
-        double getAreaFloor() { return calcAltitude(areaFloor); }
-        double getOperatorAltitudeGeo() { return calcAltitude(operatorAltitudeGeo); }
+        public double getAreaCeiling() { return calcAltitude(areaCeiling); }
+        public double getAreaFloor() { return calcAltitude(areaFloor); }
+        public int getCategory() { return category; }
+        public int getClassValue() { return classValue; }
+        public double getOperatorAltitudeGeo() { return calcAltitude(operatorAltitudeGeo); }
 
         public static String csvHeader() {
             return "operatorLocationType" + DELIM
@@ -340,18 +344,18 @@ public class OpenDroneIdParser {
         }
 
         @Override
-        public String toCsvString() {
-            return operatorLocationType + DELIM
-                    + classificationType + DELIM
-                    + operatorLatitude + DELIM
-                    + operatorLongitude + DELIM
-                    + areaCount + DELIM
-                    + areaRadius + DELIM
-                    + areaCeiling + DELIM
-                    + areaFloor + DELIM
-                    + category + DELIM
-                    + classValue + DELIM
-                    + operatorAltitudeGeo + DELIM;
+        public void appendCsv(CsvEncoder csv) {
+            csv.append(operatorLocationType).delim()
+                    .append(classificationType).delim()
+                    .append(operatorLatitude).delim()
+                    .append(operatorLongitude).delim()
+                    .append(areaCount).delim()
+                    .append(areaRadius).delim()
+                    .append(areaCeiling).delim()
+                    .append(areaFloor).delim()
+                    .append(category).delim()
+                    .append(classValue).delim()
+                    .append(operatorAltitudeGeo).delim();
         }
 
         @Override @NonNull
@@ -376,15 +380,18 @@ public class OpenDroneIdParser {
         int operatorIdType;
         final byte[] operatorId = new byte[Constants.MAX_ID_BYTE_SIZE];
 
+        public int getOperatorIdType() { return operatorIdType; }
+        public byte[] getOperatorId() { return operatorId; }
+
         public static String csvHeader() {
             return "operatorIdType" + DELIM
                     + "operatorId" + DELIM;
         }
 
         @Override
-        public String toCsvString() {
-            return operatorIdType + DELIM
-                    + new String(operatorId) + DELIM;
+        public void appendCsv(CsvEncoder csv) {
+            csv.append(operatorIdType).delim()
+                    .appendText(operatorId).delim();
         }
         @Override @NonNull
         public String toString() {
@@ -409,10 +416,10 @@ public class OpenDroneIdParser {
                     '}';
         }
 
-        @Override public String toCsvString() { return null; }
+        @Override public void appendCsv(CsvEncoder csv) { }
     }
 
-    public static class Message<T extends Payload> implements Comparable<Message<T>> {
+    public static class Message<T extends Payload> {
         final int msgCounter;
         final long timestamp;
         public final Header header;
@@ -424,18 +431,6 @@ public class OpenDroneIdParser {
             this.payload = payload;
             this.timestamp = timestamp;
         }
-
-        @Override
-        public int compareTo(@NonNull Message o)
-        {
-            if (this.header.type == Type.AUTH && o.header.type == Type.AUTH ) {
-                Authentication authThis = (OpenDroneIdParser.Authentication) this.payload;
-                Authentication authO = (OpenDroneIdParser.Authentication) o.payload;
-                return (authThis.authDataPage - authO.authDataPage);
-            } else {
-                return this.header.type.compareTo(o.header.type);
-            }
-        }
     }
 
     static Message<Payload> parseData(byte[] payload, int offset, long timestamp,
@@ -448,6 +443,32 @@ public class OpenDroneIdParser {
         return parseMessage(payload, offset, timestamp, logMessageEntry, receiverLocation, msgCounter);
     }
 
+    /**
+     * Decodes a frame into the log entry only, without updating any aircraft. The messages of a
+     * message pack are expanded into the entry, the same way as the data manager does it.
+     */
+    public static void parseForLog(byte[] payload, int offset, long timestamp,
+                                   LogMessageEntry logMessageEntry,
+                                   android.location.Location receiverLocation) {
+        Message<Payload> message = parseData(payload, offset, timestamp, logMessageEntry, receiverLocation);
+        if (message == null || message.header.type != Type.MESSAGE_PACK)
+            return;
+
+        MessagePack pack = (MessagePack) message.payload;
+        if (pack == null || pack.messageSize != Constants.MAX_MESSAGE_SIZE ||
+            pack.messagesInPack <= 0 || pack.messagesInPack > Constants.MAX_MESSAGES_IN_PACK)
+            return;
+
+        for (int i = 0; i < pack.messagesInPack; i++) {
+            int packOffset = i * pack.messageSize;
+            byte[] data = Arrays.copyOfRange(pack.messages, packOffset, packOffset + pack.messageSize);
+            if (parseMessage(data, 0, timestamp, logMessageEntry, receiverLocation, message.msgCounter) == null)
+                break;
+        }
+        // Restore the msgVersion in case the messages embedded in the pack had a different value
+        logMessageEntry.setMsgVersion(message.header.version);
+    }
+
     static Message<Payload> parseMessage(byte[] payload, int offset, long timestamp,
                                          LogMessageEntry logMessageEntry,
                                          android.location.Location receiverLocation, int msgCounter) {
@@ -543,12 +564,11 @@ public class OpenDroneIdParser {
         location.timeAccuracy = byteBuffer.get() & 0x0F;
 
         // Use an older retrieved receiver location to calculate the distance to the drone
-        if (location.droneLat != 0 && location.droneLon != 0) {
+        if (receiverLocation != null && location.droneLat != 0 && location.droneLon != 0) {
             android.location.Location droneLoc = new android.location.Location("");
             droneLoc.setLatitude(location.getLatitude());
             droneLoc.setLongitude(location.getLongitude());
-            if (receiverLocation != null)
-                location.distance = receiverLocation.distanceTo(droneLoc);
+            location.distance = receiverLocation.distanceTo(droneLoc);
         }
 
         return location;
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+import androidx.annotation.NonNull;
+
+/**
+ * One frame as received by a {@link Transport}, before any decoding has been done.
+ */
+public class RawFrame {
+    public final String transportType;
+    // Human readable address of the sender, e.g. the Bluetooth MAC or the Wi-Fi BSSID
+    public final String endpoint;
+    // Key identifying the sender. All frames with the same key belong to the same aircraft
+    public final long endpointKey;
+    public final int rssi;
+    // Monotonic receive time, in the SystemClock.elapsedRealtimeNanos() time base
+    public final long timestampNanos;
+    public final byte[] data;
+    // Offset of the first message in data. The message counter is located just before it
+    public final int offset;
+    // Wall clock time in the recording for frames replayed from a log, zero for received frames
+    public final long replayTimeMillis;
+
+    public RawFrame(String transportType, String endpoint, long endpointKey, int rssi,
+                    long timestampNanos, byte[] data, int offset) {
+        this(transportType, endpoint, endpointKey, rssi, timestampNanos, data, offset, 0);
+    }
+
+    public RawFrame(String transportType, String endpoint, long endpointKey, int rssi,
+                    long timestampNanos, byte[] data, int offset, long replayTimeMillis) {
+        this.transportType = transportType;
+        this.endpoint = endpoint;
+        this.endpointKey = endpointKey;
+        this.rssi = rssi;
+        this.timestampNanos = timestampNanos;
+        this.data = data;
+        this.offset = offset;
+        this.replayTimeMillis = replayTimeMillis;
+    }
+
+    /** Replayed frames update the aircraft, but are not logged or stored again */
+    public boolean isReplayed() { return replayTimeMillis != 0; }
+
+    @Override @NonNull
+    public String toString() {
+        return "RawFrame{" +
+                "transportType=" + transportType +
+                ", endpoint=" + endpoint +
+                ", rssi=" + rssi +
+                ", timestampNanos=" + timestampNanos +
+                (isReplayed() ? ", replayed" : "") +
+                ", length=" + (data != null ? data.length : 0) +
+                '}';
+    }
+}
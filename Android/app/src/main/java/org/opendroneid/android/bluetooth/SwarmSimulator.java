@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.opendroneid.android.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Transport} producing valid Open Drone ID frames for a configurable number of
+ * virtual aircraft, for load testing the receiver.
+ *
+ * The aircraft fly circles around a common center, like a drone light show. Each aircraft
+ * transmits a Location message once per second and the static messages (Basic ID, Self ID,
+ * System and Operator ID) once every three seconds. With message packs enabled, all messages
+ * due in the same second are sent in one pack. Senders can optionally
+ * rotate their MAC address (or peer identity for Wi-Fi), which makes them show up as new aircraft.
+ *
+ * Frames are either generated in real time on a background thread (startScan()), or as fast
+ * as possible on the calling thread (runBlocking()) for measuring maximum throughput.
+ */
+public class SwarmSimulator implements Transport {
+    private static final String TAG = "SwarmSimulator";
+
+    private static final long LOCATION_INTERVAL_MS = 1000;
+    private static final int STATIC_MESSAGE_PERIOD = 3; // In units of LOCATION_INTERVAL_MS
+    private static final long TICK_MS = 50;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    public static class Config {
+        public int aircraftCount = 200;
+        public String transportType = BT4;
+        // Only used for BT5, NaN and Beacon. Bluetooth legacy frames are too small for packs
+        public boolean useMessagePacks = true;
+        // Zero disables MAC address rotation
+        public int macRotationSeconds = 0;
+        public double centerLatitude = 59.3293;
+        public double centerLongitude = 18.0686;
+        public double radiusMeters = 150;
+        // Frames waiting for the ingest thread above this limit are dropped
+        public int maxPendingFrames = 5000;
+        public long seed = 1;
+    }
+
+    public static class Stats {
+        public long generated;
+        public long delivered;
+        public long dropped;
+        public int maxPending;
+        public long identities;
+        public long elapsedMillis;
+        public long memoryDeltaBytes;
+
+        public double getThroughput() {
+            return elapsedMillis > 0 ? delivered * 1000.0 / elapsedMillis : 0;
+        }
+
+        public long getMemoryPerAircraft() {
+            return identities > 0 ? memoryDeltaBytes / identities : 0;
+        }
+
+        @Override @NonNull
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d frames generated, %d delivered, %d dropped in %.1f s: %.0f frames/s, " +
+                    "max %d pending, %d aircraft identities, ~%d bytes per aircraft",
+                    generated, delivered, dropped, elapsedMillis / 1000.0, getThroughput(),
+                    maxPending, identities, getMemoryPerAircraft());
+        }
+    }
+
+    private static class VirtualAircraft {
+        final int index;
+        final double radius;
+        final double phase;
+        final double angularSpeed; // rad/s
+        final double baseHeight;
+        final long firstTransmitMs;
+        final byte[] uasId;
+        final byte[] operatorId;
+        final byte[] description;
+        long macAddress;
+        long macRotationDueMs;
+        long nextTransmitMs;
+        int secondCounter;
+        int msgCounter;
+
+        VirtualAircraft(int index, Config config, Random random) {
+            this.index = index;
+            radius = config.radiusMeters * (0.2 + 0.8 * random.nextDouble());
+            phase = random.nextDouble() * 2 * Math.PI;
+            angularSpeed = (random.nextBoolean() ? 1 : -1) * (2 + 8 * random.nextDouble()) / radius;
+            baseHeight = 30 + 90 * random.nextDouble();
+            firstTransmitMs = (long) (random.nextDouble() * LOCATION_INTERVAL_MS);
+            nextTransmitMs = firstTransmitMs;
+            uasId = String.format(Locale.US, "SIM%017d", index).getBytes(StandardCharsets.US_ASCII);
+            operatorId = String.format(Locale.US, "SIMOP%05d", index).getBytes(StandardCharsets.US_ASCII);
+            description = ("Swarm drone " + index).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Config config;
+    private final Executor deliveryExecutor;
+    private final VirtualAircraft[] swarm;
+    private final Random random;
+    private FrameListener frameListener;
+    private ScheduledExecutorService generator;
+    // Guarded by swarm, like the state of the aircraft
+    private long simulatedMs;
+    private long wallStart;
+    // Simulated time when the current generator started, set on its thread before the first tick
+    private long simulatedAtStart;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final Stats stats = new Stats();
+    private volatile long usedMemoryAtStart;
+
+    /**
+     * @param deliveryExecutor Executor on which frames are handed to the frame listener. In the
+     *                         app this must post to the main thread, since the data manager
+     *                         updates LiveData objects.
+     */
+    public SwarmSimulator(Config config, FrameListener frameListener, Executor deliveryExecutor) {
+        this.config = config;
+        this.frameListener = frameListener;
+        this.deliveryExecutor = deliveryExecutor;
+        random = new Random(config.seed);
+        swarm = new VirtualAircraft[config.aircraftCount];
+        for (int i = 0; i < swarm.length; i++) {
+            swarm[i] = new VirtualAircraft(i, config, random);
+            rotateMacAddress(swarm[i], 0);
+        }
+    }
+
+    @Override
+    public void setFrameListener(FrameListener listener) { this.frameListener = listener; }
+
+    @Override
+    public synchronized void startScan() {
+        if (generator != null)
+            return;
+        resetStats();
+        // Simulated time goes on from where the previous run left it, so the aircraft keep
+        // their transmit schedule instead of catching up on the time they were stopped
+        wallStart = System.currentTimeMillis();
+        generator = Executors.newSingleThreadScheduledExecutor();
+        // Runs before the first tick, and not on the calling thread, usually the main thread
+        generator.execute(() -> {
+            takeMemoryBaseline();
+            synchronized (swarm) {
+                simulatedAtStart = simulatedMs;
+            }
+        });
+        generator.scheduleAtFixedRate(() -> {
+            long target = simulatedAtStart + System.currentTimeMillis() - wallStart;
+            // A tick of the previous generator may still be running
+            synchronized (swarm) {
+                advanceTo(target, true);
+            }
+        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+        Log.i(TAG, "Simulating " + swarm.length + " aircraft on " + config.transportType);
+    }
+
+    @Override
+    public synchronized void stopScan() {
+        if (generator == null)
+            return;
+        generator.shutdownNow();
+        generator = null;
+        Log.i(TAG, "Simulation stopped: " + getStats());
+    }
+
+    /**
+     * Generates durationMs of simulated traffic as fast as possible, delivering every frame
+     * directly on the calling thread. Returns the statistics for the run.
+     */
+    public Stats runBlocking(long durationMs) {
+        resetStats();
+        takeMemoryBaseline();
+        long start = System.nanoTime();
+        synchronized (swarm) {
+            advanceTo(simulatedMs + durationMs, false);
+        }
+        synchronized (stats) {
+            stats.elapsedMillis = (System.nanoTime() - start) / 1000000;
+        }
+        return getStats();
+    }
+
+    public Stats getStats() {
+        Stats copy = new Stats();
+        synchronized (stats) {
+            copy.generated = stats.generated;
+            copy.dropped = stats.dropped;
+            copy.maxPending = stats.maxPending;
+            copy.identities = stats.identities;
+            copy.elapsedMillis = generator != null ? System.currentTimeMillis() - wallStart : stats.elapsedMillis;
+        }
+        copy.delivered = delivered.get();
+        Runtime runtime = Runtime.getRuntime();
+        copy.memoryDeltaBytes = runtime.totalMemory() - runtime.freeMemory() - usedMemoryAtStart;
+        return copy;
+    }
+
+    private void resetStats() {
+        synchronized (stats) {
+            stats.generated = 0;
+            stats.dropped = 0;
+            stats.maxPending = 0;
+            stats.identities = swarm.length;
+            stats.elapsedMillis = 0;
+        }
+        delivered.set(0);
+    }
+
+    /** Collects garbage first so the baseline is not inflated, so never call on the main thread */
+    private void takeMemoryBaseline() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        usedMemoryAtStart = runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void rotateMacAddress(VirtualAircraft aircraft, long now) {
+        // Locally administered random address, as used by advertisers with privacy enabled
+        aircraft.macAddress = (random.nextLong() & 0x3FFFFFFFFFFFL) | 0xC00000000000L;
+        if (config.macRotationSeconds > 0)
+            aircraft.macRotationDueMs = now + config.macRotationSeconds * 1000L
+                    + (long) (random.nextDouble() * config.macRotationSeconds * 1000L);
+    }
+
+    private void advanceTo(long targetMs, boolean async) {
+        while (simulatedMs < targetMs) {
+            long next = Math.min(simulatedMs + TICK_MS, targetMs);
+            for (VirtualAircraft aircraft : swarm) {
+                while (aircraft.nextTransmitMs < next) {
+                    transmit(aircraft, aircraft.nextTransmitMs, async);
+                    aircraft.nextTransmitMs += LOCATION_INTERVAL_MS;
+                }
+            }
+            simulatedMs = next;
+        }
+    }
+
+    private boolean usesPacks() {
+        return config.useMessagePacks && !BT4.equals(config.transportType);
+    }
+
+    private void transmit(VirtualAircraft aircraft, long now, boolean async) {
+        if (config.macRotationSeconds > 0 && now >= aircraft.macRotationDueMs) {
+            rotateMacAddress(aircraft, now);
+            synchronized (stats) {
+                stats.identities++;
+            }
+        }
+
+        boolean sendStatic = aircraft.secondCounter % STATIC_MESSAGE_PERIOD == 0;
+        aircraft.secondCounter++;
+        if (usesPacks()) {
+            int messages = sendStatic ? 5 : 1;
+            emit(aircraft, buildFrame(aircraft, now, sendStatic, -1, messages), now, async);
+        } else {
+            emit(aircraft, buildFrame(aircraft, now, false, OpenDroneIdParser.Type.LOCATION.id, 1), now, async);
+            if (sendStatic) {
+                for (OpenDroneIdParser.Type type : new OpenDroneIdParser.Type[] {
+                        OpenDroneIdParser.Type.BASIC_ID, OpenDroneIdParser.Type.SELFID,
+                        OpenDroneIdParser.Type.SYSTEM, OpenDroneIdParser.Type.OPERATOR_ID })
+                    emit(aircraft, buildFrame(aircraft, now, false, type.id, 1), now, async);
+            }
+        }
+    }
+
+    /**
+     * Builds one frame. With singleType >= 0, the frame holds just that message, otherwise a
+     * message pack with the Location message and optionally the static messages.
+     */
+    private RawFrame buildFrame(VirtualAircraft aircraft, long now, boolean withStatic,
+                                int singleType, int messages) {
+        aircraft.msgCounter = (aircraft.msgCounter + 1) & 0xFF;
+        int messageSize = singleType >= 0 ? Constants.MAX_MESSAGE_SIZE
+                                          : OpenDroneIdEncoder.messagePackSize(messages);
+        boolean bluetooth = BT4.equals(config.transportType) || BT5.equals(config.transportType);
+        byte[] data;
+        int offset;
+        if (bluetooth) {
+            data = OpenDroneIdEncoder.newBluetoothFrame(messageSize, aircraft.msgCounter);
+            offset = OpenDroneIdEncoder.bluetoothMessageOffset();
+        } else {
+            data = OpenDroneIdEncoder.newWiFiFrame(messageSize, aircraft.msgCounter);
+            offset = 1;
+        }
+
+        if (singleType >= 0) {
+            encodeMessage(aircraft, now, singleType, data, offset);
+        } else {
+            OpenDroneIdEncoder.encodeMessagePackHeader(data, offset, messages);
+            int position = offset + 3;
+            encodeMessage(aircraft, now, OpenDroneIdParser.Type.LOCATION.id, data, position);
+            if (withStatic) {
+                for (OpenDroneIdParser.Type type : new OpenDroneIdParser.Type[] {
+                        OpenDroneIdParser.Type.BASIC_ID, OpenDroneIdParser.Type.SELFID,
+                        OpenDroneIdParser.Type.SYSTEM, OpenDroneIdParser.Type.OPERATOR_ID }) {
+                    position += Constants.MAX_MESSAGE_SIZE;
+                    encodeMessage(aircraft, now, type.id, data, position);
+                }
+            }
+        }
+
+        int rssi = -40 - (int) (aircraft.radius / config.radiusMeters * 50) - random.nextInt(6);
+        String endpoint = bluetooth ? formatMac(aircraft.macAddress) : "SIM " + aircraft.index;
+        return new RawFrame(config.transportType, endpoint, aircraft.macAddress, rssi,
+                            now * 1000000L, data, offset);
+    }
+
+    private void encodeMessage(VirtualAircraft aircraft, long now, int type, byte[] data, int offset) {
+        double angle = aircraft.phase + aircraft.angularSpeed * now / 1000.0;
+        if (type == OpenDroneIdParser.Type.LOCATION.id) {
+            double north = aircraft.radius * Math.sin(angle);
+            double east = aircraft.radius * Math.cos(angle);
+            double latitude = config.centerLatitude + north / METERS_PER_DEGREE;
+            double longitude = config.centerLongitude + east /
+                    (METERS_PER_DEGREE * Math.cos(Math.toRadians(config.centerLatitude)));
+            double height = aircraft.baseHeight + 10 * Math.sin(angle * 3);
+            // Direction of travel is tangential to the circle
+            double track = Math.toDegrees(Math.atan2(Math.cos(angle), -Math.sin(angle)));
+            if (aircraft.angularSpeed < 0)
+                track += 180;
+            track = (track % 360 + 360) % 360;
+            double speed = Math.abs(aircraft.angularSpeed) * aircraft.radius;
+            int tenthsOfSecondInHour = (int) ((now / 100) % 36000);
+            OpenDroneIdEncoder.encodeLocation(data, offset, 2, track, speed, 0, latitude, longitude,
+                    height + 20, height, tenthsOfSecondInHour);
+        } else if (type == OpenDroneIdParser.Type.BASIC_ID.id) {
+            OpenDroneIdEncoder.encodeBasicId(data, offset, 1, 2, aircraft.uasId);
+        } else if (type == OpenDroneIdParser.Type.SELFID.id) {
+            OpenDroneIdEncoder.encodeSelfId(data, offset, 0, aircraft.description);
+        } else if (type == OpenDroneIdParser.Type.SYSTEM.id) {
+            OpenDroneIdEncoder.encodeSystem(data, offset, config.centerLatitude,
+                    config.centerLongitude, 20);
+        } else if (type == OpenDroneIdParser.Type.OPERATOR_ID.id) {
+            OpenDroneIdEncoder.encodeOperatorId(data, offset, 0, aircraft.operatorId);
+        }
+    }
+
+    private static String formatMac(long mac) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (mac >> shift) & 0xFF;
+            sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+            if (shift > 0)
+                sb.append(':');
+        }
+        return sb.toString().toUpperCase(Locale.US);
+    }
+
+    private void emit(VirtualAircraft aircraft, RawFrame frame, long now, boolean async) {
+        FrameListener listener = frameListener;
+        synchronized (stats) {
+            stats.generated++;
+        }
+        if (listener == null)
+            return;
+
+        if (!async) {
+            listener.onFrame(frame);
+            delivered.incrementAndGet();
+            return;
+        }
+
+        int backlog = pending.incrementAndGet();
+        if (backlog > config.maxPendingFrames) {
+            pending.decrementAndGet();
+            synchronized (stats) {
+                stats.dropped++;
+            }
+            return;
+        }
+        synchronized (stats) {
+            stats.maxPending = Math.max(stats.maxPending, backlog);
+        }
+        deliveryExecutor.execute(() -> {
+            pending.decrementAndGet();
+            listener.onFrame(frame);
+            delivered.incrementAndGet();
+        });
+    }
+}
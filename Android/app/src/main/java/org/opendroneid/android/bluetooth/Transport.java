@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+/**
+ * A source of raw Open Drone ID frames. Each transport delivers its frames to a
+ * {@link FrameListener}, normally a {@link FramePipeline}, which decodes and logs them.
+ */
+public interface Transport {
+    String BT4 = "BT4";
+    String BT5 = "BT5";
+    String NAN = "NAN";
+    String BEACON = "Beacon";
+
+    interface FrameListener {
+        void onFrame(RawFrame frame);
+    }
+
+    void setFrameListener(FrameListener listener);
+
+    void startScan();
+
+    void stopScan();
+}
@@ -37,10 +37,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import org.opendroneid.android.log.LogMessageEntry;
-import org.opendroneid.android.log.LogWriter;
-
-public class WiFiBeaconScanner {
+public class WiFiBeaconScanner implements Transport {
     private static final int CIDLen = 3;
     private static final int DriStartByteOffset = 4;
     private static final int ScanTimerInterval = 2;
@@ -48,8 +45,7 @@ public class WiFiBeaconScanner {
     private static final int VendorTypeLen = 1;
     private static final int VendorTypeValue = 0x0D;
     private boolean WiFiScanEnabled = true;
-    private final OpenDroneIdDataManager dataManager;
-    private LogWriter logger;
+    private FrameListener frameListener;
     private WifiManager wifiManager;
     Context context;
     int scanSuccess;
@@ -60,11 +56,11 @@ public class WiFiBeaconScanner {
 
     private static final String TAG = WiFiBeaconScanner.class.getSimpleName();
 
-    public void setLogger(LogWriter logger) { this.logger = logger; }
+    @Override
+    public void setFrameListener(FrameListener listener) { this.frameListener = listener; }
 
-    public WiFiBeaconScanner(Context context, OpenDroneIdDataManager dataManager, LogWriter logger) {
-        this.dataManager = dataManager;
-        this.logger = logger;
+    public WiFiBeaconScanner(Context context, FrameListener frameListener) {
+        this.frameListener = frameListener;
 
         this.startTime = getCurrTimeStr();
 
@@ -108,16 +104,12 @@ public class WiFiBeaconScanner {
                 (dri_CID[2] & 0xFF) == DRI_CID[2] && vendorType[0] == VendorTypeValue) {
             buf.position(DriStartByteOffset);
             buf.get(arr, 0, buf.remaining());
-            LogMessageEntry logMessageEntry = new LogMessageEntry();
             long timeNano = SystemClock.elapsedRealtimeNanos();
-            String transportType = "Beacon";
-            dataManager.receiveDataWiFiBeacon(arr, scanResult.BSSID, scanResult.BSSID.hashCode(),
-                    scanResult.level, timeNano, logMessageEntry, transportType);
+            if (frameListener != null)
+                frameListener.onFrame(new RawFrame(BEACON, scanResult.BSSID, scanResult.BSSID.hashCode(),
+                        scanResult.level, timeNano, arr, 1));
 
             Log.i(TAG, "Beacon: "+ scanResult.BSSID + ": " + Arrays.toString(arr));
-            StringBuilder csvLog = logMessageEntry.getMessageLogEntry();
-            if (logger != null)
-                logger.logBeacon(logMessageEntry.getMsgVersion(), timeNano, scanResult, arr, transportType, csvLog);
         }
     }
 
@@ -175,6 +167,7 @@ public class WiFiBeaconScanner {
         }
     }
 
+    @Override
     public void startScan() {
         if (!WiFiScanEnabled) {
             return;
@@ -189,6 +182,7 @@ public class WiFiBeaconScanner {
         printScanStats(ret);
     }
 
+    @Override
     public void stopScan() {
         if (!WiFiScanEnabled) {
             return;
@@ -21,35 +21,133 @@ import android.net.wifi.aware.SubscribeDiscoverySession;
 import android.net.wifi.aware.WifiAwareManager;
 import android.net.wifi.aware.WifiAwareSession;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
-import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 
-import org.opendroneid.android.log.LogMessageEntry;
-import org.opendroneid.android.log.LogWriter;
-
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 
-public class WiFiNaNScanner {
+public class WiFiNaNScanner implements Transport {
 
-    private final OpenDroneIdDataManager dataManager;
-    private LogWriter logger;
+    private FrameListener frameListener;
     private boolean wifiAwareSupported = false;
     private WifiAwareManager wifiAwareManager;
     private WifiAwareSession wifiAwareSession;
+    private SubscribeDiscoverySession subscribeSession;
     Context context;
     private static final String TAG = WiFiNaNScanner.class.getSimpleName();
 
-    public void setLogger(LogWriter logger) { this.logger = logger; }
+    // Backoff used when attaching or subscribing fails or the subscribe session is terminated
+    private static final long RETRY_DELAY_MIN_MS = 1000;
+    private static final long RETRY_DELAY_MAX_MS = 60 * 1000;
+    // Peers not heard from within this time are dropped from the peer table
+    private static final long PEER_TIMEOUT_MS = 5 * 60 * 1000;
+
+    public enum State {
+        Idle,
+        Unavailable,
+        Attaching,
+        Subscribing,
+        Subscribed,
+        WaitingForRetry,
+    }
+
+    // All Wi-Fi Aware callbacks are delivered on the main thread, so the supervisor state below
+    // is only accessed from there.
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private State state = State.Idle;
+    private boolean scanRequested = false;
+    private long retryDelay = RETRY_DELAY_MIN_MS;
+    private int sessionRestarts = 0;
+    private long subscribedSince = 0;
+    private long totalUptime = 0;
+    private SubscribeCallback currentCallback;
+
+    // Peer handles are only unique within one subscribe session. The session generation is
+    // folded into the peer key, so that a re-subscribe cannot merge two different drones.
+    private int sessionGeneration = 0;
+    private final HashMap<PeerHandle, Peer> peers = new HashMap<>();
+
+    public static class Peer {
+        private static final double RATE_SMOOTHING = 0.2;
+
+        public final int peerId;
+        public final long key;
+        public final long firstSeen;
+        public long lastSeen;
+        public long frames;
+        // Exponentially smoothed reception rate in frames per second
+        public double rate;
+
+        Peer(int peerId, int generation, long now) {
+            this.peerId = peerId;
+            this.key = ((long) generation << 32) | (peerId & 0xFFFFFFFFL);
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+
+        void onFrame(long now) {
+            long interval = now - lastSeen;
+            if (frames > 0 && interval > 0) {
+                double instantRate = 1000.0 / interval;
+                rate = rate == 0 ? instantRate : rate + RATE_SMOOTHING * (instantRate - rate);
+            }
+            lastSeen = now;
+            frames++;
+        }
+
+        String getName() { return "NaN ID: " + peerId; }
+    }
+
+    /** The supervisor state and the peers of the current subscribe session, for display */
+    public static class Stats {
+        // Peers listed by toString(), those with the most frames
+        private static final int MAX_PEERS_SHOWN = 8;
+
+        public State state;
+        public long sessionUptimeMillis;
+        public long totalUptimeMillis;
+        public int sessionRestarts;
+        // Sorted by frames received, most first
+        public final List<Peer> peers = new ArrayList<>();
+        // SystemClock.elapsedRealtime() when taken, the time base of the peer times
+        public long takenAt;
+
+        @Override @NonNull
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                    "Wi-Fi NaN %s, session up %d s, total %d s, %d restarts, %d peers",
+                    state, sessionUptimeMillis / 1000, totalUptimeMillis / 1000, sessionRestarts,
+                    peers.size()));
+            for (int i = 0; i < peers.size() && i < MAX_PEERS_SHOWN; i++) {
+                Peer peer = peers.get(i);
+                sb.append(String.format(Locale.US,
+                        "\nID %d: %d frames, %.1f/s, first seen %d s ago, last %d s ago",
+                        peer.peerId, peer.frames, peer.rate, (takenAt - peer.firstSeen) / 1000,
+                        (takenAt - peer.lastSeen) / 1000));
+            }
+            if (peers.size() > MAX_PEERS_SHOWN)
+                sb.append("\n...");
+            return sb.toString();
+        }
+    }
+
+    @Override
+    public void setFrameListener(FrameListener listener) { this.frameListener = listener; }
 
     @RequiresApi(api = Build.VERSION_CODES.O)
-    public WiFiNaNScanner(Context context, OpenDroneIdDataManager dataManager, LogWriter logger) {
-        this.dataManager = dataManager;
-        this.logger = logger;
+    public WiFiNaNScanner(Context context, FrameListener frameListener) {
+        this.frameListener = frameListener;
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O ||
             !context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI_AWARE)) {
@@ -61,7 +159,8 @@ public class WiFiNaNScanner {
 
         wifiAwareManager = (WifiAwareManager) context.getSystemService(Context.WIFI_AWARE_SERVICE);
         if (wifiAwareManager != null && !wifiAwareManager.isAvailable()) {
-            Toast.makeText(context, "WiFi Aware is currently not available. Code to properly handle this must be added.", Toast.LENGTH_LONG).show();
+            Log.i(TAG, "WiFi Aware is currently not available. Waiting for it to become available.");
+            state = State.Unavailable;
         }
 
         IntentFilter filter = new IntentFilter(WifiAwareManager.ACTION_WIFI_AWARE_STATE_CHANGED);
@@ -70,9 +169,10 @@ public class WiFiNaNScanner {
             public void onReceive(Context context, Intent intent) {
                 if (wifiAwareManager.isAvailable()) {
                     Log.i(TAG, "WiFi Aware became available.");
-                    startScan();
+                    onAwareAvailable();
                 } else {
-                    Toast.makeText(context, "WiFi Aware was lost. Code to properly handle this must be added.", Toast.LENGTH_LONG).show();
+                    Log.i(TAG, "WiFi Aware was lost.");
+                    onAwareLost();
                 }
             }
         };
@@ -86,39 +186,71 @@ public class WiFiNaNScanner {
             if (!wifiAwareSupported)
                 return;
 
+            if (!scanRequested || state != State.Attaching) {
+                // Scanning was stopped or Aware was lost while the attach was pending
+                session.close();
+                return;
+            }
+            Log.i(TAG, "WiFi NaN attached");
             wifiAwareSession = session;
-            SubscribeConfig config = new SubscribeConfig.Builder()
-                    .setServiceName("org.opendroneid.remoteid")
-                    .build();
-
-            wifiAwareSession.subscribe(config, new DiscoverySessionCallback() {
-                @Override
-                public void onSubscribeStarted(@NonNull SubscribeDiscoverySession session) {
-                    Log.i(TAG, "onSubscribeStarted");
-                }
+            subscribe();
+        }
 
-                @Override
-                public void onServiceDiscovered(PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter) {
-                    Log.i(TAG, "onServiceDiscovered: " + serviceSpecificInfo.length +": " + Arrays.toString(serviceSpecificInfo));
+        @Override
+        public void onAttachFailed() {
+            Log.w(TAG, "WiFi NaN attach failed");
+            if (state == State.Attaching)
+                scheduleRetry();
+        }
+    };
 
-                    String transportType = "NAN";
-                    LogMessageEntry logMessageEntry = new LogMessageEntry();
-                    long timeNano = SystemClock.elapsedRealtimeNanos();
-                    dataManager.receiveDataNaN(serviceSpecificInfo, peerHandle.hashCode(), timeNano, logMessageEntry, transportType);
+    @TargetApi(Build.VERSION_CODES.O)
+    private class SubscribeCallback extends DiscoverySessionCallback {
+        private boolean isCurrent() { return this == currentCallback; }
 
-                    StringBuilder csvLog = logMessageEntry.getMessageLogEntry();
-                    if (logger != null)
-                        logger.logNaN(logMessageEntry.getMsgVersion(), timeNano, peerHandle.hashCode(),
-                                      serviceSpecificInfo, transportType, csvLog);
-                }
-            }, null);
+        @Override
+        public void onSubscribeStarted(@NonNull SubscribeDiscoverySession session) {
+            if (!isCurrent()) {
+                session.close();
+                return;
+            }
+            Log.i(TAG, "onSubscribeStarted");
+            subscribeSession = session;
+            subscribedSince = SystemClock.elapsedRealtime();
+            retryDelay = RETRY_DELAY_MIN_MS;
+            state = State.Subscribed;
         }
 
         @Override
-        public void onAttachFailed() {
-            Toast.makeText(context, "wifiAware onAttachFailed. Code to properly handle this must be added.", Toast.LENGTH_LONG).show();
+        public void onSessionConfigFailed() {
+            if (!isCurrent())
+                return;
+            Log.w(TAG, "WiFi NaN subscribe failed");
+            scheduleRetry();
         }
-    };
+
+        @Override
+        public void onSessionTerminated() {
+            if (!isCurrent())
+                return;
+            Log.w(TAG, "WiFi NaN subscribe session terminated after " + getSessionUptimeMillis() / 1000 + " s");
+            closeSubscribeSession();
+            scheduleRetry();
+        }
+
+        @Override
+        public void onServiceDiscovered(PeerHandle peerHandle, byte[] serviceSpecificInfo, List<byte[]> matchFilter) {
+            if (!isCurrent())
+                return;
+            Log.i(TAG, "onServiceDiscovered: " + serviceSpecificInfo.length +": " + Arrays.toString(serviceSpecificInfo));
+
+            Peer peer = updatePeer(peerHandle);
+            long timeNano = SystemClock.elapsedRealtimeNanos();
+            if (frameListener != null)
+                frameListener.onFrame(new RawFrame(NAN, peer.getName(), peer.key, 0, timeNano,
+                        serviceSpecificInfo, 1));
+        }
+    }
 
     @TargetApi(Build.VERSION_CODES.O)
     private final IdentityChangedListener identityChangedListener = new IdentityChangedListener() {
@@ -132,21 +264,154 @@ public class WiFiNaNScanner {
         }
     };
 
+    private final Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!scanRequested || state != State.WaitingForRetry)
+                return;
+            sessionRestarts++;
+            if (wifiAwareSession != null)
+                subscribe();
+            else
+                attach();
+        }
+    };
+
+    private Peer updatePeer(PeerHandle peerHandle) {
+        long now = SystemClock.elapsedRealtime();
+        Peer peer = peers.get(peerHandle);
+        if (peer == null) {
+            removeStalePeers(now);
+            peer = new Peer(peerHandle.hashCode(), sessionGeneration, now);
+            peers.put(peerHandle, peer);
+        }
+        peer.onFrame(now);
+        return peer;
+    }
+
+    private void removeStalePeers(long now) {
+        Iterator<Peer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastSeen > PEER_TIMEOUT_MS)
+                iterator.remove();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void attach() {
+        if (!wifiAwareManager.isAvailable()) {
+            state = State.Unavailable;
+            return;
+        }
+        Log.i(TAG, "WiFi NaN attaching");
+        state = State.Attaching;
+        wifiAwareManager.attach(attachCallback, identityChangedListener, handler);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void subscribe() {
+        SubscribeConfig config = new SubscribeConfig.Builder()
+                .setServiceName("org.opendroneid.remoteid")
+                .build();
+
+        state = State.Subscribing;
+        currentCallback = new SubscribeCallback();
+        wifiAwareSession.subscribe(config, currentCallback, handler);
+    }
+
+    private void scheduleRetry() {
+        state = State.WaitingForRetry;
+        handler.removeCallbacks(retryRunnable);
+        Log.i(TAG, "WiFi NaN retrying in " + retryDelay + " ms");
+        handler.postDelayed(retryRunnable, retryDelay);
+        retryDelay = Math.min(retryDelay * 2, RETRY_DELAY_MAX_MS);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void closeSubscribeSession() {
+        if (subscribedSince != 0) {
+            totalUptime += SystemClock.elapsedRealtime() - subscribedSince;
+            subscribedSince = 0;
+        }
+        currentCallback = null;
+        if (subscribeSession != null) {
+            subscribeSession.close();
+            subscribeSession = null;
+            // Peer handles from this session are not valid in the next one
+            sessionGeneration++;
+            peers.clear();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void closeSessions() {
+        handler.removeCallbacks(retryRunnable);
+        closeSubscribeSession();
+        if (wifiAwareSession != null) {
+            wifiAwareSession.close();
+            wifiAwareSession = null;
+        }
+    }
+
+    private void onAwareAvailable() {
+        if (!scanRequested)
+            return;
+        if (state == State.Unavailable || state == State.WaitingForRetry) {
+            handler.removeCallbacks(retryRunnable);
+            retryDelay = RETRY_DELAY_MIN_MS;
+            attach();
+        }
+    }
+
+    private void onAwareLost() {
+        // All Aware sessions are invalidated by the framework when Aware becomes unavailable
+        closeSessions();
+        state = State.Unavailable;
+    }
+
+    /** Milliseconds since the current subscribe session started, or zero if not subscribed */
+    public long getSessionUptimeMillis() {
+        if (subscribedSince == 0)
+            return 0;
+        return SystemClock.elapsedRealtime() - subscribedSince;
+    }
+
+    /** Accumulated time with an active subscribe session, including the current one */
+    public long getTotalUptimeMillis() { return totalUptime + getSessionUptimeMillis(); }
+
+    /** Called on the main thread, like the Wi-Fi Aware callbacks updating the state */
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.state = state;
+        stats.sessionUptimeMillis = getSessionUptimeMillis();
+        stats.totalUptimeMillis = getTotalUptimeMillis();
+        stats.sessionRestarts = sessionRestarts;
+        stats.takenAt = SystemClock.elapsedRealtime();
+        stats.peers.addAll(peers.values());
+        Collections.sort(stats.peers, (a, b) -> Long.compare(b.frames, a.frames));
+        return stats;
+    }
+
+    @Override
     @TargetApi(Build.VERSION_CODES.O)
     public void startScan() {
         if (!wifiAwareSupported)
             return;
-        Log.i(TAG, "WiFi NaN attaching");
-        if (wifiAwareManager.isAvailable())
-            wifiAwareManager.attach(attachCallback, identityChangedListener, null);
+        scanRequested = true;
+        if (state != State.Idle && state != State.Unavailable)
+            return;
+        retryDelay = RETRY_DELAY_MIN_MS;
+        attach();
     }
 
+    @Override
     @TargetApi(Build.VERSION_CODES.O)
     public void stopScan() {
         if (!wifiAwareSupported)
             return;
         Log.i(TAG, "WiFi NaN closing");
-        if (wifiAwareManager.isAvailable() && wifiAwareSession != null)
-            wifiAwareSession.close();
+        scanRequested = false;
+        closeSessions();
+        state = wifiAwareManager.isAvailable() ? State.Idle : State.Unavailable;
     }
 }
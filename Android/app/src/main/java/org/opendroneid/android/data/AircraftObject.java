@@ -15,8 +15,6 @@ public class AircraftObject {
     final public MutableLiveData<Connection> connection = new MutableLiveData<>();
     final public MutableLiveData<Identification> identification1 = new MutableLiveData<>();
     final public MutableLiveData<Identification> identification2 = new MutableLiveData<>();
-    final public MutableLiveData<Identification> id1Shadow = new MutableLiveData<>();
-    final public MutableLiveData<Identification> id2Shadow = new MutableLiveData<>();
     final public MutableLiveData<LocationData> location = new MutableLiveData<>();
     final public MutableLiveData<AuthenticationData> authentication = new MutableLiveData<>();
     final public MutableLiveData<SelfIdData> selfid = new MutableLiveData<>();
@@ -25,6 +23,11 @@ public class AircraftObject {
 
     private final long macAddress;
 
+    // Vertex cap of the trail, until a smaller share of a budget is set
+    public static final int MAX_TRAIL_VERTICES = 500;
+    // The locations received, also while the aircraft is not drawn on the map
+    private final Trail trail = new Trail(MAX_TRAIL_VERTICES);
+
     public AircraftObject(long macAddress) {
         this.macAddress = macAddress;
     }
@@ -38,6 +41,7 @@ public class AircraftObject {
     public SelfIdData getSelfID() { return selfid.getValue(); }
     public SystemData getSystem() { return system.getValue(); }
     public OperatorIdData getOperatorID() { return operatorid.getValue(); }
+    public Trail getTrail() { return trail; }
 
     // Non-zero authentication data pages do not contain the following fields. Save them for displaying
     private int authLastPageIndexSave;
@@ -78,29 +82,21 @@ public class AircraftObject {
         return currData;
     }
 
-    private int idToShow = 0;
-
-    // When two different BasicId messages have been received, use this function to force a regular
-    // swap between their uasId in the list view. It is assumed this is called once per second.
-    // The change logic is slowed down to once per three seconds.
-    public void updateShadowBasicId() {
-        switch (idToShow) {
-            case 0:
-                id1Shadow.setValue(identification1.getValue());
-                idToShow++;
-                break;
-            case 3:
-                Identification id2 = identification2.getValue();
-                if (id2 != null && id2.getIdType() != Identification.IdTypeEnum.None)
-                    id2Shadow.setValue(identification2.getValue());
-                idToShow++;
-                break;
-            case 6:
-                idToShow = 0;
-                break;
-            default:
-                idToShow++;
-        }
+    // Period in seconds of the swap between the two uasIds, and how long the first one is shown
+    private static final int ID_ROTATION_SECONDS = 7;
+    private static final int ID1_SECONDS = 3;
+
+    /**
+     * Returns the basic id to show at the given time. When two different BasicId messages have
+     * been received, the list view swaps between their uasId, showing the first one for three
+     * seconds and the second one for four.
+     */
+    public Identification getShownIdentification(long nowMillis) {
+        Identification id2 = identification2.getValue();
+        if (id2 != null && id2.getIdType() != Identification.IdTypeEnum.None &&
+                (nowMillis / 1000) % ID_ROTATION_SECONDS >= ID1_SECONDS)
+            return id2;
+        return identification1.getValue();
     }
 
     @Override @NonNull
@@ -8,9 +8,6 @@ package org.opendroneid.android.data;
 
 import org.opendroneid.android.Constants;
 
-import java.sql.Timestamp;
-import java.util.Locale;
-
 public class AuthenticationData extends MessageData {
 
     private AuthTypeEnum authType;
@@ -78,7 +75,7 @@ public class AuthenticationData extends MessageData {
 
     int getAuthLastPageIndex() { return authLastPageIndex; }
     public String getAuthLastPageIndexAsString() {
-        return String.format(Locale.US,"%d pages", authLastPageIndex);
+        return Format.integer(authLastPageIndex, 0, " pages");
     }
     public void setAuthLastPageIndex(int authLastPageIndex) {
         if (authLastPageIndex < 0)
@@ -90,7 +87,7 @@ public class AuthenticationData extends MessageData {
 
     int getAuthLength() { return authLength; }
     public String getAuthLengthAsString() {
-        return String.format(Locale.US,"%d bytes", authLength);
+        return Format.integer(authLength, 0, " bytes");
     }
     public void setAuthLength(int authLength) {
         if (authLength < 0)
@@ -104,8 +101,7 @@ public class AuthenticationData extends MessageData {
     public String getAuthTimestampAsString() {
         if (authTimestamp == 0)
             return "Unknown";
-        Timestamp time = new Timestamp((1546300800L + authTimestamp) * 1000);
-        return time.toString();
+        return Format.timestamp((1546300800L + authTimestamp) * 1000);
     }
     public void setAuthTimestamp(long authTimestamp) { this.authTimestamp = authTimestamp; }
 
@@ -113,10 +109,9 @@ public class AuthenticationData extends MessageData {
     byte[] getAuthData() { return authData; }
     public void setAuthData(byte[] authData) { this.authData = authData; }
     public String getAuthenticationDataAsString() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < authLength; i++) {
-            sb.append(String.format("%02X ", authData[i]));
-        }
+        StringBuilder sb = Format.buffer();
+        for (int i = 0; i < authLength; i++)
+            Format.appendHex(sb, authData[i]).append(' ');
         return sb.toString();
     }
 }
@@ -6,8 +6,6 @@
  */
 package org.opendroneid.android.data;
 
-import java.util.Locale;
-
 public class Connection extends MessageData {
     public int rssi;
     public String transportType;
@@ -18,11 +16,11 @@ public class Connection extends MessageData {
 
     public String getMsgDeltaAsString() {
         if (msgDelta / 1000 == 0)
-            return String.format(Locale.US,"%3d ms", msgDelta);
+            return Format.integer(msgDelta, 3, " ms");
         else {
             double seconds = msgDelta;
             seconds /= 1000;
-            return String.format(Locale.US,"%.1f s", seconds);
+            return Format.fixed(seconds, 0, 1, " s");
         }
     }
 
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import android.os.SystemClock;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formatting of the values shown in the list and detail views without java.util.Formatter.
+ * Numbers are written as fixed point into a reusable per thread buffer, with the same output as
+ * String.format(Locale.US, ...) for the patterns used by the data classes.
+ */
+public final class Format {
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+    // Above this the value scaled to its decimals has more digits than the shortest decimal
+    // representation Formatter rounds, or may not fit in a long
+    private static final double MAX_SCALED = 1e15;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    // How long the offset between the elapsed realtime and the wall clock is reused
+    private static final long CLOCK_OFFSET_MAX_AGE_NANOS = 10_000_000_000L;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(64);
+        }
+    };
+
+    private static long clockOffsetMillis;
+    private static long clockOffsetNanos = Long.MIN_VALUE;
+
+    private static TimeZone timeZone;
+    private static long cachedDay = Long.MIN_VALUE;
+    private static String cachedDate;
+
+    private Format() {}
+
+    /** Returns the emptied buffer of the calling thread */
+    static StringBuilder buffer() {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    /** Same as String.format(Locale.US, "%{width}.{decimals}f{suffix}", value) */
+    public static String fixed(double value, int width, int decimals, String suffix) {
+        return fixed("", value, width, decimals, suffix);
+    }
+
+    /** Same as String.format(Locale.US, "{prefix}%{width}.{decimals}f{suffix}", value) */
+    public static String fixed(String prefix, double value, int width, int decimals, String suffix) {
+        StringBuilder sb = buffer().append(prefix);
+        return appendFixed(sb, value, width, decimals, false).append(suffix).toString();
+    }
+
+    /** Same as String.format(Locale.US, "%{width}d{suffix}", value) */
+    public static String integer(long value, int width, String suffix) {
+        StringBuilder sb = buffer();
+        sb.append(value);
+        pad(sb, 0, width, false);
+        return sb.append(suffix).toString();
+    }
+
+    /**
+     * Appends the value rounded half up to the given decimals, padded on the left to width with
+     * spaces, or with zeros after the sign if zeroPad is set.
+     */
+    public static StringBuilder appendFixed(StringBuilder sb, double value, int width, int decimals,
+                                            boolean zeroPad) {
+        int start = sb.length();
+        if (Double.isNaN(value) || Double.isInfinite(value) || decimals >= POWERS_OF_TEN.length ||
+                Math.abs(value) * POWERS_OF_TEN[decimals] >= MAX_SCALED) {
+            sb.append(String.format(Locale.US, "%" + (zeroPad ? "0" : "") + (width > 0 ? width : "") +
+                    "." + decimals + "f", value));
+            return sb;
+        }
+        if (Double.doubleToRawLongBits(value) < 0)
+            sb.append('-');
+        long scale = POWERS_OF_TEN[decimals];
+        double scaled = Math.abs(value) * scale;
+        long rounded = (long) Math.floor(scaled + 0.5);
+        // Formatter rounds the shortest decimal representation half up, e.g. 1.005 to 1.01,
+        // where the binary value is slightly below the half. Near a half, do the same
+        if (Math.abs(scaled - Math.floor(scaled) - 0.5) < (scaled + 1) * 1e-12)
+            rounded = new BigDecimal(Double.toString(Math.abs(value))).movePointRight(decimals)
+                    .setScale(0, RoundingMode.HALF_UP).longValue();
+        sb.append(rounded / scale);
+        if (decimals > 0) {
+            sb.append('.');
+            long fraction = rounded % scale;
+            for (long p = scale / 10; p > fraction && p > 1; p /= 10)
+                sb.append('0');
+            sb.append(fraction);
+        }
+        pad(sb, start, width, zeroPad);
+        return sb;
+    }
+
+    private static void pad(StringBuilder sb, int start, int width, boolean zeroPad) {
+        int missing = width - (sb.length() - start);
+        if (missing <= 0)
+            return;
+        int at = start;
+        if (zeroPad && sb.length() > start && sb.charAt(start) == '-')
+            at++;
+        for (int i = 0; i < missing; i++)
+            sb.insert(at, zeroPad ? '0' : ' ');
+    }
+
+    /** Appends the byte as two upper case hex digits, like String.format("%02X", b) */
+    public static StringBuilder appendHex(StringBuilder sb, byte b) {
+        return sb.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+
+    /**
+     * Converts a SystemClock.elapsedRealtimeNanos() time to the wall clock. The offset between
+     * the two clocks is measured again when it is older than ten seconds.
+     */
+    public static synchronized long toWallClockMillis(long elapsedRealtimeNanos) {
+        long nowNanos = SystemClock.elapsedRealtimeNanos();
+        if (nowNanos - clockOffsetNanos > CLOCK_OFFSET_MAX_AGE_NANOS || nowNanos < clockOffsetNanos) {
+            clockOffsetMillis = System.currentTimeMillis() - nowNanos / 1000000L;
+            clockOffsetNanos = nowNanos;
+        }
+        return elapsedRealtimeNanos / 1000000L + clockOffsetMillis;
+    }
+
+    /**
+     * Same text as new java.sql.Timestamp(millis).toString() in the default time zone, for the
+     * dates of the Gregorian calendar from 1582-10-15 on. The date part is formatted once per day.
+     */
+    public static synchronized String timestamp(long millis) {
+        if (timeZone == null)
+            timeZone = TimeZone.getDefault();
+        long local = millis + timeZone.getOffset(millis);
+        long day = floorDiv(local, MILLIS_PER_DAY);
+        if (day != cachedDay) {
+            // The zone may have changed since the last day
+            timeZone = TimeZone.getDefault();
+            local = millis + timeZone.getOffset(millis);
+            day = floorDiv(local, MILLIS_PER_DAY);
+            cachedDay = day;
+            cachedDate = date(day);
+        }
+        long time = local - day * MILLIS_PER_DAY;
+        StringBuilder sb = buffer().append(cachedDate);
+        appendTwoDigits(sb, time / 3600000).append(':');
+        appendTwoDigits(sb, time / 60000 % 60).append(':');
+        appendTwoDigits(sb, time / 1000 % 60).append('.');
+        long millisOfSecond = time % 1000;
+        if (millisOfSecond == 0) {
+            sb.append('0');
+        } else {
+            sb.append((char) ('0' + millisOfSecond / 100));
+            if (millisOfSecond % 100 != 0) {
+                sb.append((char) ('0' + millisOfSecond / 10 % 10));
+                if (millisOfSecond % 10 != 0)
+                    sb.append((char) ('0' + millisOfSecond % 10));
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Returns "yyyy-mm-dd " for the day counted from 1970-01-01 */
+    private static String date(long day) {
+        // Civil date from the day number, after Howard Hinnant's days_from_civil inverse
+        long z = day + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        StringBuilder sb = new StringBuilder(11);
+        for (long p = 1000; p > 1 && year < p; p /= 10)
+            sb.append('0');
+        sb.append(year).append('-');
+        appendTwoDigits(sb, month).append('-');
+        appendTwoDigits(sb, dayOfMonth).append(' ');
+        return sb.toString();
+    }
+
+    // Math.floorDiv needs API level 24
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, long value) {
+        return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
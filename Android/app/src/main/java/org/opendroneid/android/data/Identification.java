@@ -14,6 +14,7 @@ public class Identification extends MessageData {
     private UaTypeEnum uaType;
     private IdTypeEnum idType;
     private byte[] uasId;
+    private String uasIdString;
 
     public Identification() {
         super();
@@ -73,6 +74,7 @@ public class Identification extends MessageData {
 
     public IdTypeEnum getIdType() { return idType; }
     public void setIdType(int idType) {
+        uasIdString = null;
         switch(idType) {
             case 1: this.idType = IdTypeEnum.Serial_Number; break;
             case 2: this.idType = IdTypeEnum.CAA_Registration_ID; break;
@@ -84,6 +86,13 @@ public class Identification extends MessageData {
 
     public byte[] getUasId() { return uasId; }
     public String getUasIdAsString() {
+        // Shown and logged often, so formatted once
+        String text = uasIdString;
+        if (text == null)
+            uasIdString = text = formatUasId();
+        return text;
+    }
+    private String formatUasId() {
         if (uasId != null) {
             if (idType == IdTypeEnum.Serial_Number || idType == IdTypeEnum.CAA_Registration_ID) {
                 for (int c : uasId) {
@@ -93,19 +102,20 @@ public class Identification extends MessageData {
                 }
                 return new String(uasId);
             } else if (idType == IdTypeEnum.UTM_Assigned_ID || idType == IdTypeEnum.Specific_Session_ID) {
-                StringBuilder sb = new StringBuilder();
+                StringBuilder sb = Format.buffer();
                 sb.append("0x");
-                for (byte b : uasId) {
-                    sb.append(String.format("%02X", b));
-                }
+                for (byte b : uasId)
+                    Format.appendHex(sb, b);
                 return sb.toString();
             }
         }
         return "";
     }
     public void setUasId(byte[] uasId) {
-        if (uasId.length <= Constants.MAX_ID_BYTE_SIZE)
+        if (uasId.length <= Constants.MAX_ID_BYTE_SIZE) {
             this.uasId = uasId;
+            uasIdString = null;
+        }
     }
 
     @Override
@@ -6,9 +6,20 @@
  */
 package org.opendroneid.android.data;
 
-import java.util.Locale;
-
 public class LocationData extends MessageData {
+    private static final int SLOT_DIRECTION = FIRST_SUBCLASS_SLOT;
+    private static final int SLOT_SPEED_HORIZONTAL = FIRST_SUBCLASS_SLOT + 1;
+    private static final int SLOT_SPEED_HORIZONTAL_LESS_PRECISE = FIRST_SUBCLASS_SLOT + 2;
+    private static final int SLOT_SPEED_VERTICAL = FIRST_SUBCLASS_SLOT + 3;
+    private static final int SLOT_LATITUDE = FIRST_SUBCLASS_SLOT + 4;
+    private static final int SLOT_LONGITUDE = FIRST_SUBCLASS_SLOT + 5;
+    private static final int SLOT_ALTITUDE_PRESSURE = FIRST_SUBCLASS_SLOT + 6;
+    private static final int SLOT_ALTITUDE_GEODETIC = FIRST_SUBCLASS_SLOT + 7;
+    private static final int SLOT_HEIGHT = FIRST_SUBCLASS_SLOT + 8;
+    private static final int SLOT_HEIGHT_LESS_PRECISE = FIRST_SUBCLASS_SLOT + 9;
+    private static final int SLOT_LOCATION_TIMESTAMP = FIRST_SUBCLASS_SLOT + 10;
+    private static final int SLOT_TIME_ACCURACY = FIRST_SUBCLASS_SLOT + 11;
+    private static final int SLOT_DISTANCE = FIRST_SUBCLASS_SLOT + 12;
 
     private StatusEnum status;
     private heightTypeEnum heightType;
@@ -79,7 +90,7 @@ public class LocationData extends MessageData {
     public double getDirection() { return direction; }
     public String getDirectionAsString() {
         if (direction != 361)
-            return String.format(Locale.US,"%3.0f deg", direction);
+            return fixed(SLOT_DIRECTION, direction, 3, 0, " deg");
         else
             return ("Unknown");
     }
@@ -92,13 +103,13 @@ public class LocationData extends MessageData {
     public double getSpeedHorizontal() { return speedHorizontal; }
     public String getSpeedHorizontalAsString() {
         if (speedHorizontal != 255)
-            return String.format(Locale.US,"%3.2f m/s", speedHorizontal);
+            return fixed(SLOT_SPEED_HORIZONTAL, speedHorizontal, 3, 2, " m/s");
         else
             return ("Unknown");
     }
     public String getSpeedHorizontalLessPreciseAsString() {
         if (speedHorizontal != 255)
-            return String.format(Locale.US,"%3.0fm/s", speedHorizontal);
+            return fixed(SLOT_SPEED_HORIZONTAL_LESS_PRECISE, speedHorizontal, 3, 0, "m/s");
         else
             return ("Unknown");
     }
@@ -111,7 +122,7 @@ public class LocationData extends MessageData {
     public double getSpeedVertical() { return speedVertical; }
     public String getSpeedVerticalAsString() {
         if (speedVertical != 63)
-            return String.format(Locale.US,"%3.2f m/s", speedVertical);
+            return fixed(SLOT_SPEED_VERTICAL, speedVertical, 3, 2, " m/s");
         else
             return ("Unknown");
     }
@@ -125,7 +136,7 @@ public class LocationData extends MessageData {
     public String getLatitudeAsString() {
         if (latitude == 0 && longitude == 0)
             return "Unknown";
-        return String.format(Locale.US,"%3.7f", latitude);
+        return fixed(SLOT_LATITUDE, latitude, 3, 7, "");
     }
     public void setLatitude(double latitude) {
         if (latitude < -90 || latitude > 90) {
@@ -139,7 +150,7 @@ public class LocationData extends MessageData {
     public String getLongitudeAsString() {
         if (latitude == 0 && longitude == 0)
             return "Unknown";
-        return String.format(Locale.US,"%3.7f", longitude);
+        return fixed(SLOT_LONGITUDE, longitude, 3, 7, "");
     }
     public void setLongitude(double longitude) {
         if (longitude < -180 || longitude > 180) {
@@ -149,31 +160,31 @@ public class LocationData extends MessageData {
         this.longitude = longitude;
     }
 
-    private String getAltitudeAsString(double altitude) {
+    private String getAltitudeAsString(int slot, double altitude) {
         if (altitude == -1000)
             return "Unknown";
-        return String.format(Locale.US,"%3.1f m", altitude);
+        return fixed(slot, altitude, 3, 1, " m");
     }
     public double getAltitudePressure() { return altitudePressure; }
-    public String getAltitudePressureAsString() { return getAltitudeAsString(altitudePressure); }
+    public String getAltitudePressureAsString() { return getAltitudeAsString(SLOT_ALTITUDE_PRESSURE, altitudePressure); }
     public void setAltitudePressure(double altitudePressure) {
         if (altitudePressure < -1000 || altitudePressure > 31767)
             altitudePressure = -1000; // -1000 is defined in the specification as the Invalid value
         this.altitudePressure = altitudePressure;
     }
     public double getAltitudeGeodetic() { return altitudeGeodetic; }
-    public String getAltitudeGeodeticAsString() { return getAltitudeAsString(altitudeGeodetic); }
+    public String getAltitudeGeodeticAsString() { return getAltitudeAsString(SLOT_ALTITUDE_GEODETIC, altitudeGeodetic); }
     public void setAltitudeGeodetic(double altitudeGeodetic) {
         if (altitudeGeodetic < -1000 || altitudeGeodetic > 31767)
             altitudeGeodetic = -1000; // -1000 is defined in the specification as the Invalid value
         this.altitudeGeodetic = altitudeGeodetic;
     }
     public double getHeight() { return height; }
-    public String getHeightAsString() { return getAltitudeAsString(height); }
+    public String getHeightAsString() { return getAltitudeAsString(SLOT_HEIGHT, height); }
     public String getHeightLessPreciseAsString() {
         if (height == -1000)
             return "Unknown";
-        return String.format(Locale.US,"%3.0fm", height);
+        return fixed(SLOT_HEIGHT_LESS_PRECISE, height, 3, 0, "m");
     }
     public void setHeight(double height) {
         if (height < -1000 || height > 31767)
@@ -305,7 +316,14 @@ public class LocationData extends MessageData {
     public String getLocationTimestampAsString() {
         if (locationTimestamp == 0xFFFF)
             return "--:--";
-        return String.format(Locale.US,"%02.0f:%02.0f", getTimeStampMinutes(), getTimeStampSeconds());
+        String text = getFormatted(SLOT_LOCATION_TIMESTAMP, locationTimestamp);
+        if (text == null) {
+            StringBuilder sb = Format.buffer();
+            Format.appendFixed(sb, getTimeStampMinutes(), 2, 0, true).append(':');
+            Format.appendFixed(sb, getTimeStampSeconds(), 2, 0, true);
+            text = putFormatted(SLOT_LOCATION_TIMESTAMP, locationTimestamp, sb.toString());
+        }
+        return text;
     }
     public void setLocationTimestamp(double locationTimestamp) {
         if (locationTimestamp < 0)
@@ -320,7 +338,7 @@ public class LocationData extends MessageData {
         if (timeAccuracy == 0)
             return "Unknown";
         else
-            return String.format(Locale.US,"<= %1.1f s", timeAccuracy);
+            return fixed(SLOT_TIME_ACCURACY, "<= ", timeAccuracy, 1, 1, " s");
     }
     public void setTimeAccuracy(double timeAccuracy) {
         if (timeAccuracy < 0)
@@ -330,7 +348,7 @@ public class LocationData extends MessageData {
         this.timeAccuracy = timeAccuracy;
     }
 
-    public String getDistanceAsString() { return String.format(Locale.US,"~%.0f m", distance); }
+    public String getDistanceAsString() { return fixed(SLOT_DISTANCE, "~", distance, 0, 0, " m"); }
     public float getDistance() { return distance; }
     public void setDistance(float distance) { this.distance = distance; }
 }
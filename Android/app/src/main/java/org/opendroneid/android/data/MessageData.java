@@ -6,31 +6,88 @@
  */
 package org.opendroneid.android.data;
 
-import android.os.SystemClock;
 import org.opendroneid.android.Constants;
-import java.sql.Timestamp;
-import java.util.Locale;
 
 public class MessageData {
     private int msgCounter = 0;
     private long timestamp = 0;
     private int msgVersion = 0;
 
+    // Slots of the formatted values cached by this class. Subclasses use the following ones
+    private static final int SLOT_MSG_COUNTER = 0;
+    private static final int SLOT_TIMESTAMP = 1;
+    private static final int SLOT_MSG_VERSION = 2;
+    static final int FIRST_SUBCLASS_SLOT = 3;
+    private static final int SLOTS = 16;
+
+    // Formatted values, each kept with the value it was formatted from. Integer values are kept
+    // as they are, so timestamps in nanoseconds keep every digit, doubles by their bits
+    private String[] formatted;
+    private long[] formattedValues;
+
+    /** Returns the text cached in the slot if it was formatted from value, else null */
+    String getFormatted(int slot, long value) {
+        if (formatted == null || formatted[slot] == null || formattedValues[slot] != value)
+            return null;
+        return formatted[slot];
+    }
+
+    String getFormatted(int slot, double value) {
+        return getFormatted(slot, Double.doubleToLongBits(value));
+    }
+
+    String putFormatted(int slot, long value, String text) {
+        if (formatted == null) {
+            formatted = new String[SLOTS];
+            formattedValues = new long[SLOTS];
+        }
+        formatted[slot] = text;
+        formattedValues[slot] = value;
+        return text;
+    }
+
+    String putFormatted(int slot, double value, String text) {
+        return putFormatted(slot, Double.doubleToLongBits(value), text);
+    }
+
+    /** Same as String.format(Locale.US, "%{width}.{decimals}f{suffix}", value), cached in the slot */
+    String fixed(int slot, double value, int width, int decimals, String suffix) {
+        return fixed(slot, "", value, width, decimals, suffix);
+    }
+
+    String fixed(int slot, String prefix, double value, int width, int decimals, String suffix) {
+        String text = getFormatted(slot, value);
+        if (text == null)
+            text = putFormatted(slot, value, Format.fixed(prefix, value, width, decimals, suffix));
+        return text;
+    }
+
     public void setMsgCounter(int msgCounter) { this.msgCounter = msgCounter; }
     int getMsgCounter() { return this.msgCounter; }
-    public String getMsgCounterAsString() { return String.format(Locale.US ,"%3d", this.msgCounter); }
+    public String getMsgCounterAsString() {
+        String text = getFormatted(SLOT_MSG_COUNTER, msgCounter);
+        if (text == null)
+            text = putFormatted(SLOT_MSG_COUNTER, msgCounter, Format.integer(msgCounter, 3, ""));
+        return text;
+    }
 
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
     long getTimestamp() { return timestamp; }
     public String getTimestampAsString() {
-        long msSinceEvent = (SystemClock.elapsedRealtimeNanos() - getTimestamp()) / 1000000L;
-        long actualTime = System.currentTimeMillis() - msSinceEvent;
-        Timestamp time = new Timestamp(actualTime);
-        return time.toString();
+        String text = getFormatted(SLOT_TIMESTAMP, timestamp);
+        if (text == null)
+            text = putFormatted(SLOT_TIMESTAMP, timestamp,
+                    Format.timestamp(Format.toWallClockMillis(timestamp)));
+        return text;
     }
 
     public int getMsgVersion() { return msgVersion; }
     public void setMsgVersion(int msgVersion) { this.msgVersion = msgVersion; }
-    public String getMsgVersionAsString() { return String.format(Locale.US ,"v.%d", this.msgVersion); }
+    public String getMsgVersionAsString() {
+        String text = getFormatted(SLOT_MSG_VERSION, msgVersion);
+        if (text == null)
+            text = putFormatted(SLOT_MSG_VERSION, msgVersion, "v." + msgVersion);
+        return text;
+    }
     public boolean msgVersionUnsupported() { return msgVersion > Constants.MAX_MSG_VERSION; }
 }
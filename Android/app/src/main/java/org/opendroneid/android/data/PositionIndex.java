@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The aircraft by grid cell of their position, or else of their operator, so the aircraft in an
+ * area are found without looking at the others. The cells are squares of CELL_PIXELS Web
+ * Mercator pixels at INDEX_ZOOM. The position of an aircraft is indexed again by the data
+ * manager on every location and system message, so the map needs no observer for the aircraft
+ * it does not show.
+ */
+public class PositionIndex {
+    // Size on screen of a grid cell, also used to cluster the aircraft on the map
+    public static final int CELL_PIXELS = 96;
+    private static final int INDEX_ZOOM = 8;
+
+    private static class Entry {
+        final AircraftObject aircraft;
+        // The cell the aircraft is in, and the position it was indexed at
+        long cell;
+        double latitude;
+        double longitude;
+
+        Entry(AircraftObject aircraft) {
+            this.aircraft = aircraft;
+        }
+    }
+
+    private final HashMap<AircraftObject, Entry> entries = new HashMap<>();
+    private final HashMap<Long, Set<Entry>> cells = new HashMap<>();
+
+    /**
+     * Indexes the current position of the aircraft. Called for every location and system message,
+     * so an unchanged position is recognized without computing its cell, and a position in the
+     * same cell without allocating.
+     */
+    public synchronized void update(AircraftObject aircraft) {
+        double latitude, longitude;
+        LocationData loc = aircraft.getLocation();
+        SystemData sys = aircraft.getSystem();
+        if (loc != null && (loc.getLatitude() != 0.0 || loc.getLongitude() != 0.0)) {
+            latitude = loc.getLatitude();
+            longitude = loc.getLongitude();
+        } else if (sys != null && (sys.getOperatorLatitude() != 0.0 || sys.getOperatorLongitude() != 0.0)) {
+            latitude = sys.getOperatorLatitude();
+            longitude = sys.getOperatorLongitude();
+        } else {
+            remove(aircraft);
+            return;
+        }
+
+        Entry entry = entries.get(aircraft);
+        if (entry != null && entry.latitude == latitude && entry.longitude == longitude)
+            return;
+        double cellCount = cellsAt(INDEX_ZOOM);
+        long cell = cellKey(cellX(longitude, cellCount), cellY(latitude, cellCount));
+        if (entry == null) {
+            entry = new Entry(aircraft);
+            entries.put(aircraft, entry);
+        } else if (cell != entry.cell) {
+            removeFromCell(entry);
+        } else {
+            entry.latitude = latitude;
+            entry.longitude = longitude;
+            return;
+        }
+        entry.cell = cell;
+        entry.latitude = latitude;
+        entry.longitude = longitude;
+        addToCell(entry);
+    }
+
+    public synchronized void remove(AircraftObject aircraft) {
+        Entry entry = entries.remove(aircraft);
+        if (entry != null)
+            removeFromCell(entry);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        cells.clear();
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    /**
+     * Adds the aircraft positioned within the bounds to found. West is east of east when the
+     * bounds cross the antimeridian, allLongitudes ignores both.
+     */
+    public synchronized void find(double south, double north, double west, double east,
+                                  boolean allLongitudes, Collection<AircraftObject> found) {
+        double cellCount = cellsAt(INDEX_ZOOM);
+        int top = cellY(north, cellCount);
+        int bottom = cellY(south, cellCount);
+        if (allLongitudes) {
+            find(0, cellX(180, cellCount), top, bottom, south, north, west, east, true, found);
+        } else if (west <= east) {
+            find(cellX(west, cellCount), cellX(east, cellCount), top, bottom, south, north, west, east, false, found);
+        } else {
+            find(cellX(west, cellCount), cellX(180, cellCount), top, bottom, south, north, west, east, false, found);
+            find(0, cellX(east, cellCount), top, bottom, south, north, west, east, false, found);
+        }
+    }
+
+    /** Looks at the given cells, or at the occupied ones when they are fewer */
+    private void find(int left, int right, int top, int bottom, double south, double north,
+                      double west, double east, boolean allLongitudes, Collection<AircraftObject> found) {
+        if ((long) (right - left + 1) * (bottom - top + 1) <= cells.size()) {
+            for (int x = left; x <= right; x++) {
+                for (int y = top; y <= bottom; y++) {
+                    Set<Entry> cell = cells.get(cellKey(x, y));
+                    if (cell != null)
+                        addInside(cell, south, north, west, east, allLongitudes, found);
+                }
+            }
+        } else {
+            for (Map.Entry<Long, Set<Entry>> cell : cells.entrySet()) {
+                long key = cell.getKey();
+                int x = (int) (key >> 32);
+                int y = (int) key;
+                if (x >= left && x <= right && y >= top && y <= bottom)
+                    addInside(cell.getValue(), south, north, west, east, allLongitudes, found);
+            }
+        }
+    }
+
+    private static void addInside(Set<Entry> cell, double south, double north, double west,
+                                  double east, boolean allLongitudes, Collection<AircraftObject> found) {
+        for (Entry entry : cell) {
+            if (entry.latitude < south || entry.latitude > north)
+                continue;
+            if (allLongitudes || (west <= east ? entry.longitude >= west && entry.longitude <= east
+                                               : entry.longitude >= west || entry.longitude <= east))
+                found.add(entry.aircraft);
+        }
+    }
+
+    private void addToCell(Entry entry) {
+        Set<Entry> set = cells.get(entry.cell);
+        if (set == null) {
+            set = new HashSet<>();
+            cells.put(entry.cell, set);
+        }
+        set.add(entry);
+    }
+
+    private void removeFromCell(Entry entry) {
+        Set<Entry> set = cells.get(entry.cell);
+        if (set != null && set.remove(entry) && set.isEmpty())
+            cells.remove(entry.cell);
+    }
+
+    /** Number of grid cells across the Web Mercator map at the zoom level */
+    public static double cellsAt(int zoom) {
+        return 256.0 * Math.pow(2, zoom) / CELL_PIXELS;
+    }
+
+    public static int cellX(double longitude, double cells) {
+        double x = (longitude + 180) / 360;
+        return (int) Math.max(0, Math.min(Math.ceil(cells) - 1, x * cells));
+    }
+
+    public static int cellY(double latitude, double cells) {
+        double sinLatitude = Math.sin(Math.toRadians(Math.max(-85, Math.min(85, latitude))));
+        double y = 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+        return (int) Math.max(0, Math.min(Math.ceil(cells) - 1, y * cells));
+    }
+
+    public static long cellKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
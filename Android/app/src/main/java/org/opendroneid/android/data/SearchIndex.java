@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Case insensitive substring search over the UAS IDs, operator IDs and self ID descriptions of
+ * the aircraft. Every three character sequence of the texts maps to the aircraft containing it,
+ * so a query only checks the aircraft holding its rarest sequence. Queries shorter than that
+ * check every aircraft. The texts are indexed again when a message changes them, and
+ * getVersion() tells when a search may have a different result.
+ */
+public class SearchIndex {
+    private static final int GRAM_LENGTH = 3;
+    // Separates the texts of an aircraft, no query contains it
+    private static final char SEPARATOR = '\n';
+
+    private static class Entry {
+        final AircraftObject aircraft;
+        // The lower case texts joined by the separator
+        String text = "";
+
+        Entry(AircraftObject aircraft) {
+            this.aircraft = aircraft;
+        }
+    }
+
+    private final HashMap<AircraftObject, Entry> entries = new HashMap<>();
+    private final HashMap<Long, Set<Entry>> grams = new HashMap<>();
+    // The texts of the aircraft being updated. Only used while holding the lock
+    private final StringBuilder text = new StringBuilder();
+    // Counts the changes of the indexed texts
+    private volatile int version;
+
+    /**
+     * Indexes the current texts of the aircraft, if they changed since the last time. Called for
+     * every message carrying a text, so an unchanged text is recognized without allocating.
+     */
+    public synchronized void update(AircraftObject aircraft) {
+        textOf(aircraft, text);
+        Entry entry = entries.get(aircraft);
+        if (entry == null) {
+            entry = new Entry(aircraft);
+            entries.put(aircraft, entry);
+        } else if (entry.text.contentEquals(text)) {
+            return;
+        }
+        removeGrams(entry);
+        entry.text = text.toString();
+        addGrams(entry);
+        version++;
+    }
+
+    public synchronized void remove(AircraftObject aircraft) {
+        Entry entry = entries.remove(aircraft);
+        if (entry != null) {
+            removeGrams(entry);
+            version++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        grams.clear();
+        version++;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    /** Changes whenever the indexed texts change, so a search only needs repeating then */
+    public int getVersion() { return version; }
+
+    /**
+     * Returns the aircraft with a text containing the query, those where a text starts with it
+     * first. An empty query matches nothing.
+     */
+    public synchronized List<AircraftObject> search(String query) {
+        String needle = query.trim().toLowerCase(Locale.US);
+        if (needle.isEmpty() || needle.indexOf(SEPARATOR) >= 0)
+            return Collections.emptyList();
+
+        Iterable<Entry> candidates = entries.values();
+        if (needle.length() >= GRAM_LENGTH) {
+            Set<Entry> rarest = null;
+            for (int i = 0; i + GRAM_LENGTH <= needle.length(); i++) {
+                Set<Entry> set = grams.get(gram(needle, i));
+                if (set == null)
+                    return Collections.emptyList();
+                if (rarest == null || set.size() < rarest.size())
+                    rarest = set;
+            }
+            candidates = rarest;
+        }
+
+        String fieldStart = SEPARATOR + needle;
+        List<AircraftObject> prefixMatches = new ArrayList<>();
+        List<AircraftObject> otherMatches = new ArrayList<>();
+        for (Entry entry : candidates) {
+            int index = entry.text.indexOf(needle);
+            if (index < 0)
+                continue;
+            if (index == 0 || entry.text.contains(fieldStart))
+                prefixMatches.add(entry.aircraft);
+            else
+                otherMatches.add(entry.aircraft);
+        }
+        prefixMatches.addAll(otherMatches);
+        return prefixMatches;
+    }
+
+    private void addGrams(Entry entry) {
+        for (long gram : gramsOf(entry.text)) {
+            Set<Entry> set = grams.get(gram);
+            if (set == null) {
+                set = new HashSet<>();
+                grams.put(gram, set);
+            }
+            set.add(entry);
+        }
+    }
+
+    private void removeGrams(Entry entry) {
+        for (long gram : gramsOf(entry.text)) {
+            Set<Entry> set = grams.get(gram);
+            if (set != null && set.remove(entry) && set.isEmpty())
+                grams.remove(gram);
+        }
+    }
+
+    private static Set<Long> gramsOf(String text) {
+        Set<Long> set = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            if (text.charAt(i) != SEPARATOR && text.charAt(i + 1) != SEPARATOR &&
+                    text.charAt(i + 2) != SEPARATOR)
+                set.add(gram(text, i));
+        }
+        return set;
+    }
+
+    private static long gram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) |
+                text.charAt(start + 2);
+    }
+
+    /** Writes the texts of the aircraft to sb as the data classes format them */
+    private static void textOf(AircraftObject aircraft, StringBuilder sb) {
+        sb.setLength(0);
+        Identification id1 = aircraft.getIdentification1();
+        if (id1 != null)
+            appendUasId(sb, id1);
+        Identification id2 = aircraft.getIdentification2();
+        if (id2 != null)
+            appendUasId(sb, id2);
+        OperatorIdData operatorId = aircraft.getOperatorID();
+        if (operatorId != null)
+            appendText(sb, operatorId.getOperatorId(), "Invalid String");
+        SelfIdData selfId = aircraft.getSelfID();
+        if (selfId != null)
+            appendText(sb, selfId.getOperationDescription(), "Invalid String");
+    }
+
+    /** Appends the UAS ID as getUasIdAsString() shows it, without creating the string */
+    private static void appendUasId(StringBuilder sb, Identification id) {
+        byte[] uasId = id.getUasId();
+        if (uasId == null)
+            return;
+        switch (id.getIdType()) {
+            case Serial_Number:
+            case CAA_Registration_ID:
+                appendText(sb, uasId, "Invalid ID String");
+                break;
+            case UTM_Assigned_ID:
+            case Specific_Session_ID:
+                if (sb.length() > 0)
+                    sb.append(SEPARATOR);
+                int start = sb.length();
+                sb.append("0x");
+                for (byte b : uasId)
+                    Format.appendHex(sb, b);
+                for (int i = start; i < sb.length(); i++)
+                    sb.setCharAt(i, Character.toLowerCase(sb.charAt(i)));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Appends the text of the bytes up to its zero padding in lower case, after a separator if
+     * needed. Bytes that are not printable make it the invalid text, as in the data classes.
+     */
+    private static void appendText(StringBuilder sb, byte[] text, String invalid) {
+        if (text == null)
+            return;
+        for (int c : text) {
+            if ((c <= 31 || c >= 127) && c != 0) {
+                appendText(sb, invalid);
+                return;
+            }
+        }
+        int end = 0;
+        while (end < text.length && text[end] != 0)
+            end++;
+        while (end > 0 && text[end - 1] == ' ')
+            end--;
+        if (end == 0)
+            return;
+        if (sb.length() > 0)
+            sb.append(SEPARATOR);
+        for (int i = 0; i < end; i++)
+            sb.append(Character.toLowerCase((char) text[i]));
+    }
+
+    /** Appends the text in lower case, after a separator if needed */
+    private static void appendText(StringBuilder sb, String text) {
+        if (sb.length() > 0)
+            sb.append(SEPARATOR);
+        for (int i = 0; i < text.length(); i++)
+            sb.append(Character.toLowerCase(text.charAt(i)));
+    }
+}
@@ -6,9 +6,13 @@
  */
 package org.opendroneid.android.data;
 
-import java.util.Locale;
-
 public class SystemData extends MessageData {
+    private static final int SLOT_OPERATOR_LATITUDE = FIRST_SUBCLASS_SLOT;
+    private static final int SLOT_OPERATOR_LONGITUDE = FIRST_SUBCLASS_SLOT + 1;
+    private static final int SLOT_AREA_RADIUS = FIRST_SUBCLASS_SLOT + 2;
+    private static final int SLOT_AREA_CEILING = FIRST_SUBCLASS_SLOT + 3;
+    private static final int SLOT_AREA_FLOOR = FIRST_SUBCLASS_SLOT + 4;
+    private static final int SLOT_OPERATOR_ALTITUDE_GEO = FIRST_SUBCLASS_SLOT + 5;
 
     private operatorLocationTypeEnum operatorLocationType;
     private classificationTypeEnum classificationType;
@@ -80,7 +84,7 @@ public class SystemData extends MessageData {
     public String getOperatorLatitudeAsString() {
         if (operatorLatitude == 0 && operatorLongitude == 0)
             return "Unknown";
-        return String.format(Locale.US,"%3.7f", operatorLatitude);
+        return fixed(SLOT_OPERATOR_LATITUDE, operatorLatitude, 3, 7, "");
     }
 
     public void setOperatorLongitude(double operatorLongitude) {
@@ -94,7 +98,7 @@ public class SystemData extends MessageData {
     public String getOperatorLongitudeAsString() {
         if (operatorLatitude == 0 && operatorLongitude == 0)
             return "Unknown";
-        return String.format(Locale.US,"%3.7f", operatorLongitude);
+        return fixed(SLOT_OPERATOR_LONGITUDE, operatorLongitude, 3, 7, "");
     }
 
     public void setAreaCount(int areaCount) { this.areaCount = areaCount; }
@@ -103,22 +107,25 @@ public class SystemData extends MessageData {
     public void setAreaRadius(int areaRadius) { this.areaRadius = areaRadius; }
     public int getAreaRadius() { return areaRadius; }
     public String getAreaRadiusAsString() {
-        return String.format(Locale.US,"%d m", areaRadius);
+        String text = getFormatted(SLOT_AREA_RADIUS, areaRadius);
+        if (text == null)
+            text = putFormatted(SLOT_AREA_RADIUS, areaRadius, Format.integer(areaRadius, 0, " m"));
+        return text;
     }
 
-    private String getAltitudeAsString(double altitude) {
+    private String getAltitudeAsString(int slot, double altitude) {
         if (altitude == -1000)
             return "Unknown";
-        return String.format(Locale.US,"%3.1f m", altitude);
+        return fixed(slot, altitude, 3, 1, " m");
     }
 
     public void setAreaCeiling(double areaCeiling) { this.areaCeiling = areaCeiling; }
     public double getAreaCeiling() { return areaCeiling; }
-    public String getAreaCeilingAsString() { return getAltitudeAsString(areaCeiling); }
+    public String getAreaCeilingAsString() { return getAltitudeAsString(SLOT_AREA_CEILING, areaCeiling); }
 
     public void setAreaFloor(double areaFloor) { this.areaFloor = areaFloor; }
     public double getAreaFloor() { return areaFloor; }
-    public String getAreaFloorAsString() { return getAltitudeAsString(areaFloor); }
+    public String getAreaFloorAsString() { return getAltitudeAsString(SLOT_AREA_FLOOR, areaFloor); }
 
     public enum categoryEnum {
         Undeclared,
@@ -175,7 +182,7 @@ public class SystemData extends MessageData {
     }
     public double getOperatorAltitudeGeo() { return operatorAltitudeGeo; }
     public String getOperatorAltitudeGeoAsString() {
-        return getAltitudeAsString(operatorAltitudeGeo);
+        return getAltitudeAsString(SLOT_OPERATOR_ALTITUDE_GEO, operatorAltitudeGeo);
     }
 }
 
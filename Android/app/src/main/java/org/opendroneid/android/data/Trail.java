@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+/**
+ * The flown path of one aircraft with a bounded number of vertices. New points are appended as
+ * they arrive. When the trail is full, the older part is simplified with the Douglas-Peucker
+ * algorithm, with a tolerance that only grows, while the newest points are kept as received.
+ * The arrays grow with the trail, so the trails of short lived aircraft stay small.
+ */
+public class Trail {
+    private static final double METERS_PER_DEGREE = 111320;
+    // Points closer than this to the last one are not added
+    private static final double MIN_SPACING_METERS = 1;
+    private static final double MIN_TOLERANCE_METERS = 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] latitudes;
+    private double[] longitudes;
+    private int size;
+    private int maxVertices;
+    private double toleranceMeters = MIN_TOLERANCE_METERS;
+    // Work arrays of the simplification, allocated when the trail first fills up
+    private boolean[] keep;
+    private int[] stack;
+    // Counts the changes of the points
+    private int version;
+
+    public Trail(int maxVertices) {
+        setMaxVertices(maxVertices);
+    }
+
+    public int size() { return size; }
+
+    public double getLatitude(int index) { return latitudes[index]; }
+
+    public double getLongitude(int index) { return longitudes[index]; }
+
+    public int getMaxVertices() { return maxVertices; }
+
+    /** Changes whenever the points change, so a drawn trail only needs updating then */
+    public int getVersion() { return version; }
+
+    /** Changes the vertex cap, simplifying the trail right away if it is over the new cap */
+    public void setMaxVertices(int maxVertices) {
+        maxVertices = Math.max(maxVertices, 8);
+        if (maxVertices == this.maxVertices)
+            return;
+        this.maxVertices = maxVertices;
+        keep = null;
+        stack = null;
+        if (size > maxVertices) {
+            simplify();
+            version++;
+        }
+        resize(Math.min(Math.max(size, INITIAL_CAPACITY), maxVertices + 1));
+    }
+
+    private void resize(int capacity) {
+        double[] newLatitudes = new double[capacity];
+        double[] newLongitudes = new double[capacity];
+        if (size > 0) {
+            System.arraycopy(latitudes, 0, newLatitudes, 0, size);
+            System.arraycopy(longitudes, 0, newLongitudes, 0, size);
+        }
+        latitudes = newLatitudes;
+        longitudes = newLongitudes;
+    }
+
+    /** Returns false if the point was not added because it is too close to the last one */
+    public boolean add(double latitude, double longitude) {
+        if (size > 0 && distanceMeters(latitudes[size - 1], longitudes[size - 1],
+                latitude, longitude) < MIN_SPACING_METERS)
+            return false;
+        if (size == latitudes.length)
+            resize(Math.min(2 * size, maxVertices + 1));
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        size++;
+        if (size > maxVertices)
+            simplify();
+        version++;
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+        toleranceMeters = MIN_TOLERANCE_METERS;
+        version++;
+    }
+
+    /**
+     * Simplifies all but the newest quarter of the points, doubling the tolerance until the
+     * trail is down to three quarters of the cap. The slack keeps this from running on every add.
+     */
+    private void simplify() {
+        if (keep == null || keep.length < size) {
+            keep = new boolean[size];
+            stack = new int[2 * size];
+        }
+        int recent = maxVertices / 4;
+        int target = maxVertices * 3 / 4;
+        int older = size - recent;
+        while (size > target && older > 2) {
+            int kept = douglasPeucker(older, toleranceMeters);
+            int removed = older - kept;
+            older = kept;
+            size -= removed;
+            if (size > target)
+                toleranceMeters *= 2;
+        }
+        // Very short caps cannot be met by simplifying, drop the oldest points instead
+        if (size > maxVertices) {
+            int drop = size - maxVertices;
+            System.arraycopy(latitudes, drop, latitudes, 0, maxVertices);
+            System.arraycopy(longitudes, drop, longitudes, 0, maxVertices);
+            size = maxVertices;
+        }
+    }
+
+    /**
+     * Simplifies the first count points in place, keeping both ends, and moves the points after
+     * them down. Returns the number of points kept out of count.
+     */
+    private int douglasPeucker(int count, double tolerance) {
+        for (int i = 0; i < count; i++)
+            keep[i] = false;
+        keep[0] = true;
+        keep[count - 1] = true;
+        // Longitude degrees are shorter away from the equator
+        double scale = Math.cos(Math.toRadians(latitudes[0]));
+
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double maxDistance = 0;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceMeters(i, first, last, scale);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+            if (index >= 0 && maxDistance > tolerance) {
+                keep[index] = true;
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                latitudes[kept] = latitudes[i];
+                longitudes[kept] = longitudes[i];
+                kept++;
+            }
+        }
+        System.arraycopy(latitudes, count, latitudes, kept, size - count);
+        System.arraycopy(longitudes, count, longitudes, kept, size - count);
+        return kept;
+    }
+
+    /** Distance of point i to the segment from point a to point b, on a local flat projection */
+    private double segmentDistanceMeters(int i, int a, int b, double scale) {
+        double ax = longitudes[a] * scale, ay = latitudes[a];
+        double dx = longitudes[b] * scale - ax, dy = latitudes[b] - ay;
+        double px = longitudes[i] * scale - ax, py = latitudes[i] - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared)) : 0;
+        double ex = px - t * dx, ey = py - t * dy;
+        return Math.sqrt(ex * ex + ey * ey) * METERS_PER_DEGREE;
+    }
+
+    private static double distanceMeters(double latitude1, double longitude1,
+                                         double latitude2, double longitude2) {
+        double scale = Math.cos(Math.toRadians(latitude1));
+        double dx = (longitude2 - longitude1) * scale, dy = latitude2 - latitude1;
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+import org.opendroneid.android.bluetooth.Transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary capture format for received frames. The file starts with a magic string and a
+ * format version, followed by one length-prefixed record per frame (big endian):
+ *
+ *   int    record length, excluding this field
+ *   int    session
+ *   long   timestamp (nanos, SystemClock.elapsedRealtimeNanos() time base)
+ *   byte   transport (index into TRANSPORTS)
+ *   long   endpoint key
+ *   byte   rssi
+ *   byte   message version
+ *   byte   offset of the first message in the frame data
+ *   short  endpoint length, followed by the endpoint as UTF-8
+ *   short  frame data length, followed by the raw frame data
+ *
+ * Decoding is left for when the log is read. Use exportCsv() to get the same CSV as LogWriter
+ * writes, except for the distance column, which needs the receiver location.
+ */
+public class BinaryLogFormat {
+    static final byte[] MAGIC = "ODIDLOG".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final String[] TRANSPORTS = new String[] {
+            Transport.BT4, Transport.BT5, Transport.NAN, Transport.BEACON
+    };
+    private static final int FIXED_RECORD_SIZE = 4 + 8 + 1 + 8 + 1 + 1 + 1 + 2 + 2;
+    // The endpoint and the frame data each have a 16 bit length
+    static final int MAX_RECORD_SIZE = FIXED_RECORD_SIZE + 2 * 0xFFFF;
+
+    static final int HEADER_SIZE = MAGIC.length + 2;
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    static void writeHeader(ByteBuffer out) {
+        out.put(MAGIC);
+        out.putShort((short) VERSION);
+    }
+
+    private static byte[] endpointBytes(LogEntry entry) {
+        return entry.macAddress != null
+                ? entry.macAddress.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    static void writeRecord(DataOutputStream out, LogEntry entry) throws IOException {
+        byte[] endpoint = endpointBytes(entry);
+        int transport = Arrays.asList(TRANSPORTS).indexOf(entry.transportType);
+
+        out.writeInt(FIXED_RECORD_SIZE + endpoint.length + entry.data.length);
+        out.writeInt(entry.session);
+        out.writeLong(entry.timestamp);
+        out.writeByte(transport);
+        out.writeLong(entry.endpointKey);
+        out.writeByte(entry.rssi);
+        out.writeByte(entry.msgVersion);
+        out.writeByte(entry.offset);
+        out.writeShort(endpoint.length);
+        out.write(endpoint);
+        out.writeShort(entry.data.length);
+        out.write(entry.data);
+    }
+
+    /** Writes the record directly into a mapped log file, in the same layout as above */
+    static void writeRecord(MappedLogFile out, LogEntry entry) throws IOException {
+        byte[] endpoint = endpointBytes(entry);
+        int transport = Arrays.asList(TRANSPORTS).indexOf(entry.transportType);
+        int length = FIXED_RECORD_SIZE + endpoint.length + entry.data.length;
+
+        ByteBuffer buffer = out.reserve(4 + length);
+        buffer.putInt(length);
+        buffer.putInt(entry.session);
+        buffer.putLong(entry.timestamp);
+        buffer.put((byte) transport);
+        buffer.putLong(entry.endpointKey);
+        buffer.put((byte) entry.rssi);
+        buffer.put((byte) entry.msgVersion);
+        buffer.put((byte) entry.offset);
+        buffer.putShort((short) endpoint.length);
+        buffer.put(endpoint);
+        buffer.putShort((short) entry.data.length);
+        buffer.put(entry.data);
+    }
+
+    /**
+     * Returns the length of the complete records at the start of a binary log, i.e. where a log
+     * cut short by a crash ends. Stops at a record running past the end of the file, at the
+     * zeros preallocated by the memory mapped writer and at any record which is inconsistent.
+     */
+    static long completeLength(File file) throws IOException {
+        long fileLength = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            if (fileLength < HEADER_SIZE)
+                return 0;
+            in.readFully(magic);
+            in.readUnsignedShort();
+            if (!Arrays.equals(magic, MAGIC))
+                return 0;
+
+            long end = HEADER_SIZE;
+            byte[] record = new byte[1024];
+            while (fileLength - end >= 4) {
+                int length = in.readInt();
+                if (length < FIXED_RECORD_SIZE || length > MAX_RECORD_SIZE ||
+                        length > fileLength - end - 4)
+                    break;
+                if (record.length < length)
+                    record = new byte[length];
+                in.readFully(record, 0, length);
+
+                // The two variable length fields must add up to the record length
+                int endpointLength = ((record[24] & 0xFF) << 8) | (record[25] & 0xFF);
+                if (FIXED_RECORD_SIZE + endpointLength > length)
+                    break;
+                int dataLengthAt = 26 + endpointLength;
+                int dataLength = ((record[dataLengthAt] & 0xFF) << 8) | (record[dataLengthAt + 1] & 0xFF);
+                if (FIXED_RECORD_SIZE + endpointLength + dataLength != length)
+                    break;
+                end += 4 + length;
+            }
+            return end;
+        }
+    }
+
+    /** Returns true if the file starts with the binary log magic string */
+    public static boolean isBinaryLog(File file) {
+        try (InputStream in = LogRotation.openInput(file)) {
+            byte[] magic = new byte[MAGIC.length];
+            return in.read(magic) == MAGIC.length && Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        // Offset of the next record in the uncompressed file
+        private long position = HEADER_SIZE;
+        // Length of the uncompressed file, unknown for compressed segments
+        private final long fileLength;
+
+        public Reader(File file) throws IOException {
+            fileLength = file.getName().endsWith(LogRotation.GZIP_SUFFIX) ? Long.MAX_VALUE : file.length();
+            in = new DataInputStream(new BufferedInputStream(LogRotation.openInput(file)));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a binary log");
+            int version = in.readUnsignedShort();
+            if (version > VERSION)
+                throw new IOException("Unsupported binary log version " + version);
+        }
+
+        /**
+         * Returns the next entry, or null at the end of the file. A record cut short, e.g. by
+         * the app being killed while logging, is treated as the end of the file. A record length
+         * no record can have is reported as corruption, before anything is allocated for it.
+         */
+        LogEntry read() throws IOException {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                // Zeros preallocated by the memory mapped writer, left behind by a crash
+                if (length == 0)
+                    return null;
+                if (length < FIXED_RECORD_SIZE || length > MAX_RECORD_SIZE)
+                    throw new IOException("Corrupt record length " + length + " at " + position);
+                if (length > fileLength - position - 4)
+                    return null;
+                record = new byte[length];
+                in.readFully(record);
+                position += 4 + length;
+            } catch (EOFException e) {
+                return null;
+            }
+
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            LogEntry entry = new LogEntry();
+            entry.session = recordIn.readInt();
+            entry.timestamp = recordIn.readLong();
+            int transport = recordIn.readUnsignedByte();
+            entry.transportType = transport < TRANSPORTS.length ? TRANSPORTS[transport] : "Unknown";
+            entry.endpointKey = recordIn.readLong();
+            entry.rssi = recordIn.readByte();
+            entry.msgVersion = recordIn.readUnsignedByte();
+            entry.offset = recordIn.readUnsignedByte();
+            byte[] endpoint = new byte[recordIn.readUnsignedShort()];
+            recordIn.readFully(endpoint);
+            entry.macAddress = new String(endpoint, StandardCharsets.UTF_8);
+            entry.data = new byte[recordIn.readUnsignedShort()];
+            recordIn.readFully(entry.data);
+            return entry;
+        }
+
+        long getPosition() { return position; }
+
+        /** Skips forward to the record at the given offset, e.g. from a {@link LogIndex} */
+        void skipTo(long offset) throws IOException {
+            if (offset < position)
+                throw new IOException("Cannot skip back to " + offset);
+            LogIndex.skipFully(in, offset - position);
+            position = offset;
+        }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+
+    /** Converts a binary log to the CSV format written by LogWriter. Returns the record count */
+    public static long exportCsv(File binaryLog, File csvLog) throws IOException {
+        long count = 0;
+        try (Reader reader = new Reader(binaryLog);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                     new BufferedOutputStream(new FileOutputStream(csvLog)), StandardCharsets.UTF_8))) {
+            writer.write(LogEntry.csvHeader());
+            writer.newLine();
+            CsvEncoder csv = new CsvEncoder();
+            // Each entry is written before the next one is read, so the messages can be reused
+            LogMessageEntry messages = new LogMessageEntry();
+            LogEntry entry;
+            while ((entry = reader.read()) != null) {
+                messages.reset();
+                entry.messages = messages;
+                OpenDroneIdParser.parseForLog(entry.data, entry.offset, entry.timestamp,
+                                              entry.messages, null);
+                csv.reset();
+                entry.appendCsv(csv);
+                csv.writeTo(writer);
+                writer.newLine();
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar export of decoded logs for analytics, with one file per message type instead of the
+ * wide CSV rows. Each file is a table with typed columns, e.g. latitude, longitude and altitude
+ * of the Location messages, stored in blocks of BLOCK_ROWS rows:
+ *
+ *   magic, version, table name, column names and types
+ *   for each block, for each column: the values, big endian
+ *   footer: for each block, the row count and for each column its offset, min and max, as
+ *           doubles for DOUBLE columns and as longs for the others
+ *           for each dictionary column, the strings
+ *           offset of the footer, magic
+ *
+ * Strings like UAS IDs and endpoints are dictionary encoded. Every table has the timestamp,
+ * endpoint, UAS ID (the last one received from the endpoint) and RSSI columns. A reader only
+ * reads the columns it needs, and can skip blocks using their min and max.
+ *
+ * Use export() to convert a log, and Reader to read a table.
+ */
+public class ColumnarLog {
+    public static final String FILE_EXTENSION = ".col";
+    public static final int BLOCK_ROWS = 4096;
+
+    static final byte[] MAGIC = "ODIDCOL".getBytes(StandardCharsets.US_ASCII);
+    // Version 2 stores the min and max of the integer columns as longs
+    static final int VERSION = 2;
+
+    public enum ColumnType {
+        LONG(8),
+        INT(4),
+        DOUBLE(8),
+        // Index into the dictionary of the column
+        STRING(4);
+
+        ColumnType(int width) { this.width = width; }
+        final int width;
+    }
+
+    static class Table {
+        final String name;
+        final String[] columns;
+        final ColumnType[] types;
+
+        Table(String name, Object... columns) {
+            this.name = name;
+            int count = 4 + columns.length / 2;
+            this.columns = new String[count];
+            this.types = new ColumnType[count];
+            String[] common = { "timestamp", "endpoint", "uasId", "rssi" };
+            ColumnType[] commonTypes = { ColumnType.LONG, ColumnType.STRING, ColumnType.STRING, ColumnType.INT };
+            System.arraycopy(common, 0, this.columns, 0, 4);
+            System.arraycopy(commonTypes, 0, this.types, 0, 4);
+            for (int i = 0; i < columns.length / 2; i++) {
+                this.columns[4 + i] = (String) columns[i * 2];
+                this.types[4 + i] = (ColumnType) columns[i * 2 + 1];
+            }
+        }
+    }
+
+    static final Table BASIC_ID = new Table("basic_id",
+            "idType", ColumnType.INT,
+            "uaType", ColumnType.INT);
+    static final Table LOCATION = new Table("location",
+            "status", ColumnType.INT,
+            "latitude", ColumnType.DOUBLE,
+            "longitude", ColumnType.DOUBLE,
+            "altitudeGeodetic", ColumnType.DOUBLE,
+            "altitudePressure", ColumnType.DOUBLE,
+            "height", ColumnType.DOUBLE,
+            "speedHorizontal", ColumnType.DOUBLE,
+            "speedVertical", ColumnType.DOUBLE,
+            "direction", ColumnType.DOUBLE);
+    static final Table SELF_ID = new Table("self_id",
+            "descriptionType", ColumnType.INT,
+            "description", ColumnType.STRING);
+    static final Table SYSTEM = new Table("system",
+            "operatorLatitude", ColumnType.DOUBLE,
+            "operatorLongitude", ColumnType.DOUBLE,
+            "operatorAltitudeGeo", ColumnType.DOUBLE,
+            "areaCount", ColumnType.INT,
+            "areaRadius", ColumnType.INT,
+            "areaCeiling", ColumnType.DOUBLE,
+            "areaFloor", ColumnType.DOUBLE,
+            "category", ColumnType.INT,
+            "classValue", ColumnType.INT);
+    static final Table OPERATOR_ID = new Table("operator_id",
+            "operatorIdType", ColumnType.INT,
+            "operatorId", ColumnType.STRING);
+
+    /** Text fields of the messages are padded with zeros */
+    static String text(byte[] bytes) {
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0)
+            length++;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the table file of a log, e.g. log_x_location.col for log_x.csv.gz */
+    public static File tableFile(File dir, File log, String table) {
+        String name = log.getName();
+        if (name.endsWith(LogRotation.GZIP_SUFFIX))
+            name = name.substring(0, name.length() - LogRotation.GZIP_SUFFIX.length());
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        return new File(dir, stem + "_" + table + FILE_EXTENSION);
+    }
+
+    /** Writes one table file. Only used on one thread */
+    private static class TableWriter {
+        final Table table;
+        final File file;
+        private final DataOutputStream out;
+        private long position;
+        private int rows;
+        private int column;
+
+        // One value buffer per column, LONG in longs, DOUBLE in doubles, INT and STRING in ints
+        private final long[][] longs;
+        private final double[][] doubles;
+        private final int[][] ints;
+        private final List<Map<String, Integer>> codes = new ArrayList<>();
+        private final List<List<String>> dictionaries = new ArrayList<>();
+
+        // The block directory, written to the footer
+        private final List<Integer> blockRows = new ArrayList<>();
+        private final List<long[]> blockOffsets = new ArrayList<>();
+        // The bits of the doubles for DOUBLE columns, the values for the others
+        private final List<long[]> blockMins = new ArrayList<>();
+        private final List<long[]> blockMaxs = new ArrayList<>();
+
+        TableWriter(Table table, File file) throws IOException {
+            this.table = table;
+            this.file = file;
+            int count = table.columns.length;
+            longs = new long[count][];
+            doubles = new double[count][];
+            ints = new int[count][];
+            for (int i = 0; i < count; i++) {
+                switch (table.types[i]) {
+                    case LONG: longs[i] = new long[BLOCK_ROWS]; break;
+                    case DOUBLE: doubles[i] = new double[BLOCK_ROWS]; break;
+                    default: ints[i] = new int[BLOCK_ROWS]; break;
+                }
+                codes.add(table.types[i] == ColumnType.STRING ? new HashMap<>() : null);
+                dictionaries.add(table.types[i] == ColumnType.STRING ? new ArrayList<>() : null);
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(table.name);
+            out.writeShort(count);
+            for (int i = 0; i < count; i++) {
+                out.writeUTF(table.columns[i]);
+                out.writeByte(table.types[i].ordinal());
+            }
+            position = out.size();
+        }
+
+        TableWriter row(LogEntry entry, String uasId) {
+            column = 0;
+            return put(entry.timestamp).put(entry.macAddress).put(uasId).put(entry.rssi);
+        }
+
+        TableWriter put(long value) {
+            if (longs[column] != null)
+                longs[column][rows] = value;
+            else
+                ints[column][rows] = (int) value;
+            column++;
+            return this;
+        }
+
+        TableWriter put(double value) {
+            doubles[column++][rows] = value;
+            return this;
+        }
+
+        TableWriter put(String value) {
+            if (value == null)
+                value = "";
+            Map<String, Integer> columnCodes = codes.get(column);
+            Integer code = columnCodes.get(value);
+            if (code == null) {
+                code = columnCodes.size();
+                columnCodes.put(value, code);
+                dictionaries.get(column).add(value);
+            }
+            ints[column++][rows] = code;
+            return this;
+        }
+
+        void end() throws IOException {
+            if (++rows == BLOCK_ROWS)
+                writeBlock();
+        }
+
+        private void writeBlock() throws IOException {
+            int count = table.columns.length;
+            long[] offsets = new long[count];
+            long[] mins = new long[count];
+            long[] maxs = new long[count];
+            for (int c = 0; c < count; c++) {
+                offsets[c] = position;
+                if (doubles[c] != null) {
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int r = 0; r < rows; r++) {
+                        double value = doubles[c][r];
+                        out.writeDouble(value);
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                    mins[c] = Double.doubleToLongBits(min);
+                    maxs[c] = Double.doubleToLongBits(max);
+                } else {
+                    long min = Long.MAX_VALUE;
+                    long max = Long.MIN_VALUE;
+                    for (int r = 0; r < rows; r++) {
+                        long value;
+                        if (longs[c] != null) {
+                            value = longs[c][r];
+                            out.writeLong(value);
+                        } else {
+                            value = ints[c][r];
+                            out.writeInt(ints[c][r]);
+                        }
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                    mins[c] = min;
+                    maxs[c] = max;
+                }
+                position += (long) rows * table.types[c].width;
+            }
+            blockRows.add(rows);
+            blockOffsets.add(offsets);
+            blockMins.add(mins);
+            blockMaxs.add(maxs);
+            rows = 0;
+        }
+
+        void close() throws IOException {
+            try {
+                if (rows > 0)
+                    writeBlock();
+                long footer = position;
+                out.writeInt(blockRows.size());
+                for (int b = 0; b < blockRows.size(); b++) {
+                    out.writeInt(blockRows.get(b));
+                    for (int c = 0; c < table.columns.length; c++) {
+                        out.writeLong(blockOffsets.get(b)[c]);
+                        out.writeLong(blockMins.get(b)[c]);
+                        out.writeLong(blockMaxs.get(b)[c]);
+                    }
+                }
+                for (List<String> dictionary : dictionaries) {
+                    if (dictionary == null)
+                        continue;
+                    out.writeInt(dictionary.size());
+                    for (String value : dictionary)
+                        out.writeUTF(value);
+                }
+                out.writeLong(footer);
+                out.write(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the tables of one log. The table files are created when the first row for them
+     * arrives.
+     */
+    private static class Writer implements Closeable {
+        private final File dir;
+        private final File log;
+        private final Map<OpenDroneIdParser.Type, TableWriter> tables =
+                new EnumMap<>(OpenDroneIdParser.Type.class);
+        // The last UAS ID received from each endpoint
+        private final Map<String, String> uasIds = new HashMap<>();
+
+        /** Writes the tables into dir, named after the log file */
+        Writer(File dir, File log) {
+            this.dir = dir;
+            this.log = log;
+        }
+
+        private TableWriter table(OpenDroneIdParser.Type type, Table table) throws IOException {
+            TableWriter writer = tables.get(type);
+            if (writer == null) {
+                writer = new TableWriter(table, tableFile(dir, log, table.name));
+                tables.put(type, writer);
+            }
+            return writer;
+        }
+
+        /** Adds a row to the tables for each decoded message of the entry */
+        void add(LogEntry entry) throws IOException {
+            if (entry.messages == null)
+                return;
+            List<OpenDroneIdParser.Message<?>> messages = entry.messages.getMessages();
+            for (OpenDroneIdParser.Message<?> message : messages) {
+                if (message.header.type == OpenDroneIdParser.Type.BASIC_ID) {
+                    String uasId = LogMessageEntry.uasIdString((OpenDroneIdParser.BasicId) message.payload);
+                    if (!uasId.isEmpty())
+                        uasIds.put(entry.macAddress, uasId);
+                }
+            }
+            String uasId = uasIds.get(entry.macAddress);
+
+            for (OpenDroneIdParser.Message<?> message : messages) {
+                switch (message.header.type) {
+                    case BASIC_ID: {
+                        OpenDroneIdParser.BasicId basicId = (OpenDroneIdParser.BasicId) message.payload;
+                        table(message.header.type, BASIC_ID).row(entry, uasId)
+                                .put(basicId.getIdType())
+                                .put(basicId.getUaType())
+                                .end();
+                        break;
+                    }
+                    case LOCATION: {
+                        OpenDroneIdParser.Location location = (OpenDroneIdParser.Location) message.payload;
+                        table(message.header.type, LOCATION).row(entry, uasId)
+                                .put(location.getStatus())
+                                .put(location.getLatitude())
+                                .put(location.getLongitude())
+                                .put(location.getAltitudeGeodetic())
+                                .put(location.getAltitudePressure())
+                                .put(location.getHeight())
+                                .put(location.getSpeedHori())
+                                .put(location.getSpeedVert())
+                                .put(location.getDirection())
+                                .end();
+                        break;
+                    }
+                    case SELFID: {
+                        OpenDroneIdParser.SelfID selfId = (OpenDroneIdParser.SelfID) message.payload;
+                        table(message.header.type, SELF_ID).row(entry, uasId)
+                                .put(selfId.getDescriptionType())
+                                .put(text(selfId.getOperationDescription()))
+                                .end();
+                        break;
+                    }
+                    case SYSTEM: {
+                        OpenDroneIdParser.SystemMsg system = (OpenDroneIdParser.SystemMsg) message.payload;
+                        table(message.header.type, SYSTEM).row(entry, uasId)
+                                .put(system.getLatitude())
+                                .put(system.getLongitude())
+                                .put(system.getOperatorAltitudeGeo())
+                                .put(system.getAreaCount())
+                                .put(system.getAreaRadius())
+                                .put(system.getAreaCeiling())
+                                .put(system.getAreaFloor())
+                                .put(system.getCategory())
+                                .put(system.getClassValue())
+                                .end();
+                        break;
+                    }
+                    case OPERATOR_ID: {
+                        OpenDroneIdParser.OperatorID operatorId = (OpenDroneIdParser.OperatorID) message.payload;
+                        table(message.header.type, OPERATOR_ID).row(entry, uasId)
+                                .put(operatorId.getOperatorIdType())
+                                .put(text(operatorId.getOperatorId()))
+                                .end();
+                        break;
+                    }
+                    default:
+                        // Authentication pages are not useful column by column
+                        break;
+                }
+            }
+        }
+
+        /** The table files written so far */
+        List<File> getFiles() {
+            List<File> files = new ArrayList<>();
+            for (TableWriter table : tables.values())
+                files.add(table.file);
+            return files;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException error = null;
+            for (TableWriter table : tables.values()) {
+                try {
+                    table.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+
+    /**
+     * Reads a table file. The header and the footer are read when opening, the columns of a
+     * block when asked for.
+     */
+    static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final String table;
+        private final String[] columns;
+        private final ColumnType[] types;
+        private final int[] blockRows;
+        private final long[][] offsets;
+        // As written: the bits of the doubles for DOUBLE columns, the values for the others
+        private final long[][] mins;
+        private final long[][] maxs;
+        private final String[][] dictionaries;
+
+        Reader(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                this.file.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException(file + " is not a columnar log");
+                int version = this.file.readUnsignedShort();
+                if (version != VERSION)
+                    throw new IOException("Unsupported columnar log version " + version);
+                table = this.file.readUTF();
+                int count = this.file.readUnsignedShort();
+                columns = new String[count];
+                types = new ColumnType[count];
+                for (int i = 0; i < count; i++) {
+                    columns[i] = this.file.readUTF();
+                    types[i] = ColumnType.values()[this.file.readUnsignedByte()];
+                }
+
+                long length = this.file.length();
+                this.file.seek(length - MAGIC.length - 8);
+                long footer = this.file.readLong();
+                this.file.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException(file + " is incomplete");
+
+                this.file.seek(footer);
+                int blocks = this.file.readInt();
+                blockRows = new int[blocks];
+                offsets = new long[blocks][count];
+                mins = new long[blocks][count];
+                maxs = new long[blocks][count];
+                for (int b = 0; b < blocks; b++) {
+                    blockRows[b] = this.file.readInt();
+                    for (int c = 0; c < count; c++) {
+                        offsets[b][c] = this.file.readLong();
+                        mins[b][c] = this.file.readLong();
+                        maxs[b][c] = this.file.readLong();
+                    }
+                }
+                dictionaries = new String[count][];
+                for (int c = 0; c < count; c++) {
+                    if (types[c] != ColumnType.STRING)
+                        continue;
+                    dictionaries[c] = new String[this.file.readInt()];
+                    for (int i = 0; i < dictionaries[c].length; i++)
+                        dictionaries[c][i] = this.file.readUTF();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        String getTable() { return table; }
+
+        /** Returns the index of the column, or -1 */
+        int getColumn(String name) { return Arrays.asList(columns).indexOf(name); }
+
+        ColumnType getType(int column) { return types[column]; }
+
+        int getBlockCount() { return blockRows.length; }
+
+        int getRows(int block) { return blockRows[block]; }
+
+        long getRowCount() {
+            long count = 0;
+            for (int rows : blockRows)
+                count += rows;
+            return count;
+        }
+
+        /** The min of a LONG, INT or STRING column in the block */
+        long getMinLong(int block, int column) { return mins[block][column]; }
+
+        long getMaxLong(int block, int column) { return maxs[block][column]; }
+
+        /** The min of a column in the block, exact for DOUBLE and INT columns */
+        double getMin(int block, int column) {
+            return types[column] == ColumnType.DOUBLE ? Double.longBitsToDouble(mins[block][column])
+                                                      : mins[block][column];
+        }
+
+        double getMax(int block, int column) {
+            return types[column] == ColumnType.DOUBLE ? Double.longBitsToDouble(maxs[block][column])
+                                                      : maxs[block][column];
+        }
+
+        /** Returns false if no value of the integer column in the block lies between min and max */
+        boolean mayContain(int block, int column, long min, long max) {
+            return maxs[block][column] >= min && mins[block][column] <= max;
+        }
+
+        /** Returns false if no value of the column in the block lies between min and max */
+        boolean mayContain(int block, int column, double min, double max) {
+            return getMax(block, column) >= min && getMin(block, column) <= max;
+        }
+
+        private ByteBuffer readColumn(int block, int column) throws IOException {
+            byte[] bytes = new byte[blockRows[block] * types[column].width];
+            file.seek(offsets[block][column]);
+            file.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+
+        /** Reads a LONG, INT or STRING column. STRING values are indexes into the dictionary */
+        long[] readLongs(int block, int column) throws IOException {
+            ByteBuffer buffer = readColumn(block, column);
+            long[] values = new long[blockRows[block]];
+            for (int i = 0; i < values.length; i++)
+                values[i] = types[column] == ColumnType.LONG ? buffer.getLong() : buffer.getInt();
+            return values;
+        }
+
+        double[] readDoubles(int block, int column) throws IOException {
+            if (types[column] != ColumnType.DOUBLE) {
+                long[] longs = readLongs(block, column);
+                double[] values = new double[longs.length];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = longs[i];
+                return values;
+            }
+            ByteBuffer buffer = readColumn(block, column);
+            double[] values = new double[blockRows[block]];
+            buffer.asDoubleBuffer().get(values);
+            return values;
+        }
+
+        String[] getDictionary(int column) { return dictionaries[column]; }
+
+        @Override
+        public void close() throws IOException { file.close(); }
+    }
+
+    /** Converts a CSV or binary log, which may be compressed, into table files in dir */
+    public static List<File> export(File log, File dir) throws IOException {
+        long start = BinaryLogFormat.isBinaryLog(log) ? BinaryLogFormat.HEADER_SIZE : 0;
+        try (Writer writer = new Writer(dir, log)) {
+            LogIndex.scan(log, Collections.singletonList(new LogIndex.Range(start, Long.MAX_VALUE)), entry -> {
+                try {
+                    if (!entry.decodeMessages())
+                        return;
+                } catch (RuntimeException e) {
+                    // Keep what was decoded
+                }
+                writer.add(entry);
+            });
+            return writer.getFiles();
+        }
+    }
+}
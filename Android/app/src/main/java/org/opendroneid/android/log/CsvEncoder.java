@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Formats CSV fields into a reusable char buffer, without creating intermediate strings for
+ * numbers, hex dumps or the ASCII text fields of the messages. One instance is owned by the
+ * log writer thread and reused for every line.
+ *
+ * The output is identical to the string concatenation previously used for the log lines.
+ */
+public class CsvEncoder {
+    static final char DELIM = ',';
+
+    static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] DIGIT_TENS = new char[100];
+    private static final char[] DIGIT_ONES = new char[100];
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (char) ('0' + i / 10);
+            DIGIT_ONES[i] = (char) ('0' + i % 10);
+        }
+    }
+
+    private char[] buffer = new char[4096];
+    private int length;
+
+    public void reset() { length = 0; }
+
+    public int length() { return length; }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            char[] newBuffer = new char[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+
+    public CsvEncoder delim() { return append(DELIM); }
+
+    public CsvEncoder append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = c;
+        return this;
+    }
+
+    public CsvEncoder append(String s) {
+        int n = s.length();
+        ensureCapacity(n);
+        s.getChars(0, n, buffer, length);
+        length += n;
+        return this;
+    }
+
+    public CsvEncoder append(int value) { return append((long) value); }
+
+    public CsvEncoder append(long value) {
+        if (value == Long.MIN_VALUE)
+            return append(Long.toString(value));
+
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+
+        // Fill in the digits from the end of the field, two at a time
+        int end = length + digitCount(value);
+        int pos = end;
+        while (value >= 100) {
+            int pair = (int) (value % 100);
+            value /= 100;
+            buffer[--pos] = DIGIT_ONES[pair];
+            buffer[--pos] = DIGIT_TENS[pair];
+        }
+        int last = (int) value;
+        buffer[--pos] = DIGIT_ONES[last];
+        if (last >= 10)
+            buffer[--pos] = DIGIT_TENS[last];
+        length = end;
+        return this;
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    /** Same output as String.valueOf(value), which has no allocation free equivalent */
+    public CsvEncoder append(float value) { return append(Float.toString(value)); }
+
+    /** Appends len bytes as upper case hex, each followed by a space */
+    public CsvEncoder appendHex(byte[] bytes, int len) {
+        len = Math.min(len, bytes.length);
+        ensureCapacity(len * 3);
+        for (int i = 0; i < len; i++) {
+            int val = bytes[i] & 0xFF;
+            buffer[length++] = HEX_DIGITS[val >> 4];
+            buffer[length++] = HEX_DIGITS[val & 0x0F];
+            buffer[length++] = ' ';
+        }
+        return this;
+    }
+
+    /**
+     * Appends a text field the same way as new String(bytes) would decode it. ASCII, which is
+     * what the specification allows, is copied directly. Anything else goes through the decoder.
+     */
+    public CsvEncoder appendText(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0)
+                return append(new String(bytes));
+        }
+        ensureCapacity(bytes.length);
+        for (byte b : bytes)
+            buffer[length++] = (char) b;
+        return this;
+    }
+
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(buffer, 0, length);
+    }
+
+    public void writeTo(MappedLogFile file) throws IOException {
+        file.write(buffer, length);
+    }
+
+    @Override @NonNull
+    public String toString() { return new String(buffer, 0, length); }
+}
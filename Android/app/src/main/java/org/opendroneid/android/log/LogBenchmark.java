@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+import org.opendroneid.android.bluetooth.RawFrame;
+import org.opendroneid.android.bluetooth.SwarmSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the sustained throughput of {@link LogWriter} for the log formats, flush policies
+ * and the stream and memory mapped output. Synthetic frames are logged with the BLOCK overflow
+ * policy, so the result is the rate at which the writer thread gets the entries onto the
+ * storage, including close(). The CPU time covers both the logging and the writer thread.
+ */
+public class LogBenchmark {
+    private static final String TAG = "LogBenchmark";
+
+    public static class Result {
+        public final String name;
+        public final long records;
+        public final long millis;
+        public final long bytes;
+        public final long cpuMillis;
+
+        Result(String name, long records, long millis, long bytes, long cpuMillis) {
+            this.name = name;
+            this.records = records;
+            this.millis = millis;
+            this.bytes = bytes;
+            this.cpuMillis = cpuMillis;
+        }
+
+        public double getRecordsPerSecond() { return millis > 0 ? records * 1000.0 / millis : 0; }
+
+        /** CPU time of the whole process per record, in microseconds */
+        public double getCpuMicrosPerRecord() { return records > 0 ? cpuMillis * 1000.0 / records : 0; }
+
+        @Override @NonNull
+        public String toString() {
+            return String.format(Locale.US, "%s: %.0f records/s, %.1f MB/s, %d bytes/record, %.1f us CPU/record",
+                    name, getRecordsPerSecond(), millis > 0 ? bytes / 1000.0 / millis : 0,
+                    records > 0 ? bytes / records : 0, getCpuMicrosPerRecord());
+        }
+    }
+
+    private static class Config {
+        final String name;
+        final LogWriter.Format format;
+        final int flushRecords;
+        final long flushMillis;
+        final boolean sync;
+        final boolean mapped;
+
+        Config(String name, LogWriter.Format format, int flushRecords, long flushMillis, boolean sync,
+               boolean mapped) {
+            this.name = name;
+            this.format = format;
+            this.flushRecords = flushRecords;
+            this.flushMillis = flushMillis;
+            this.sync = sync;
+            this.mapped = mapped;
+        }
+    }
+
+    private static final Config[] CONFIGS = new Config[] {
+            new Config("CSV, flush every 1 s", LogWriter.Format.CSV, 0, 1000, false, false),
+            new Config("CSV, fsync every 1 s", LogWriter.Format.CSV, 0, 1000, true, false),
+            new Config("CSV mapped, flush every 1 s", LogWriter.Format.CSV, 0, 1000, false, true),
+            new Config("Binary, flush every 1 s", LogWriter.Format.BINARY, 0, 1000, false, false),
+            new Config("Binary, flush every 100 records", LogWriter.Format.BINARY, 100, 0, false, false),
+            new Config("Binary, fsync every 100 records", LogWriter.Format.BINARY, 100, 0, true, false),
+            new Config("Binary mapped, flush every 1 s", LogWriter.Format.BINARY, 0, 1000, false, true),
+            new Config("Binary mapped, fsync every 100 records", LogWriter.Format.BINARY, 100, 0, true, true),
+    };
+
+    /** Runs all configurations in dir, writing frameCount frames each. Blocks for a while */
+    public static List<Result> run(File dir, int frameCount) throws IOException {
+        ArrayList<RawFrame> frames = new ArrayList<>(frameCount);
+        SwarmSimulator.Config simulatorConfig = new SwarmSimulator.Config();
+        SwarmSimulator simulator = new SwarmSimulator(simulatorConfig, frame -> {
+            if (frames.size() < frameCount)
+                frames.add(frame);
+        }, Runnable::run);
+        while (frames.size() < frameCount)
+            simulator.runBlocking(10000);
+
+        ArrayList<LogMessageEntry> messages = new ArrayList<>(frameCount);
+        for (RawFrame frame : frames) {
+            LogMessageEntry entry = new LogMessageEntry();
+            OpenDroneIdParser.parseForLog(frame.data, frame.offset, frame.timestampNanos, entry, null);
+            messages.add(entry);
+        }
+
+        // Not starting with the prefix of the logs, which would count it towards their disk cap
+        File file = new File(dir, "benchmark.tmp");
+        // Warm up, so that the first configuration is not penalized by class loading and JIT
+        runOne(CONFIGS[0], file, frames, messages);
+
+        ArrayList<Result> results = new ArrayList<>();
+        for (Config config : CONFIGS) {
+            Result result = runOne(config, file, frames, messages);
+            Log.i(TAG, result.toString());
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static Result runOne(Config config, File file, List<RawFrame> frames,
+                                 List<LogMessageEntry> messages) throws IOException {
+        LogWriter writer = new LogWriter(file, config.format, LogWriter.DEFAULT_QUEUE_CAPACITY,
+                                         LogWriter.OverflowPolicy.BLOCK, null, null, config.mapped);
+        writer.setFlushPolicy(config.flushRecords, config.flushMillis, config.sync);
+        long start = System.nanoTime();
+        long cpuStart = Process.getElapsedCpuTime();
+        for (int i = 0; i < frames.size(); i++)
+            writer.log(frames.get(i), messages.get(i));
+        writer.close();
+        long millis = (System.nanoTime() - start) / 1000000;
+        long cpuMillis = Process.getElapsedCpuTime() - cpuStart;
+
+        Result result = new Result(config.name, writer.getStats().written, millis, file.length(),
+                                   cpuMillis);
+        for (File written : new File[] { file, LogIndex.indexFile(file) }) {
+            if (written.exists() && !written.delete())
+                Log.w(TAG, "could not delete " + written);
+        }
+        return result;
+    }
+}
@@ -8,15 +8,23 @@ package org.opendroneid.android.log;
 
 import androidx.annotation.NonNull;
 
+import org.opendroneid.android.Constants;
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+import org.opendroneid.android.bluetooth.RawFrame;
+
 public class LogEntry {
     int session;
     long timestamp;
     String transportType;
     String macAddress;
+    // Only known for entries from binary logs. Zero offset means not known
+    long endpointKey;
+    int offset;
     int msgVersion;
     int rssi;
     byte[] data;
-    StringBuilder csvLog;
+    // Decoded messages, formatted when the entry is written
+    LogMessageEntry messages;
 
     final static String[] HEADER = new String[]{
             "session",
@@ -30,16 +38,54 @@ public class LogEntry {
 
     static final String DELIM = ",";
 
+    static String csvHeader() {
+        StringBuilder sb = new StringBuilder();
+        // Joined by hand rather than with TextUtils, so that the log tools also run on the JVM
+        for (int i = 0; i < HEADER.length; i++)
+            sb.append(i > 0 ? DELIM : "").append(HEADER[i]);
+        sb.append(DELIM).append(OpenDroneIdParser.BasicId.csvHeader());
+        sb.append(OpenDroneIdParser.BasicId.csvHeader());
+        sb.append(OpenDroneIdParser.Location.csvHeader());
+        sb.append(OpenDroneIdParser.SelfID.csvHeader());
+        sb.append(OpenDroneIdParser.SystemMsg.csvHeader());
+        sb.append(OpenDroneIdParser.OperatorID.csvHeader());
+        for (int i = 0; i < Constants.MAX_AUTH_DATA_PAGES; i++)
+            sb.append(OpenDroneIdParser.Authentication.csvHeader());
+        return sb.toString();
+    }
+
+    void appendCsv(CsvEncoder csv) {
+        csv.append(session).delim()
+                .append(timestamp).delim()
+                .append(String.valueOf(transportType)).delim()
+                .append(String.valueOf(macAddress)).delim()
+                .append(msgVersion).delim()
+                .append(rssi).delim()
+                .appendHex(data, data.length).delim();
+        if (messages == null || messages.isEmpty())
+            csv.append("null");
+        else
+            messages.appendCsv(csv);
+    }
+
+    /**
+     * Decodes the messages of an entry read from a log. Returns false if the entry has no usable
+     * frame. A decoding error is thrown after what was decoded so far has been kept.
+     */
+    boolean decodeMessages() {
+        RawFrame frame = LogReplay.toRawFrame(this, 0);
+        if (frame == null)
+            return false;
+        messages = new LogMessageEntry();
+        OpenDroneIdParser.parseForLog(frame.data, frame.offset, timestamp, messages, null);
+        return true;
+    }
+
     @NonNull
     public String toString() {
-        return session + DELIM
-                + timestamp + DELIM
-                + transportType + DELIM
-                + macAddress + DELIM
-                + msgVersion + DELIM
-                + rssi + DELIM
-                + toHexString(data, data.length) + DELIM
-                + csvLog;
+        CsvEncoder csv = new CsvEncoder();
+        appendCsv(csv);
+        return csv.toString();
     }
 
     static LogEntry fromString(String line) {
@@ -65,16 +111,15 @@ public class LogEntry {
     }
 
     public static String toHexString(byte[] bytes, int len) {
-        StringBuilder sb = new StringBuilder((len) * 3);
-        int i = 0;
-        for (byte b : bytes) {
-            i++;
-            if (i > len)
-                break;
-            int val = b & 0xFF;
-            sb.append(String.format("%02X ", val));
+        len = Math.min(len, bytes.length);
+        char[] chars = new char[len * 3];
+        for (int i = 0; i < len; i++) {
+            int val = bytes[i] & 0xFF;
+            chars[i * 3] = CsvEncoder.HEX_DIGITS[val >> 4];
+            chars[i * 3 + 1] = CsvEncoder.HEX_DIGITS[val & 0x0F];
+            chars[i * 3 + 2] = ' ';
         }
-        return sb.toString();
+        return new String(chars);
     }
 
     private static byte[] parseHexString(String hexString) {
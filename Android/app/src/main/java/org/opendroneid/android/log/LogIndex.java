@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sidecar index of a log file, built by {@link LogWriter} while writing and saved next to the
+ * log with the .idx extension when the log is closed.
+ *
+ * The log is divided into time buckets. Each bucket starts at the first record with a timestamp
+ * in it and holds the records up to the next bucket. Records arriving slightly out of order stay
+ * in the current bucket, which keeps the lowest and highest timestamp it holds, so find() still
+ * returns it for their time. Readers should check the timestamps. For each endpoint, the
+ * index lists the buckets it appears in and the UAS IDs it has broadcast. A reader can then seek
+ * directly to the records of a time window and/or an aircraft with find() and scan().
+ *
+ * Offsets are in the uncompressed log. For compressed segments the skipped part still has to be
+ * decompressed, but not parsed.
+ */
+public class LogIndex {
+    public static final String FILE_EXTENSION = ".idx";
+    public static final long DEFAULT_BUCKET_MILLIS = 10000;
+
+    static final byte[] MAGIC = "ODIDIDX".getBytes(StandardCharsets.US_ASCII);
+    // Version 2 adds the lowest and highest timestamp of each bucket
+    static final int VERSION = 2;
+
+    // The Basic ID messages of an aircraft can carry two different IDs
+    private static final int MAX_UAS_IDS_PER_KEY = 2;
+
+    /** A part of the log, from start up to but not including end */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static class Key {
+        public final long endpointKey;
+        public final String endpoint;
+        public final Set<String> uasIds = new LinkedHashSet<>();
+        // Positions in the bucket list, ascending
+        int[] buckets = new int[4];
+        int bucketCount;
+
+        Key(long endpointKey, String endpoint) {
+            this.endpointKey = endpointKey;
+            this.endpoint = endpoint;
+        }
+
+        void addBucket(int bucket) {
+            if (bucketCount > 0 && buckets[bucketCount - 1] == bucket)
+                return;
+            if (bucketCount == buckets.length)
+                buckets = Arrays.copyOf(buckets, bucketCount * 2);
+            buckets[bucketCount++] = bucket;
+        }
+
+        boolean matches(String id) {
+            return id.equals(endpoint) || uasIds.contains(id);
+        }
+    }
+
+    public interface EntryListener {
+        void onEntry(LogEntry entry) throws IOException;
+    }
+
+    private final long bucketNanos;
+    private long firstTimestamp = -1;
+    private long dataEnd;
+    // The buckets holding records, with their number counted from the first timestamp
+    private long[] bucketNumbers;
+    private long[] bucketOffsets;
+    private int[] bucketRecords;
+    private long[] bucketMinTimestamps;
+    private long[] bucketMaxTimestamps;
+    private int bucketCount;
+    private final Map<Long, Key> keys = new LinkedHashMap<>();
+
+    public LogIndex(long bucketMillis) {
+        this(bucketMillis * 1000000, 64);
+    }
+
+    private LogIndex(long bucketNanos, int bucketCapacity) {
+        this.bucketNanos = bucketNanos;
+        bucketNumbers = new long[bucketCapacity];
+        bucketOffsets = new long[bucketCapacity];
+        bucketRecords = new int[bucketCapacity];
+        bucketMinTimestamps = new long[bucketCapacity];
+        bucketMaxTimestamps = new long[bucketCapacity];
+    }
+
+    public static File indexFile(File log) {
+        String path = log.getPath();
+        if (path.endsWith(LogRotation.GZIP_SUFFIX))
+            path = path.substring(0, path.length() - LogRotation.GZIP_SUFFIX.length());
+        return new File(path + FILE_EXTENSION);
+    }
+
+    private long bucketNumber(long timestamp) {
+        return Math.max(0, (timestamp - firstTimestamp) / bucketNanos);
+    }
+
+    /**
+     * Returns true if a record with this timestamp opens a new bucket, in which case add() needs
+     * the exact file offset of the record.
+     */
+    boolean needsOffset(long timestamp) {
+        return bucketCount == 0 || bucketNumber(timestamp) > bucketNumbers[bucketCount - 1];
+    }
+
+    /** Adds a record written at offset, which is only used if the record opens a new bucket */
+    void add(LogEntry entry, long offset) {
+        if (firstTimestamp < 0)
+            firstTimestamp = entry.timestamp;
+        if (needsOffset(entry.timestamp)) {
+            if (bucketCount == bucketNumbers.length) {
+                bucketNumbers = Arrays.copyOf(bucketNumbers, bucketCount * 2);
+                bucketOffsets = Arrays.copyOf(bucketOffsets, bucketCount * 2);
+                bucketRecords = Arrays.copyOf(bucketRecords, bucketCount * 2);
+                bucketMinTimestamps = Arrays.copyOf(bucketMinTimestamps, bucketCount * 2);
+                bucketMaxTimestamps = Arrays.copyOf(bucketMaxTimestamps, bucketCount * 2);
+            }
+            bucketNumbers[bucketCount] = bucketNumber(entry.timestamp);
+            bucketOffsets[bucketCount] = offset;
+            bucketRecords[bucketCount] = 0;
+            bucketMinTimestamps[bucketCount] = entry.timestamp;
+            bucketMaxTimestamps[bucketCount] = entry.timestamp;
+            bucketCount++;
+        }
+        int bucket = bucketCount - 1;
+        bucketRecords[bucket]++;
+        bucketMinTimestamps[bucket] = Math.min(bucketMinTimestamps[bucket], entry.timestamp);
+        bucketMaxTimestamps[bucket] = Math.max(bucketMaxTimestamps[bucket], entry.timestamp);
+
+        Key key = keys.get(entry.endpointKey);
+        if (key == null) {
+            key = new Key(entry.endpointKey, entry.macAddress);
+            keys.put(entry.endpointKey, key);
+        }
+        key.addBucket(bucket);
+        if (entry.messages != null && key.uasIds.size() < MAX_UAS_IDS_PER_KEY)
+            entry.messages.collectUasIds(key.uasIds);
+    }
+
+    public long getFirstTimestamp() { return firstTimestamp; }
+
+    public int getRecordCount() {
+        int count = 0;
+        for (int i = 0; i < bucketCount; i++)
+            count += bucketRecords[i];
+        return count;
+    }
+
+    public Collection<Key> getKeys() { return keys.values(); }
+
+    /** The endpoints which have the given endpoint name or UAS ID */
+    public Set<String> endpointsFor(String id) {
+        Set<String> endpoints = new HashSet<>();
+        for (Key key : keys.values()) {
+            if (key.matches(id))
+                endpoints.add(key.endpoint);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Returns the parts of the log holding the records between the two timestamps (nanos),
+     * limited to the endpoint or UAS ID id unless it is null. Adjacent buckets are merged.
+     */
+    public List<Range> find(long fromNanos, long toNanos, String id) {
+        return find(fromNanos, toNanos, id, Long.MAX_VALUE);
+    }
+
+    /**
+     * As above, but adjacent buckets are only merged while the range stays below maxRangeBytes,
+     * so that the ranges can be processed in parallel.
+     */
+    public List<Range> find(long fromNanos, long toNanos, String id, long maxRangeBytes) {
+        boolean[] selected = new boolean[bucketCount];
+        if (id == null) {
+            Arrays.fill(selected, true);
+        } else {
+            for (Key key : keys.values()) {
+                if (!key.matches(id))
+                    continue;
+                for (int i = 0; i < key.bucketCount; i++)
+                    selected[key.buckets[i]] = true;
+            }
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        long rangeStart = -1;
+        for (int i = 0; i < bucketCount; i++) {
+            boolean inWindow = bucketMinTimestamps[i] <= toNanos && bucketMaxTimestamps[i] >= fromNanos;
+            long end = i + 1 < bucketCount ? bucketOffsets[i + 1] : dataEnd;
+            if (selected[i] && inWindow) {
+                if (rangeStart >= 0 && bucketOffsets[i] - rangeStart >= maxRangeBytes) {
+                    ranges.add(new Range(rangeStart, bucketOffsets[i]));
+                    rangeStart = -1;
+                }
+                if (rangeStart < 0)
+                    rangeStart = bucketOffsets[i];
+            } else if (rangeStart >= 0) {
+                ranges.add(new Range(rangeStart, bucketOffsets[i]));
+                rangeStart = -1;
+            }
+            if (i == bucketCount - 1 && rangeStart >= 0)
+                ranges.add(new Range(rangeStart, end));
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads the entries in the given parts of a CSV or binary log, which may be compressed.
+     * All entries of the parts are delivered, including those of other aircraft in the same
+     * buckets. Returns the number of entries.
+     */
+    public static long scan(File log, List<Range> ranges, EntryListener listener) throws IOException {
+        long count = 0;
+        if (BinaryLogFormat.isBinaryLog(log)) {
+            try (BinaryLogFormat.Reader reader = new BinaryLogFormat.Reader(log)) {
+                for (Range range : ranges) {
+                    reader.skipTo(range.start);
+                    LogEntry entry;
+                    while (reader.getPosition() < range.end && (entry = reader.read()) != null) {
+                        listener.onEntry(entry);
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        try (InputStream in = LogRotation.openInput(log)) {
+            long position = 0;
+            for (Range range : ranges) {
+                skipFully(in, range.start - position);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new BoundedInputStream(in, range.end - range.start), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(LogEntry.HEADER[0]))
+                        continue;
+                    LogEntry entry = LogEntry.fromString(line);
+                    if (entry != null) {
+                        listener.onEntry(entry);
+                        count++;
+                    }
+                }
+                position = range.end;
+            }
+        }
+        return count;
+    }
+
+    static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new IOException("Log ends before the indexed position");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /** Reads up to limit bytes of the underlying stream, without closing it */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    /** Saves the index for a log which ends at dataEnd */
+    void write(File file, long dataEnd) throws IOException {
+        this.dataEnd = dataEnd;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(firstTimestamp);
+            out.writeLong(bucketNanos);
+            out.writeLong(dataEnd);
+
+            // Bucket numbers and offsets are ascending and stored as deltas
+            writeVarLong(out, bucketCount);
+            long lastNumber = 0;
+            long lastOffset = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                writeVarLong(out, bucketNumbers[i] - lastNumber);
+                writeVarLong(out, bucketOffsets[i] - lastOffset);
+                writeVarLong(out, bucketRecords[i]);
+                // Relative to the start of the bucket, earlier for records out of order
+                long bucketStart = firstTimestamp + bucketNumbers[i] * bucketNanos;
+                writeVarLong(out, zigZag(bucketMinTimestamps[i] - bucketStart));
+                writeVarLong(out, zigZag(bucketMaxTimestamps[i] - bucketStart));
+                lastNumber = bucketNumbers[i];
+                lastOffset = bucketOffsets[i];
+            }
+
+            writeVarLong(out, keys.size());
+            for (Key key : keys.values()) {
+                out.writeLong(key.endpointKey);
+                out.writeUTF(key.endpoint != null ? key.endpoint : "");
+                writeVarLong(out, key.uasIds.size());
+                for (String uasId : key.uasIds)
+                    out.writeUTF(uasId);
+                writeVarLong(out, key.bucketCount);
+                int lastBucket = 0;
+                for (int i = 0; i < key.bucketCount; i++) {
+                    writeVarLong(out, key.buckets[i] - lastBucket);
+                    lastBucket = key.buckets[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the index of a log, or returns null if the log has no index. A damaged index throws
+     * an IOException, in which case the log has to be read from the start.
+     */
+    public static LogIndex read(File log) throws IOException {
+        File file = indexFile(log);
+        if (!file.exists())
+            return null;
+        // Every count is checked against the bytes its items take at least, so that a damaged
+        // index cannot make it allocate more than the file holds
+        long fileLength = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a log index");
+            int version = in.readUnsignedShort();
+            if (version > VERSION)
+                throw new IOException("Unsupported log index version " + version);
+            long firstTimestamp = in.readLong();
+            long bucketNanos = in.readLong();
+            long dataEnd = in.readLong();
+            if (bucketNanos <= 0 || dataEnd < 0)
+                throw new IOException("Corrupt log index");
+
+            int bucketCount = readCount(in, fileLength / 3);
+            LogIndex index = new LogIndex(bucketNanos, Math.max(1, bucketCount));
+            index.firstTimestamp = firstTimestamp;
+            index.dataEnd = dataEnd;
+            long number = 0;
+            long offset = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                number = addAscending(number, readVarLong(in), Long.MAX_VALUE / bucketNanos);
+                offset = addAscending(offset, readVarLong(in), dataEnd);
+                index.bucketNumbers[i] = number;
+                index.bucketOffsets[i] = offset;
+                index.bucketRecords[i] = readCount(in, Integer.MAX_VALUE);
+                long bucketStart = firstTimestamp + number * bucketNanos;
+                if (version >= 2) {
+                    index.bucketMinTimestamps[i] = bucketStart + unZigZag(readVarLong(in));
+                    index.bucketMaxTimestamps[i] = bucketStart + unZigZag(readVarLong(in));
+                } else {
+                    index.bucketMinTimestamps[i] = bucketStart;
+                    index.bucketMaxTimestamps[i] = bucketStart + bucketNanos - 1;
+                }
+            }
+            index.bucketCount = bucketCount;
+
+            int keyCount = readCount(in, fileLength / 12);
+            for (int k = 0; k < keyCount; k++) {
+                Key key = new Key(in.readLong(), in.readUTF());
+                int uasIdCount = readCount(in, fileLength / 2);
+                for (int i = 0; i < uasIdCount; i++)
+                    key.uasIds.add(in.readUTF());
+                int count = readCount(in, bucketCount);
+                key.buckets = new int[Math.max(1, count)];
+                long bucket = 0;
+                for (int i = 0; i < count; i++) {
+                    bucket = addAscending(bucket, readVarLong(in), bucketCount - 1);
+                    key.buckets[i] = (int) bucket;
+                }
+                key.bucketCount = count;
+                index.keys.put(key.endpointKey, key);
+            }
+            return index;
+        }
+    }
+
+    /** Reads a count, which must be between zero and max */
+    private static int readCount(DataInputStream in, long max) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Math.min(max, Integer.MAX_VALUE))
+            throw new IOException("Corrupt log index");
+        return (int) value;
+    }
+
+    /** Adds a delta of an ascending sequence, which must stay between zero and max */
+    private static long addAscending(long value, long delta, long max) throws IOException {
+        if (delta < 0 || delta > max - value)
+            throw new IOException("Corrupt log index");
+        return value + delta;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt log index");
+    }
+}
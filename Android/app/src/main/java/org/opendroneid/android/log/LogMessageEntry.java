@@ -8,9 +8,12 @@ package org.opendroneid.android.log;
 
 import org.opendroneid.android.Constants;
 import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+import org.opendroneid.android.data.Identification;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 public class LogMessageEntry {
 
@@ -27,108 +30,156 @@ public class LogMessageEntry {
                                                DELIM + DELIM + DELIM + DELIM + DELIM;
     private static final String DELIM_OPERATOR = DELIM + DELIM;
 
-    @SuppressWarnings("rawtypes")
-    private final ArrayList<OpenDroneIdParser.Message> messages;
+    private static final int BASIC_ID_SLOTS = 2;
+
+    // All messages in the order they were received
+    private final ArrayList<OpenDroneIdParser.Message<?>> messages = new ArrayList<>();
+    // Types received, as bits by ordinal
+    private int types;
+
+    // The messages placed into the CSV columns: the first ones received of each type, and the first
+    // one of each authentication page
+    private final OpenDroneIdParser.BasicId[] basicIds = new OpenDroneIdParser.BasicId[BASIC_ID_SLOTS];
+    private int basicIdCount;
+    private OpenDroneIdParser.Location location;
+    private OpenDroneIdParser.SelfID selfId;
+    private OpenDroneIdParser.SystemMsg system;
+    private OpenDroneIdParser.OperatorID operatorId;
+    private final OpenDroneIdParser.Authentication[] authPages =
+            new OpenDroneIdParser.Authentication[Constants.MAX_AUTH_DATA_PAGES];
+    // The lowest page received twice. Pages after it are not logged, which is what the format
+    // has always done when the messages were sorted by page
+    private int repeatedAuthPage = Constants.MAX_AUTH_DATA_PAGES;
 
     private int msgVersion = 0;
     public int getMsgVersion() { return msgVersion; }
     public void setMsgVersion(int msgVersion) { this.msgVersion = msgVersion; }
 
-    public LogMessageEntry() { this.messages = new ArrayList<>(); }
+    public void add(OpenDroneIdParser.Message<?> message) {
+        messages.add(message);
+        types |= 1 << message.header.type.ordinal();
+        switch (message.header.type) {
+            case BASIC_ID:
+                // Only two Basic ID messages are logged from message packs
+                if (basicIdCount < BASIC_ID_SLOTS)
+                    basicIds[basicIdCount++] = (OpenDroneIdParser.BasicId) message.payload;
+                break;
+            case LOCATION:
+                if (location == null)
+                    location = (OpenDroneIdParser.Location) message.payload;
+                break;
+            case AUTH: {
+                OpenDroneIdParser.Authentication auth = (OpenDroneIdParser.Authentication) message.payload;
+                int page = auth.getAuthDataPage();
+                if (page < 0 || page >= authPages.length)
+                    break;
+                if (authPages[page] == null)
+                    authPages[page] = auth;
+                else if (page < repeatedAuthPage)
+                    repeatedAuthPage = page;
+                break;
+            }
+            case SELFID:
+                if (selfId == null)
+                    selfId = (OpenDroneIdParser.SelfID) message.payload;
+                break;
+            case SYSTEM:
+                if (system == null)
+                    system = (OpenDroneIdParser.SystemMsg) message.payload;
+                break;
+            case OPERATOR_ID:
+                if (operatorId == null)
+                    operatorId = (OpenDroneIdParser.OperatorID) message.payload;
+                break;
+            default:
+                break;
+        }
+    }
 
-    public void add(OpenDroneIdParser.Message<?> message) { messages.add(message); }
+    /** Empties the entry, so that it can be filled with the messages of the next frame */
+    public void reset() {
+        messages.clear();
+        types = 0;
+        Arrays.fill(basicIds, null);
+        basicIdCount = 0;
+        location = null;
+        selfId = null;
+        system = null;
+        operatorId = null;
+        Arrays.fill(authPages, null);
+        repeatedAuthPage = Constants.MAX_AUTH_DATA_PAGES;
+        msgVersion = 0;
+    }
 
-    @SuppressWarnings("unchecked")
-    public StringBuilder getMessageLogEntry() {
-        if (messages.size() == 0)
-            return null;
+    public boolean isEmpty() { return messages.isEmpty(); }
 
-        Collections.sort(messages);
+    List<OpenDroneIdParser.Message<?>> getMessages() { return messages; }
 
-        StringBuilder entry = new StringBuilder();
-        int i = 0;
+    public boolean hasType(OpenDroneIdParser.Type type) {
+        return (types & (1 << type.ordinal())) != 0;
+    }
 
-        for (int j = 0; j < 2; j++) {
-            if (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.BASIC_ID) {
-                OpenDroneIdParser.Message<OpenDroneIdParser.BasicId> message =
-                        (OpenDroneIdParser.Message<OpenDroneIdParser.BasicId>) messages.get(i);
-                entry.append(message.payload.toCsvString());
-                i++;
-            } else {
-                entry.append(DELIM_BASIC_ID);
-            }
-        }
-        // Only two Basic ID messages are logged from message packs. Skip additional messages
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.BASIC_ID)
-            i++;
-
-        if (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.LOCATION) {
-            OpenDroneIdParser.Message<OpenDroneIdParser.Location> message =
-                    (OpenDroneIdParser.Message<OpenDroneIdParser.Location>) messages.get(i);
-            entry.append(message.payload.toCsvString());
-            i++;
-        } else {
-            entry.append(DELIM_LOCATION);
-        }
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.LOCATION)
-            i++;
-
-        // Skip all authentication messages. They are added at the end
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.AUTH)
-            i++;
-
-        if (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.SELFID) {
-            OpenDroneIdParser.Message<OpenDroneIdParser.SelfID> message =
-                    (OpenDroneIdParser.Message<OpenDroneIdParser.SelfID>) messages.get(i);
-            entry.append(message.payload.toCsvString());
-            i++;
-        } else {
-            entry.append(DELIM_SELF_ID);
+    /** Returns the first Location message, or null */
+    public OpenDroneIdParser.Location getLocation() { return location; }
+
+    /** Adds the UAS IDs of the Basic ID messages, as shown in the aircraft details */
+    void collectUasIds(Collection<String> uasIds) {
+        for (OpenDroneIdParser.Message<?> message : messages) {
+            if (message.header.type != OpenDroneIdParser.Type.BASIC_ID)
+                continue;
+            String uasId = uasIdString((OpenDroneIdParser.BasicId) message.payload);
+            if (!uasId.isEmpty())
+                uasIds.add(uasId);
         }
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.SELFID)
-            i++;
-
-        if (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.SYSTEM) {
-            OpenDroneIdParser.Message<OpenDroneIdParser.SystemMsg> message =
-                    (OpenDroneIdParser.Message<OpenDroneIdParser.SystemMsg>) messages.get(i);
-            entry.append(message.payload.toCsvString());
-            i++;
-        } else {
-            entry.append(DELIM_SYSTEM);
-        }
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.SYSTEM)
-            i++;
-
-        if (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.OPERATOR_ID) {
-            OpenDroneIdParser.Message<OpenDroneIdParser.OperatorID> message =
-                    (OpenDroneIdParser.Message<OpenDroneIdParser.OperatorID>) messages.get(i);
-            entry.append(message.payload.toCsvString());
-        } else {
-            entry.append(DELIM_OPERATOR);
+    }
+
+    /** The UAS ID as shown in the aircraft details */
+    static String uasIdString(OpenDroneIdParser.BasicId basicId) {
+        Identification identification = new Identification();
+        identification.setIdType(basicId.getIdType());
+        identification.setUasId(basicId.getUasId());
+        String uasId = identification.getUasIdAsString();
+        // Serial numbers are padded with zeros
+        int end = uasId.indexOf('\0');
+        return end >= 0 ? uasId.substring(0, end) : uasId;
+    }
+
+    /** Appends the CSV columns for all messages. Columns of missing messages are left empty */
+    public void appendCsv(CsvEncoder csv) {
+        for (int i = 0; i < BASIC_ID_SLOTS; i++) {
+            if (basicIds[i] != null)
+                basicIds[i].appendCsv(csv);
+            else
+                csv.append(DELIM_BASIC_ID);
         }
 
+        if (location != null)
+            location.appendCsv(csv);
+        else
+            csv.append(DELIM_LOCATION);
+
+        if (selfId != null)
+            selfId.appendCsv(csv);
+        else
+            csv.append(DELIM_SELF_ID);
+
+        if (system != null)
+            system.appendCsv(csv);
+        else
+            csv.append(DELIM_SYSTEM);
+
+        if (operatorId != null)
+            operatorId.appendCsv(csv);
+        else
+            csv.append(DELIM_OPERATOR);
+
         // Add the authentication data at the end. It is often not present but adds a lot of columns
         // in the log file, which can make it hard to find the self ID, System and Operator ID data
-        i = 0;
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.BASIC_ID)
-            i++;
-        while (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.LOCATION)
-            i++;
-        for (int j = 0; j < Constants.MAX_AUTH_DATA_PAGES; j++) {
-            if (i < messages.size() && messages.get(i).header.type == OpenDroneIdParser.Type.AUTH) {
-                OpenDroneIdParser.Message<OpenDroneIdParser.Authentication> message =
-                        (OpenDroneIdParser.Message<OpenDroneIdParser.Authentication>) messages.get(i);
-                if (message.payload.getAuthDataPage() == j) {
-                    entry.append(message.payload.toCsvString());
-                    i++;
-                } else {
-                    entry.append(DELIM_AUTHENTICATION);
-                }
-            } else {
-                entry.append(DELIM_AUTHENTICATION);
-            }
+        for (int page = 0; page < authPages.length; page++) {
+            if (authPages[page] != null && page <= repeatedAuthPage)
+                authPages[page].appendCsv(csv);
+            else
+                csv.append(DELIM_AUTHENTICATION);
         }
-
-        return entry;
     }
 }
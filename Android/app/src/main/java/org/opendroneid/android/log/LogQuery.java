@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Command line tool for filtering recorded logs on a PC, without loading the CSV columns into
+ * a spreadsheet. Runs on the JVM with the app classes, see the logQuery task in build.gradle:
+ *
+ *   ./gradlew :app:logQuery --args="--id 1596F350457160000000 --type LOCATION --aggregate logs/"
+ *
+ * The logs are split into chunks which are read, decoded and filtered on all cores with
+ * fork/join. Indexed logs are split at the index buckets, and only the buckets matching the
+ * time window and aircraft are read. Uncompressed CSV logs without an index are split at line
+ * breaks. Compressed and unindexed binary logs are one chunk each, so segments of a rotated
+ * log are processed in parallel. Without an index, a UAS ID only matches frames carrying it.
+ *
+ * The output is the matching entries in the CSV log format, or one line per endpoint with
+ * aggregates. Each chunk writes its entries to a temporary file, which are copied to the output
+ * in log order, so the matching entries are never held in memory.
+ */
+public class LogQuery {
+    static final long CHUNK_BYTES = 4 * 1024 * 1024;
+
+    public static class Filter {
+        public long fromNanos = Long.MIN_VALUE;
+        public long toNanos = Long.MAX_VALUE;
+        // Endpoint (MAC address, NaN ID, Beacon BSSID) or UAS ID
+        public String id;
+        public OpenDroneIdParser.Type type;
+        // latMin, lonMin, latMax, lonMax of a Location message in the frame
+        public double[] boundingBox;
+        public int minRssi = Integer.MIN_VALUE;
+        public int maxRssi = Integer.MAX_VALUE;
+
+        boolean acceptsEntry(LogEntry entry) {
+            return entry.timestamp >= fromNanos && entry.timestamp <= toNanos &&
+                    entry.rssi >= minRssi && entry.rssi <= maxRssi;
+        }
+
+        boolean acceptsMessages(LogMessageEntry messages) {
+            if (type != null && !messages.hasType(type))
+                return false;
+            if (boundingBox != null) {
+                OpenDroneIdParser.Location location = messages.getLocation();
+                if (location == null)
+                    return false;
+                double lat = location.getLatitude();
+                double lon = location.getLongitude();
+                return lat >= boundingBox[0] && lon >= boundingBox[1] &&
+                        lat <= boundingBox[2] && lon <= boundingBox[3];
+            }
+            return true;
+        }
+    }
+
+    public static class Aggregate {
+        public final String endpoint;
+        public final Set<String> uasIds = new LinkedHashSet<>();
+        public long records;
+        public long firstTimestamp = Long.MAX_VALUE;
+        public long lastTimestamp = Long.MIN_VALUE;
+        public int minRssi = Integer.MAX_VALUE;
+        public int maxRssi = Integer.MIN_VALUE;
+        long rssiSum;
+
+        Aggregate(String endpoint) { this.endpoint = endpoint; }
+
+        void add(LogEntry entry) {
+            records++;
+            firstTimestamp = Math.min(firstTimestamp, entry.timestamp);
+            lastTimestamp = Math.max(lastTimestamp, entry.timestamp);
+            minRssi = Math.min(minRssi, entry.rssi);
+            maxRssi = Math.max(maxRssi, entry.rssi);
+            rssiSum += entry.rssi;
+            entry.messages.collectUasIds(uasIds);
+        }
+
+        void merge(Aggregate other) {
+            uasIds.addAll(other.uasIds);
+            records += other.records;
+            firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+            lastTimestamp = Math.max(lastTimestamp, other.lastTimestamp);
+            minRssi = Math.min(minRssi, other.minRssi);
+            maxRssi = Math.max(maxRssi, other.maxRssi);
+            rssiSum += other.rssiSum;
+        }
+
+        public double getAverageRssi() { return records > 0 ? (double) rssiSum / records : 0; }
+
+        static final String CSV_HEADER =
+                "endpoint,uasIds,records,firstTimestamp,lastTimestamp,minRssi,avgRssi,maxRssi";
+
+        String toCsv() {
+            StringBuilder ids = new StringBuilder();
+            for (String uasId : uasIds)
+                ids.append(ids.length() > 0 ? " " : "").append(uasId);
+            return String.format(Locale.US, "%s,%s,%d,%d,%d,%d,%.1f,%d", endpoint, ids, records,
+                    firstTimestamp, lastTimestamp, minRssi, getAverageRssi(), maxRssi);
+        }
+    }
+
+    public static class Result {
+        public long scanned;
+        public long matched;
+        public long decodeErrors;
+        // By endpoint, in order of appearance. Empty unless aggregating
+        public final Map<String, Aggregate> aggregates = new LinkedHashMap<>();
+        // Temporary files with the matching entries of the chunks in CSV format, in log order.
+        // Chunks without matching entries have none. Empty when aggregating
+        final List<File> parts = new ArrayList<>();
+
+        void merge(Result other) {
+            scanned += other.scanned;
+            matched += other.matched;
+            decodeErrors += other.decodeErrors;
+            parts.addAll(other.parts);
+            for (Aggregate aggregate : other.aggregates.values()) {
+                Aggregate existing = aggregates.get(aggregate.endpoint);
+                if (existing == null)
+                    aggregates.put(aggregate.endpoint, aggregate);
+                else
+                    existing.merge(aggregate);
+            }
+        }
+    }
+
+    /** A part of one log file, processed by one task */
+    private static class Chunk {
+        final File file;
+        final List<LogIndex.Range> ranges;
+        // Endpoints matching the id filter according to the index, or null without an index
+        final Set<String> endpoints;
+
+        Chunk(File file, List<LogIndex.Range> ranges, Set<String> endpoints) {
+            this.file = file;
+            this.ranges = ranges;
+            this.endpoints = endpoints;
+        }
+    }
+
+    private static class QueryTask extends RecursiveTask<Result> {
+        private final List<Chunk> chunks;
+        private final Filter filter;
+        private final boolean aggregate;
+
+        QueryTask(List<Chunk> chunks, Filter filter, boolean aggregate) {
+            this.chunks = chunks;
+            this.filter = filter;
+            this.aggregate = aggregate;
+        }
+
+        @Override
+        protected Result compute() {
+            if (chunks.size() > 1) {
+                int middle = chunks.size() / 2;
+                QueryTask first = new QueryTask(chunks.subList(0, middle), filter, aggregate);
+                QueryTask second = new QueryTask(chunks.subList(middle, chunks.size()), filter, aggregate);
+                first.fork();
+                Result secondResult = second.compute();
+                Result result = first.join();
+                result.merge(secondResult);
+                return result;
+            }
+            Result result = new Result();
+            if (chunks.isEmpty())
+                return result;
+            try {
+                process(chunks.get(0), result);
+            } catch (IOException e) {
+                throw new RuntimeException("error reading " + chunks.get(0).file, e);
+            }
+            return result;
+        }
+
+        private void process(Chunk chunk, Result result) throws IOException {
+            CsvEncoder csv = new CsvEncoder();
+            // Created for the first matching entry
+            BufferedWriter[] part = new BufferedWriter[1];
+            try {
+                scan(chunk, result, csv, part);
+            } finally {
+                if (part[0] != null)
+                    part[0].close();
+            }
+        }
+
+        private void scan(Chunk chunk, Result result, CsvEncoder csv, BufferedWriter[] part)
+                throws IOException {
+            LogIndex.scan(chunk.file, chunk.ranges, entry -> {
+                result.scanned++;
+                if (!filter.acceptsEntry(entry))
+                    return;
+                if (chunk.endpoints != null && !chunk.endpoints.contains(entry.macAddress))
+                    return;
+                try {
+                    if (!entry.decodeMessages())
+                        return;
+                } catch (RuntimeException e) {
+                    // Keeps what was decoded
+                    result.decodeErrors++;
+                }
+                if (!filter.acceptsMessages(entry.messages))
+                    return;
+                if (chunk.endpoints == null && filter.id != null && !filter.id.equals(entry.macAddress)) {
+                    Set<String> uasIds = new LinkedHashSet<>();
+                    entry.messages.collectUasIds(uasIds);
+                    if (!uasIds.contains(filter.id))
+                        return;
+                }
+
+                result.matched++;
+                if (aggregate) {
+                    Aggregate endpoint = result.aggregates.get(entry.macAddress);
+                    if (endpoint == null) {
+                        endpoint = new Aggregate(entry.macAddress);
+                        result.aggregates.put(entry.macAddress, endpoint);
+                    }
+                    endpoint.add(entry);
+                } else {
+                    if (part[0] == null) {
+                        File file = File.createTempFile("logquery", ".csv");
+                        file.deleteOnExit();
+                        result.parts.add(file);
+                        part[0] = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(file), StandardCharsets.UTF_8));
+                    }
+                    csv.reset();
+                    entry.appendCsv(csv);
+                    csv.writeTo(part[0]);
+                    part[0].newLine();
+                }
+            });
+        }
+    }
+
+    private static boolean isCompressed(File file) {
+        return file.getName().endsWith(LogRotation.GZIP_SUFFIX);
+    }
+
+    private static List<Chunk> split(File file, Filter filter) throws IOException {
+        LogIndex index = null;
+        try {
+            index = LogIndex.read(file);
+        } catch (IOException e) {
+            System.err.println("Ignoring the index of " + file + ": " + e.getMessage());
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        if (index != null) {
+            Set<String> endpoints = filter.id != null ? index.endpointsFor(filter.id) : null;
+            // Every chunk of a compressed log would decompress it from the start
+            long maxRangeBytes = isCompressed(file) ? Long.MAX_VALUE : CHUNK_BYTES;
+            List<LogIndex.Range> ranges = index.find(filter.fromNanos, filter.toNanos, filter.id, maxRangeBytes);
+            if (isCompressed(file)) {
+                if (!ranges.isEmpty())
+                    chunks.add(new Chunk(file, ranges, endpoints));
+            } else {
+                for (LogIndex.Range range : ranges)
+                    chunks.add(new Chunk(file, Collections.singletonList(range), endpoints));
+            }
+            return chunks;
+        }
+
+        if (isCompressed(file) || BinaryLogFormat.isBinaryLog(file)) {
+            long start = BinaryLogFormat.isBinaryLog(file) ? BinaryLogFormat.HEADER_SIZE : 0;
+            chunks.add(new Chunk(file, Collections.singletonList(
+                    new LogIndex.Range(start, Long.MAX_VALUE)), null));
+            return chunks;
+        }
+
+        // Split an uncompressed CSV log after the line breaks following each multiple of the
+        // chunk size
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            long start = 0;
+            while (start < length) {
+                long end = Math.min(length, start + CHUNK_BYTES);
+                in.seek(end);
+                int b;
+                while ((b = in.read()) >= 0 && b != '\n')
+                    end++;
+                end = Math.min(length, end + 1);
+                chunks.add(new Chunk(file, Collections.singletonList(new LogIndex.Range(start, end)), null));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Runs the query on the logs using the given number of threads. Unless aggregating, the
+     * matching entries are then written to out.
+     */
+    public static Result run(List<File> logs, Filter filter, boolean aggregate, int parallelism,
+                             OutputStream out) throws IOException {
+        Result result = query(logs, filter, aggregate, parallelism);
+        try {
+            byte[] buffer = new byte[65536];
+            for (File part : result.parts) {
+                try (InputStream in = new FileInputStream(part)) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                }
+            }
+        } finally {
+            deleteParts(result);
+        }
+        return result;
+    }
+
+    private static void deleteParts(Result result) {
+        for (File part : result.parts) {
+            if (!part.delete())
+                System.err.println("Could not delete " + part);
+        }
+        result.parts.clear();
+    }
+
+    private static Result query(List<File> logs, Filter filter, boolean aggregate, int parallelism)
+            throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        for (File log : logs)
+            chunks.addAll(split(log, filter));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new QueryTask(chunks, filter, aggregate));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Adds the logs in a directory, or the file itself */
+    private static void addLogs(File file, List<File> logs) {
+        if (!file.isDirectory()) {
+            logs.add(file);
+            return;
+        }
+        File[] files = file.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files);
+        for (File log : files) {
+            String name = log.getName();
+            if (isCompressed(log))
+                name = name.substring(0, name.length() - LogRotation.GZIP_SUFFIX.length());
+            if (log.isFile() && (name.endsWith(".csv") || name.endsWith(BinaryLogFormat.FILE_EXTENSION)))
+                logs.add(log);
+        }
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("Usage: LogQuery [options] <log files or directories>");
+        out.println("  --from <nanos>          Entries with a timestamp from this value");
+        out.println("  --to <nanos>            Entries with a timestamp up to this value");
+        out.println("  --id <id>               MAC address, NaN ID, Beacon BSSID or UAS ID");
+        out.println("  --type <type>           Frames with a message of this type, e.g. LOCATION");
+        out.println("  --bbox <latMin,lonMin,latMax,lonMax>  Frames with a location inside the box");
+        out.println("  --min-rssi <dBm>        Entries with at least this RSSI");
+        out.println("  --max-rssi <dBm>        Entries with at most this RSSI");
+        out.println("  --aggregate             One line per endpoint instead of the entries");
+        out.println("  --threads <n>           Number of threads, default all cores");
+    }
+
+    public static void main(String[] args) {
+        Filter filter = new Filter();
+        boolean aggregate = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> logs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    addLogs(new File(arg), logs);
+                    continue;
+                }
+                if (arg.equals("--aggregate")) {
+                    aggregate = true;
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException(arg + " needs a value");
+                String value = args[++i];
+                switch (arg) {
+                    case "--from": filter.fromNanos = Long.parseLong(value); break;
+                    case "--to": filter.toNanos = Long.parseLong(value); break;
+                    case "--id": filter.id = value; break;
+                    case "--type": filter.type = OpenDroneIdParser.Type.valueOf(value.toUpperCase(Locale.US)); break;
+                    case "--min-rssi": filter.minRssi = Integer.parseInt(value); break;
+                    case "--max-rssi": filter.maxRssi = Integer.parseInt(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--bbox":
+                        String[] corners = value.split(",");
+                        if (corners.length != 4)
+                            throw new IllegalArgumentException("--bbox needs four values");
+                        filter.boundingBox = new double[4];
+                        for (int j = 0; j < 4; j++)
+                            filter.boundingBox[j] = Double.parseDouble(corners[j].trim());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (logs.isEmpty())
+                throw new IllegalArgumentException("No log files given");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage(System.err);
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        PrintStream out = System.out;
+        Result result;
+        try {
+            if (!aggregate)
+                out.println(LogEntry.csvHeader());
+            result = run(logs, filter, aggregate, threads, out);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (aggregate) {
+            out.println(Aggregate.CSV_HEADER);
+            for (Aggregate endpoint : result.aggregates.values())
+                out.println(endpoint.toCsv());
+        }
+        out.flush();
+        System.err.printf(Locale.US, "%d of %d entries in %d logs matched in %d ms on %d threads%s%n",
+                result.matched, result.scanned, logs.size(), (System.nanoTime() - start) / 1000000,
+                threads, result.decodeErrors > 0 ? ", " + result.decodeErrors + " decoding errors" : "");
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.opendroneid.android.bluetooth.RawFrame;
+import org.opendroneid.android.bluetooth.Transport;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link Transport} streaming the frames of a log file written by {@link LogWriter} back into
+ * the frame pipeline. Both the CSV and the binary log format can be replayed.
+ *
+ * The frames are replayed with the original spacing scaled by the replay speed, or as fast as
+ * possible if the speed is zero. Each replayed frame carries the time of the recording, anchored
+ * at the start of the replay, so that connection statistics like the message delta come out
+ * exactly as during the recording, independent of the speed, while live frames keep the system
+ * clock. Replayed frames are not logged or stored again.
+ */
+public class LogReplay implements Transport {
+    private static final String TAG = "LogReplay";
+
+    // Payload offsets used by the transports when the frame was recorded
+    private static final int BLUETOOTH_MESSAGE_OFFSET = 6;
+    private static final int WIFI_MESSAGE_OFFSET = 1;
+
+    // Frames handed to the delivery executor but not yet processed. The reader waits above this
+    private static final int MAX_PENDING_FRAMES = 1000;
+
+    public static class Stats {
+        public long lines;
+        public long frames;
+        public long errors;
+        public long elapsedMillis;
+        public long recordingMillis;
+
+        public double getThroughput() {
+            return elapsedMillis > 0 ? frames * 1000.0 / elapsedMillis : 0;
+        }
+
+        @Override @NonNull
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d frames (%d unreadable lines) covering %.1f s replayed in %.1f s: %.0f frames/s",
+                    frames, errors, recordingMillis / 1000.0, elapsedMillis / 1000.0, getThroughput());
+        }
+    }
+
+    /** Time source and sleep of the pacing, replaceable so that a test need not wait */
+    public interface Pacer {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+
+        Pacer SYSTEM = new Pacer() {
+            @Override public long nanoTime() { return System.nanoTime(); }
+
+            @Override
+            public void sleepNanos(long nanos) throws InterruptedException {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
+        };
+    }
+
+    /** Called when the whole file has been replayed, or the replay failed */
+    public interface FinishedListener {
+        void onReplayFinished(LogReplay replay, Stats stats);
+    }
+
+    private final File file;
+    private final Executor deliveryExecutor;
+    private FrameListener frameListener;
+    private FinishedListener finishedListener;
+    private double speed = 1;
+    private Pacer pacer = Pacer.SYSTEM;
+    private Thread replayThread;
+    private final Object pendingLock = new Object();
+    private int pending;
+    private final Stats stats = new Stats();
+
+    /**
+     * @param deliveryExecutor Executor on which frames are handed to the frame listener when
+     *                         replaying with startScan(). In the app this must post to the main
+     *                         thread, since the data manager updates LiveData objects.
+     */
+    public LogReplay(File file, FrameListener frameListener, Executor deliveryExecutor) {
+        this.file = file;
+        this.frameListener = frameListener;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /** Replay speed relative to the recording. 1 is real time, zero means as fast as possible */
+    public void setSpeed(double speed) { this.speed = speed; }
+
+    /** Sets the time source and sleep of the pacing. Call before starting the replay */
+    public void setPacer(Pacer pacer) { this.pacer = pacer; }
+
+    /**
+     * The listener of a replay started with startScan(). It is called through the delivery
+     * executor after the last frame, but not when the replay is stopped with stopScan().
+     */
+    public void setFinishedListener(FinishedListener listener) { this.finishedListener = listener; }
+
+    @Override
+    public void setFrameListener(FrameListener listener) { this.frameListener = listener; }
+
+    @Override
+    public synchronized void startScan() {
+        if (replayThread != null)
+            return;
+        replayThread = new Thread(() -> {
+            try {
+                replay(true);
+                Log.i(TAG, "Replay of " + file + " finished: " + getStats());
+            } catch (IOException e) {
+                Log.e(TAG, "error replaying log", e);
+            } catch (InterruptedException e) {
+                Log.i(TAG, "Replay of " + file + " stopped: " + getStats());
+                return;
+            }
+            FinishedListener listener = finishedListener;
+            if (listener != null) {
+                Stats stats = getStats();
+                deliveryExecutor.execute(() -> listener.onReplayFinished(this, stats));
+            }
+        }, TAG);
+        replayThread.start();
+    }
+
+    @Override
+    public synchronized void stopScan() {
+        if (replayThread == null)
+            return;
+        replayThread.interrupt();
+        replayThread = null;
+    }
+
+    /**
+     * Replays the whole file on the calling thread, delivering the frames directly to the frame
+     * listener. The speed setting is honored, so a speed of zero gives a throughput benchmark.
+     */
+    public Stats runBlocking() throws IOException, InterruptedException {
+        replay(false);
+        return getStats();
+    }
+
+    public Stats getStats() {
+        Stats copy = new Stats();
+        synchronized (stats) {
+            copy.lines = stats.lines;
+            copy.frames = stats.frames;
+            copy.errors = stats.errors;
+            copy.elapsedMillis = stats.elapsedMillis;
+            copy.recordingMillis = stats.recordingMillis;
+        }
+        return copy;
+    }
+
+    private void replay(boolean async) throws IOException, InterruptedException {
+        synchronized (stats) {
+            stats.lines = stats.frames = stats.errors = 0;
+            stats.elapsedMillis = stats.recordingMillis = 0;
+        }
+        long startNanos = pacer.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        long firstTimestamp = -1;
+
+        try (EntrySource source = openSource()) {
+            LogEntry entry;
+            while ((entry = source.next()) != null) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException();
+                synchronized (stats) {
+                    stats.lines++;
+                }
+
+                long first = firstTimestamp < 0 ? entry.timestamp : firstTimestamp;
+                long recordingOffsetNanos = Math.max(0, entry.timestamp - first);
+                RawFrame frame = toRawFrame(entry, startMillis + recordingOffsetNanos / 1000000);
+                if (frame == null) {
+                    synchronized (stats) {
+                        stats.errors++;
+                    }
+                    continue;
+                }
+                firstTimestamp = first;
+
+                if (speed > 0)
+                    waitUntil(startNanos + (long) (recordingOffsetNanos / speed));
+
+                deliver(frame, async);
+                synchronized (stats) {
+                    stats.frames++;
+                    stats.recordingMillis = recordingOffsetNanos / 1000000;
+                    stats.elapsedMillis = (pacer.nanoTime() - startNanos) / 1000000;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a log. Returns null at the end of the log, and an empty entry for
+     * lines that cannot be read.
+     */
+    private interface EntrySource extends Closeable {
+        LogEntry next() throws IOException;
+    }
+
+    private EntrySource openSource() throws IOException {
+        if (BinaryLogFormat.isBinaryLog(file)) {
+            BinaryLogFormat.Reader reader = new BinaryLogFormat.Reader(file);
+            return new EntrySource() {
+                @Override public LogEntry next() throws IOException { return reader.read(); }
+                @Override public void close() throws IOException { reader.close(); }
+            };
+        }
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(LogRotation.openInput(file), StandardCharsets.UTF_8));
+        return new EntrySource() {
+            @Override
+            public LogEntry next() throws IOException {
+                String line = reader.readLine();
+                if (line != null && line.startsWith(LogEntry.HEADER[0]))
+                    line = reader.readLine();
+                if (line == null)
+                    return null;
+                LogEntry entry = LogEntry.fromString(line);
+                return entry != null ? entry : new LogEntry();
+            }
+
+            @Override public void close() throws IOException { reader.close(); }
+        };
+    }
+
+    private void waitUntil(long targetNanos) throws InterruptedException {
+        long delay = targetNanos - pacer.nanoTime();
+        if (delay > 0)
+            pacer.sleepNanos(delay);
+    }
+
+    private void deliver(RawFrame frame, boolean async) throws InterruptedException {
+        FrameListener listener = frameListener;
+        if (listener == null)
+            return;
+
+        if (!async) {
+            listener.onFrame(frame);
+            return;
+        }
+
+        synchronized (pendingLock) {
+            while (pending >= MAX_PENDING_FRAMES)
+                pendingLock.wait();
+            pending++;
+        }
+        deliveryExecutor.execute(() -> {
+            listener.onFrame(frame);
+            synchronized (pendingLock) {
+                pending--;
+                pendingLock.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Reconstructs the frame as it was delivered by the transport. Binary logs hold the endpoint
+     * key and message offset. For CSV logs the keys are derived the same way as by the scanners,
+     * except for Wi-Fi NaN where the subscribe session generation is not recorded.
+     *
+     * @param replayTimeMillis The time of the frame in the replay, or zero for a frame that is
+     *                         only decoded
+     */
+    static RawFrame toRawFrame(LogEntry entry, long replayTimeMillis) {
+        if (entry.data == null || entry.transportType == null || entry.macAddress == null)
+            return null;
+        if (entry.offset > 0)
+            return new RawFrame(entry.transportType, entry.macAddress, entry.endpointKey,
+                                entry.rssi, entry.timestamp, entry.data, entry.offset,
+                                replayTimeMillis);
+
+        int offset;
+        long key;
+        switch (entry.transportType) {
+            case BT4:
+            case BT5:
+                offset = BLUETOOTH_MESSAGE_OFFSET;
+                try {
+                    key = Long.parseLong(entry.macAddress.replace(":", ""), 16);
+                } catch (NumberFormatException e) {
+                    key = entry.macAddress.hashCode();
+                }
+                break;
+            case NAN:
+                offset = WIFI_MESSAGE_OFFSET;
+                String peerId = entry.macAddress.substring(entry.macAddress.lastIndexOf(' ') + 1);
+                try {
+                    key = Integer.parseInt(peerId) & 0xFFFFFFFFL;
+                } catch (NumberFormatException e) {
+                    key = entry.macAddress.hashCode();
+                }
+                break;
+            case BEACON:
+                offset = WIFI_MESSAGE_OFFSET;
+                key = entry.macAddress.hashCode();
+                break;
+            default:
+                return null;
+        }
+        return new RawFrame(entry.transportType, entry.macAddress, key, entry.rssi,
+                            entry.timestamp, entry.data, offset, replayTimeMillis);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Splits a log into segments by size and/or age, for use with {@link LogWriter}.
+ *
+ * A log file log.csv is written as log_00001.csv, log_00002.csv, ... The segment being written
+ * has a .part suffix and is renamed when it is closed, so a file without the suffix is always
+ * complete. Closed segments are optionally gzip compressed, and the oldest files are deleted
+ * when the files in the log directory starting with the cap prefix exceed the disk cap. Both
+ * run on a single low priority background thread, never on the writer thread.
+ */
+public class LogRotation {
+    private static final String TAG = "LogRotation";
+
+    static final String PART_SUFFIX = ".part";
+    public static final String GZIP_SUFFIX = ".gz";
+
+    final long maxSegmentBytes;
+    final long maxSegmentMillis;
+    private final boolean compress;
+    private final long maxTotalBytes;
+    private final String capPrefix;
+    // The .part files being written in this process, by log writers or by compression
+    private static final Set<File> openParts = Collections.synchronizedSet(new HashSet<File>());
+
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * @param maxSegmentBytes Start a new segment when the current one reaches this size. Zero
+     *                        disables size based rotation.
+     * @param maxSegmentMillis Start a new segment when the current one is this old. Zero disables
+     *                         time based rotation.
+     * @param compress Gzip closed segments.
+     * @param maxTotalBytes Disk cap for the log directory. Zero disables the cap.
+     * @param capPrefix Only files starting with this prefix count towards, and are deleted to
+     *                  enforce, the disk cap. Null means the segments of the same log only.
+     */
+    public LogRotation(long maxSegmentBytes, long maxSegmentMillis, boolean compress,
+                       long maxTotalBytes, String capPrefix) {
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.compress = compress;
+        this.maxTotalBytes = maxTotalBytes;
+        this.capPrefix = capPrefix;
+    }
+
+    boolean shouldRotate(long segmentBytes, long segmentAgeMillis) {
+        return (maxSegmentBytes > 0 && segmentBytes >= maxSegmentBytes) ||
+               (maxSegmentMillis > 0 && segmentAgeMillis >= maxSegmentMillis);
+    }
+
+    static File segmentFile(File base, int index) {
+        String name = base.getName();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(base.getParentFile(), String.format(Locale.US, "%s_%05d%s", stem, index, extension));
+    }
+
+    static File partFile(File segment) {
+        return new File(segment.getPath() + PART_SUFFIX);
+    }
+
+    /** Opens a log file for reading, decompressing it if it is a compressed segment */
+    public static InputStream openInput(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (!file.getName().endsWith(GZIP_SUFFIX))
+            return in;
+        try {
+            return new GZIPInputStream(in, 65536);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** Called on the writer thread when it starts writing the .part file of a segment */
+    static void segmentOpened(File segment) {
+        openParts.add(partFile(segment).getAbsoluteFile());
+    }
+
+    /** Called on the writer thread when it stops writing a segment it could not close */
+    static void segmentAbandoned(File segment) {
+        openParts.remove(partFile(segment).getAbsoluteFile());
+    }
+
+    /**
+     * Called on the writer thread when a segment has been closed. The rename is done right away,
+     * compression and the disk cap are left to the background thread.
+     */
+    void segmentClosed(File base, File segment) {
+        File part = partFile(segment);
+        openParts.remove(part.getAbsoluteFile());
+        if (!part.renameTo(segment)) {
+            Log.w(TAG, "could not rename " + part);
+            return;
+        }
+        background.execute(() -> {
+            if (compress)
+                compress(segment);
+            enforceCap(base);
+        });
+    }
+
+    /**
+     * Finishes the segments left with a .part suffix by a crash in the directory of base. Logs
+     * are truncated after the last complete record, renamed and compressed, interrupted
+     * compressions are discarded. The segments a log writer of this process is still writing
+     * are left alone, so it is safe to call while another log is open there.
+     */
+    public void recoverInterrupted(File base) {
+        File dir = base.getParentFile();
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null)
+            return;
+        String prefix = capPrefix(base);
+        List<File> parts = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile() && name.startsWith(prefix) && name.endsWith(PART_SUFFIX) &&
+                    !openParts.contains(file.getAbsoluteFile()))
+                parts.add(file);
+        }
+        if (parts.isEmpty())
+            return;
+
+        background.execute(() -> {
+            for (File part : parts) {
+                // Opened since the listing
+                if (openParts.contains(part.getAbsoluteFile()))
+                    continue;
+                String path = part.getPath();
+                File segment = new File(path.substring(0, path.length() - PART_SUFFIX.length()));
+                if (segment.getName().endsWith(GZIP_SUFFIX)) {
+                    if (!part.delete())
+                        Log.w(TAG, "could not delete " + part);
+                    continue;
+                }
+                try {
+                    long length = MappedLogFile.recover(part);
+                    Log.i(TAG, "recovered " + length + " bytes of " + part);
+                } catch (IOException e) {
+                    Log.e(TAG, "error recovering " + part, e);
+                    continue;
+                }
+                if (!part.renameTo(segment)) {
+                    Log.w(TAG, "could not rename " + part);
+                    continue;
+                }
+                if (compress)
+                    compress(segment);
+            }
+            enforceCap(base);
+        });
+    }
+
+    /** Lets the background thread finish the pending work and then exit */
+    void shutdown() { background.shutdown(); }
+
+    private static void compress(File segment) {
+        File gzip = new File(segment.getPath() + GZIP_SUFFIX);
+        File gzipPart = partFile(gzip);
+        // Being written, so the recovery of another log must not delete it
+        openParts.add(gzipPart.getAbsoluteFile());
+        try {
+            compress(segment, gzip, gzipPart);
+        } finally {
+            openParts.remove(gzipPart.getAbsoluteFile());
+        }
+    }
+
+    private static void compress(File segment, File gzip, File gzipPart) {
+        try (InputStream in = new FileInputStream(segment);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipPart), 65536)) {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+        } catch (IOException e) {
+            Log.e(TAG, "error compressing " + segment, e);
+            if (!gzipPart.delete())
+                Log.w(TAG, "could not delete " + gzipPart);
+            return;
+        }
+        // Keep the time of the original, it decides which files the disk cap deletes first
+        if (!gzipPart.setLastModified(segment.lastModified()))
+            Log.w(TAG, "could not set the time of " + gzipPart);
+        if (!gzipPart.renameTo(gzip) || !segment.delete())
+            Log.w(TAG, "could not replace " + segment + " with " + gzip);
+    }
+
+    private String capPrefix(File base) {
+        if (capPrefix != null)
+            return capPrefix;
+        String name = base.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + "_";
+    }
+
+    private void enforceCap(File base) {
+        if (maxTotalBytes <= 0)
+            return;
+        File dir = base.getParentFile();
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null)
+            return;
+
+        String prefix = capPrefix(base);
+        List<File> candidates = new ArrayList<>();
+        long total = 0;
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().startsWith(prefix))
+                continue;
+            total += file.length();
+            // Files being written are counted, but never deleted. Indexes go with their log
+            if (!file.getName().endsWith(PART_SUFFIX) && !file.getName().endsWith(LogIndex.FILE_EXTENSION))
+                candidates.add(file);
+        }
+        if (total <= maxTotalBytes)
+            return;
+
+        // Oldest first. Segments written within the same timestamp granularity sort by index
+        Collections.sort(candidates, (a, b) -> {
+            int byAge = Long.compare(a.lastModified(), b.lastModified());
+            return byAge != 0 ? byAge : a.getName().compareTo(b.getName());
+        });
+        for (File file : candidates) {
+            if (total <= maxTotalBytes)
+                break;
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                Log.i(TAG, "deleted " + file + " to stay below " + maxTotalBytes + " bytes");
+            }
+            File index = LogIndex.indexFile(file);
+            length = index.length();
+            if (index.exists() && index.delete())
+                total -= length;
+        }
+    }
+}
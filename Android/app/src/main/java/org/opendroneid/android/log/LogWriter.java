@@ -6,135 +6,592 @@
  */
 package org.opendroneid.android.log;
 
-import android.bluetooth.le.ScanResult;
-import android.text.TextUtils;
 import android.util.Log;
 
-import org.opendroneid.android.Constants;
-import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+import androidx.annotation.NonNull;
 
+import org.opendroneid.android.bluetooth.FrameRing;
+import org.opendroneid.android.bluetooth.RawFrame;
+
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LogWriter {
     private static final String TAG = "LogWriter";
-    private final BufferedWriter writer;
+
+    public enum Format {
+        CSV,
+        BINARY,
+    }
+
+    // What log() does when the queue to the writer thread is full
+    public enum OverflowPolicy {
+        // Wait for the writer thread, for up to a second before the frame is dropped. Stalls the
+        // receiving thread if the storage is slow
+        BLOCK,
+        // Discard the frame being logged
+        DROP_NEWEST,
+        // Discard the oldest queued frame to make room
+        DROP_OLDEST,
+        // Write the frame to a secondary file in the binary format, on the calling thread
+        SPILL,
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+    // Maximum number of entries taken from the queue and written as one group
+    private static final int MAX_BATCH = 512;
+    // Upper bound for how long the writer thread waits for entries before checking for close()
+    private static final long IDLE_POLL_MS = 100;
+    // How long close() waits for the queue to be written before giving up
+    private static final long CLOSE_TIMEOUT_MS = 3000;
+    // How long log() waits for room in the queue with OverflowPolicy.BLOCK before dropping
+    private static final long BLOCK_TIMEOUT_MS = 1000;
+    // What BufferedWriter.newLine() writes, for the memory mapped CSV
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    public static class Stats {
+        public long enqueued;
+        public long written;
+        public long dropped;
+        public long spilled;
+        public long flushes;
+        public int highWaterMark;
+        public int queued;
+        public int capacity;
+
+        @Override @NonNull
+        public String toString() {
+            return enqueued + " enqueued, " + written + " written, " + dropped + " dropped, " +
+                    spilled + " spilled, " + flushes + " flushes, queue " + queued + "/" + capacity +
+                    " (max " + highWaterMark + ")";
+        }
+    }
+
+    private final Format format;
+    private final File baseFile;
+    private final LogRotation rotation;
+    // The output streams are replaced on the writer thread when a new segment is started
+    private FileOutputStream fileStream;
+    private CountingOutputStream counter;
+    private BufferedWriter writer;
+    private DataOutputStream binaryWriter;
+    // Replaces the streams when writing through a memory mapping
+    private MappedLogFile mappedFile;
+    private final boolean memoryMapped;
+    private volatile File currentFile;
+    private LogIndex index;
+    private int segmentIndex = 0;
+    private long segmentStart;
+    private final ExecutorService exec;
     private static int session = 0;
     public static void bumpSession() { session++; }
-    private final BlockingQueue<String> logQueue = new LinkedBlockingQueue<>();
-    private boolean loggingActive = false;
+    public static int getSession() { return session; }
+    private final BlockingQueue<LogEntry> logQueue;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final File spillFile;
+    private DataOutputStream spillWriter;
+    // Only used on the writer thread
+    private final CsvEncoder csv = new CsvEncoder();
+    // The frames published in the ring are read by the writer thread, into a reused entry
+    private final Object ringLock = new Object();
+    private FrameRing ring;
+    private volatile FrameRing.Consumer ringConsumer;
+    private final FrameRing.Handler ringHandler = this::writeSlot;
+    private final LogEntry ringEntry = new LogEntry();
+    private volatile boolean closing = false;
+    private volatile boolean failed = false;
+
+    private volatile int flushRecords = 0;
+    private volatile long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MS;
+    private volatile boolean sync = false;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
 
     public LogWriter(File file) throws IOException {
-        writer = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
-        ExecutorService exec = Executors.newSingleThreadExecutor();
-
-        Log.i(TAG, "starting logging to " + file);
-        exec.submit(() -> {
-            try {
-                loggingActive = true;
-                long last = System.currentTimeMillis();
-
-                // write header
-                writer.write(TextUtils.join(",", LogEntry.HEADER));
-                writer.write("," + OpenDroneIdParser.BasicId.csvHeader());
-                writer.write(OpenDroneIdParser.BasicId.csvHeader());
-                writer.write(OpenDroneIdParser.Location.csvHeader());
-                writer.write(OpenDroneIdParser.SelfID.csvHeader());
-                writer.write(OpenDroneIdParser.SystemMsg.csvHeader());
-                writer.write(OpenDroneIdParser.OperatorID.csvHeader());
-                for (int i = 0; i < Constants.MAX_AUTH_DATA_PAGES; i++)
-                    writer.write(OpenDroneIdParser.Authentication.csvHeader());
-                writer.newLine();
-                while (loggingActive) {
-                    String log;
-                    try {
-                        log = logQueue.take();
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                    writer.write(log);
-                    writer.newLine();
-                    long time = System.currentTimeMillis();
-                    if (time - last > 1000) {
-                        writer.flush();
-                        last = time;
-                    }
+        this(file, Format.CSV);
+    }
+
+    public LogWriter(File file, Format format) throws IOException {
+        this(file, format, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_NEWEST, null);
+    }
+
+    public LogWriter(File file, Format format, int capacity, OverflowPolicy overflowPolicy,
+                     File spillFile) throws IOException {
+        this(file, format, capacity, overflowPolicy, spillFile, null);
+    }
+
+    /**
+     * @param spillFile Secondary file used with OverflowPolicy.SPILL. Preferably on other
+     *                  storage than file, e.g. internal storage when logging to an SD card.
+     * @param rotation Splits the log into segments named after file, or null to write just file.
+     */
+    public LogWriter(File file, Format format, int capacity, OverflowPolicy overflowPolicy,
+                     File spillFile, LogRotation rotation) throws IOException {
+        this(file, format, capacity, overflowPolicy, spillFile, rotation, false);
+    }
+
+    /**
+     * @param memoryMapped Write the file through a memory mapping, see {@link MappedLogFile}.
+     */
+    public LogWriter(File file, Format format, int capacity, OverflowPolicy overflowPolicy,
+                     File spillFile, LogRotation rotation, boolean memoryMapped) throws IOException {
+        if (overflowPolicy == OverflowPolicy.SPILL && spillFile == null)
+            throw new IllegalArgumentException("The SPILL policy needs a spill file");
+        this.format = format;
+        this.baseFile = file;
+        this.rotation = rotation;
+        this.memoryMapped = memoryMapped;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.spillFile = spillFile;
+        logQueue = new ArrayBlockingQueue<>(capacity);
+        openOutput();
+        exec = Executors.newSingleThreadExecutor();
+
+        Log.i(TAG, "starting " + format + (memoryMapped ? " memory mapped" : "") +
+                " logging to " + currentFile);
+        exec.submit(this::drainLoop);
+    }
+
+    /** Counts the bytes reaching the file, for size based rotation */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) { super(out); }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private void openOutput() throws IOException {
+        File target;
+        if (rotation != null) {
+            segmentIndex++;
+            currentFile = LogRotation.segmentFile(baseFile, segmentIndex);
+            target = LogRotation.partFile(currentFile);
+            LogRotation.segmentOpened(currentFile);
+        } else {
+            currentFile = baseFile;
+            target = baseFile;
+        }
+        segmentStart = System.currentTimeMillis();
+        index = new LogIndex(LogIndex.DEFAULT_BUCKET_MILLIS);
+        if (memoryMapped) {
+            mappedFile = new MappedLogFile(target, MappedLogFile.DEFAULT_CHUNK_BYTES);
+            return;
+        }
+        fileStream = new FileOutputStream(target);
+        counter = new CountingOutputStream(fileStream);
+        if (format == Format.BINARY) {
+            writer = null;
+            binaryWriter = new DataOutputStream(new BufferedOutputStream(counter));
+        } else {
+            writer = new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8));
+            binaryWriter = null;
+        }
+    }
+
+    private long segmentBytes() {
+        return mappedFile != null ? mappedFile.length() : counter.count;
+    }
+
+    /**
+     * Returns the log file, or with rotation the segment being written. The segment only has
+     * this name once it is closed, until then it is written with a .part suffix.
+     */
+    public File getCurrentFile() { return currentFile; }
+
+    /**
+     * Writes the frames published in the ring from now on, in addition to those passed to log().
+     * They are counted as enqueued.
+     */
+    public void attach(FrameRing ring) {
+        synchronized (ringLock) {
+            if (ringConsumer != null || closing)
+                return;
+            this.ring = ring;
+            ringConsumer = ring.addConsumer(TAG);
+        }
+    }
+
+    /**
+     * Stops reading the ring. Waits for the slots being written. The frames published but not
+     * written yet are counted as dropped.
+     */
+    public void detach() {
+        synchronized (ringLock) {
+            if (ringConsumer == null)
+                return;
+            dropped.addAndGet(ringConsumer.getLag());
+            ring.removeConsumer(ringConsumer);
+            ringConsumer = null;
+            ring = null;
+        }
+    }
+
+    /**
+     * Sets when written entries are flushed to the file: after at least everyRecords entries or
+     * everyMillis milliseconds, whichever comes first. Zero disables either trigger. With sync,
+     * each flush is followed by an fsync, so flushed entries survive a power loss.
+     * The default is to flush once per second without sync.
+     */
+    public void setFlushPolicy(int everyRecords, long everyMillis, boolean sync) {
+        this.flushRecords = everyRecords;
+        this.flushIntervalMillis = everyMillis;
+        this.sync = sync;
+    }
+
+    /**
+     * Runs on the writer thread. Takes all queued entries and frames published in the ring at
+     * once and writes them as a group, then flushes if the flush policy asks for it. After
+     * close(), the queue and the frames already published are written out before the file is
+     * closed.
+     */
+    private void drainLoop() {
+        ArrayList<LogEntry> batch = new ArrayList<>(MAX_BATCH);
+        long lastFlush = System.currentTimeMillis();
+        int unflushed = 0;
+        try {
+            writeHeader();
+            while (true) {
+                long wait = IDLE_POLL_MS;
+                long interval = flushIntervalMillis;
+                if (unflushed > 0 && interval > 0)
+                    wait = Math.max(0, Math.min(wait, lastFlush + interval - System.currentTimeMillis()));
+
+                int count;
+                if (ringConsumer != null)
+                    // When closing, only what was published until now
+                    count = writeRing(closing ? 0 : wait) + writeQueued(batch, 0);
+                else
+                    count = writeQueued(batch, wait);
+                if (count > 0) {
+                    written.addAndGet(count);
+                    unflushed += count;
+                } else if (closing) {
+                    break;
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "error writing log", e);
-            } finally {
-                try {
-                    writer.flush();
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+
+                long now = System.currentTimeMillis();
+                int records = flushRecords;
+                if (unflushed > 0 && ((records > 0 && unflushed >= records) ||
+                                      (interval > 0 && now - lastFlush >= interval))) {
+                    flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+
+                if (rotation != null && rotation.shouldRotate(segmentBytes(), now - segmentStart)) {
+                    closeSegment();
+                    openOutput();
+                    writeHeader();
+                    unflushed = 0;
+                    lastFlush = now;
                 }
             }
-        });
+        } catch (IOException e) {
+            Log.e(TAG, "error writing log", e);
+            failed = true;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "log writer interrupted with " + logQueue.size() + " entries queued");
+        } finally {
+            detach();
+            closeOutput();
+        }
     }
 
-    public void logBluetooth(int msgVersion, ScanResult result,
-                             String transportType, StringBuilder csvLog) {
-        LogEntry entry = new LogEntry();
-        entry.session = session;
-        entry.timestamp = result.getTimestampNanos();
-        entry.transportType = transportType;
-        entry.macAddress = result.getDevice().getAddress();
-        entry.msgVersion = msgVersion;
-        entry.rssi = result.getRssi();
-        if (result.getScanRecord() != null)
-            entry.data = result.getScanRecord().getBytes();
-        entry.csvLog = csvLog;
-        logQueue.add(entry.toString());
-    }
-
-    public void logNaN(int msgVersion, Long timeNano, int peerHash, byte[] serviceSpecificInfo,
-                       String transportType, StringBuilder csvLog) {
-        LogEntry entry = new LogEntry();
-        entry.session = session;
-        entry.timestamp = timeNano;
-        entry.transportType = transportType;
-        entry.macAddress = Integer.toString(peerHash);
-        entry.msgVersion = msgVersion;
-        entry.rssi = 0;
-        if (serviceSpecificInfo != null)
-            entry.data = serviceSpecificInfo;
-        entry.csvLog = csvLog;
-        logQueue.add(entry.toString());
-    }
-
-    public void logBeacon(int msgVersion, Long timeNano, android.net.wifi.ScanResult scanResult,
-                          byte[] data, String transportType, StringBuilder csvLog) {
-        LogEntry entry = new LogEntry();
-        entry.session = session;
-        entry.timestamp = timeNano;
-        entry.transportType = transportType;
-        entry.macAddress = scanResult.BSSID;
-        entry.msgVersion = msgVersion;
-        entry.rssi = scanResult.level;
-        if (data != null)
-            entry.data = data;
-        entry.csvLog = csvLog;
-        logQueue.add(entry.toString());
+    /** Writes the queued entries, waiting up to wait milliseconds for the first one */
+    private int writeQueued(ArrayList<LogEntry> batch, long wait) throws IOException, InterruptedException {
+        LogEntry entry = logQueue.poll(wait, TimeUnit.MILLISECONDS);
+        if (entry == null)
+            return 0;
+        batch.add(entry);
+        logQueue.drainTo(batch, MAX_BATCH - 1);
+        for (LogEntry e : batch)
+            writeEntry(e);
+        int count = batch.size();
+        batch.clear();
+        return count;
     }
 
-    public void close() {
-        loggingActive = false;
-        try {
+    /** Writes the frames published in the ring, waiting up to wait milliseconds for the first one */
+    private int writeRing(long wait) throws IOException, InterruptedException {
+        FrameRing.Consumer consumer = ringConsumer;
+        if (consumer == null || !consumer.await(wait))
+            return 0;
+        synchronized (ringLock) {
+            // The slots may be reused as soon as the consumer is detached
+            if (consumer != ringConsumer)
+                return 0;
+            int count = consumer.poll(ringHandler, MAX_BATCH, 0);
+            enqueued.addAndGet(count);
+            return count;
+        }
+    }
+
+    private void writeSlot(FrameRing.Slot slot) throws IOException {
+        fill(ringEntry, slot.frame, slot.messages);
+        ringEntry.session = slot.session;
+        writeEntry(ringEntry);
+    }
+
+    private void writeHeader() throws IOException {
+        if (mappedFile != null) {
+            if (format == Format.BINARY) {
+                BinaryLogFormat.writeHeader(mappedFile.reserve(BinaryLogFormat.HEADER_SIZE));
+            } else {
+                csv.reset();
+                csv.append(LogEntry.csvHeader()).append(LINE_SEPARATOR);
+                csv.writeTo(mappedFile);
+            }
+        } else if (format == Format.BINARY) {
+            BinaryLogFormat.writeHeader(binaryWriter);
+        } else {
+            writer.write(LogEntry.csvHeader());
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Returns the exact file offset of the next record. For the stream output, this writes out
+     * the buffered records, which is done once per index bucket.
+     */
+    private long nextRecordOffset() throws IOException {
+        if (mappedFile != null)
+            return mappedFile.length();
+        if (format == Format.BINARY)
+            binaryWriter.flush();
+        else
             writer.flush();
+        return counter.count;
+    }
+
+    private void writeEntry(LogEntry entry) throws IOException {
+        index.add(entry, index.needsOffset(entry.timestamp) ? nextRecordOffset() : 0);
+        if (format == Format.BINARY) {
+            if (mappedFile != null)
+                BinaryLogFormat.writeRecord(mappedFile, entry);
+            else
+                BinaryLogFormat.writeRecord(binaryWriter, entry);
+        } else if (mappedFile != null) {
+            csv.reset();
+            entry.appendCsv(csv);
+            csv.append(LINE_SEPARATOR);
+            csv.writeTo(mappedFile);
+        } else {
+            csv.reset();
+            entry.appendCsv(csv);
+            csv.writeTo(writer);
+            writer.newLine();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (mappedFile != null) {
+            // The records are in the page cache as soon as they are copied into the mapping
+            if (sync)
+                mappedFile.force();
+        } else {
+            if (format == Format.BINARY)
+                binaryWriter.flush();
+            else
+                writer.flush();
+            if (sync)
+                fileStream.getFD().sync();
+        }
+        flushes.incrementAndGet();
+    }
+
+    private void closeSegment() throws IOException {
+        flush();
+        long length = segmentBytes();
+        if (mappedFile != null)
+            mappedFile.close();
+        else if (format == Format.BINARY)
+            binaryWriter.close();
+        else
             writer.close();
+        File indexFile = LogIndex.indexFile(currentFile);
+        try {
+            index.write(indexFile, length);
+        } catch (IOException e) {
+            // The log is still complete, it just has to be read from the start
+            Log.w(TAG, "could not write " + indexFile, e);
+        }
+        if (rotation != null)
+            rotation.segmentClosed(baseFile, currentFile);
+    }
+
+    private void closeOutput() {
+        try {
+            closeSegment();
         } catch (IOException e) {
             e.printStackTrace();
+            if (rotation != null)
+                LogRotation.segmentAbandoned(currentFile);
         }
+        if (rotation != null)
+            rotation.shutdown();
     }
-}
 
+    public void log(RawFrame frame, LogMessageEntry logMessageEntry) {
+        if (failed || closing) {
+            dropped.incrementAndGet();
+            return;
+        }
+        LogEntry entry = new LogEntry();
+        entry.session = session;
+        fill(entry, frame, logMessageEntry);
+
+        if (logQueue.offer(entry)) {
+            onEnqueued();
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    // Bounded, so a writer thread that died does not stall the receiving thread
+                    if (logQueue.offer(entry, BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                        onEnqueued();
+                    else
+                        dropped.incrementAndGet();
+                } catch (InterruptedException e) {
+                    dropped.incrementAndGet();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case DROP_NEWEST:
+                dropped.incrementAndGet();
+                break;
+            case DROP_OLDEST:
+                while (!logQueue.offer(entry)) {
+                    if (logQueue.poll() != null)
+                        dropped.incrementAndGet();
+                }
+                onEnqueued();
+                break;
+            case SPILL:
+                spill(entry);
+                break;
+        }
+    }
+
+    private static void fill(LogEntry entry, RawFrame frame, LogMessageEntry logMessageEntry) {
+        entry.timestamp = frame.timestampNanos;
+        entry.transportType = frame.transportType;
+        entry.macAddress = frame.endpoint;
+        entry.endpointKey = frame.endpointKey;
+        entry.offset = frame.offset;
+        entry.msgVersion = logMessageEntry.getMsgVersion();
+        entry.rssi = frame.rssi;
+        entry.data = frame.data;
+        // The CSV columns are formatted on the writer thread, which also indexes the UAS IDs
+        entry.messages = logMessageEntry;
+    }
+
+    private void onEnqueued() {
+        enqueued.incrementAndGet();
+        int size = logQueue.size();
+        int max;
+        while (size > (max = highWaterMark.get())) {
+            if (highWaterMark.compareAndSet(max, size))
+                break;
+        }
+    }
+
+    private synchronized void spill(LogEntry entry) {
+        try {
+            if (spillWriter == null) {
+                Log.w(TAG, "log queue full, spilling to " + spillFile);
+                spillWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                BinaryLogFormat.writeHeader(spillWriter);
+            }
+            BinaryLogFormat.writeRecord(spillWriter, entry);
+            spilled.incrementAndGet();
+        } catch (IOException e) {
+            Log.e(TAG, "error writing spill file", e);
+            dropped.incrementAndGet();
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.enqueued = enqueued.get();
+        stats.written = written.get();
+        stats.dropped = dropped.get();
+        stats.spilled = spilled.get();
+        stats.flushes = flushes.get();
+        stats.highWaterMark = highWaterMark.get();
+        stats.queued = logQueue.size();
+        stats.capacity = capacity;
+        return stats;
+    }
+
+    /**
+     * Stops logging. Waits until the queued entries have been written and the file is closed,
+     * unless that takes longer than CLOSE_TIMEOUT_MS, in which case the rest is dropped.
+     * Blocks, so call it off the main thread.
+     */
+    public void close() {
+        closing = true;
+        exec.shutdown();
+        try {
+            if (!exec.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "timeout writing the log queue");
+                exec.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            exec.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        detach();
+        dropped.addAndGet(logQueue.size());
+        logQueue.clear();
+
+        synchronized (this) {
+            if (spillWriter != null) {
+                try {
+                    spillWriter.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                spillWriter = null;
+            }
+        }
+        Log.i(TAG, "logging stopped: " + getStats());
+    }
+}
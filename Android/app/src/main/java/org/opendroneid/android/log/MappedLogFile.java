@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Append-only log file written through a memory mapping, used by {@link LogWriter} instead of
+ * the stream chain. Records are copied once, straight into the mapped pages, and the kernel
+ * writes them back to the storage in the background.
+ *
+ * The file grows in preallocated chunks, which read as zeros until they are written. close()
+ * truncates the file to the written length. After a crash, recover() does the same, keeping
+ * only the complete records.
+ */
+public class MappedLogFile implements Closeable {
+    public static final int DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    // UTF-8 takes at most three bytes per char, surrogate pairs four bytes for two chars
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkBytes;
+    private MappedByteBuffer buffer;
+    // File position of the start of the current mapping
+    private long mapStart;
+    // Replaces malformed input like OutputStreamWriter does, so the CSV matches the stream writer
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    public MappedLogFile(File file, int chunkBytes) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.chunkBytes = chunkBytes;
+        map(0, chunkBytes);
+    }
+
+    /** Number of bytes written so far */
+    public long length() { return mapStart + buffer.position(); }
+
+    private void map(long position, int size) throws IOException {
+        // Mapping beyond the end of the file grows it
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        mapStart = position;
+    }
+
+    /**
+     * Returns the mapping positioned at the end of the log, with room for at least size bytes.
+     * Records are never split between two mappings.
+     */
+    ByteBuffer reserve(int size) throws IOException {
+        if (buffer.remaining() < size)
+            map(length(), Math.max(chunkBytes, size));
+        return buffer;
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        reserve(length).put(bytes, offset, length);
+    }
+
+    /** Appends the chars encoded as UTF-8 */
+    public void write(char[] chars, int length) throws IOException {
+        ByteBuffer out = reserve(length * MAX_BYTES_PER_CHAR);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(chars, 0, length), out, true);
+        if (result.isOverflow())
+            throw new IOException("Encoded text exceeds the reserved space");
+        encoder.flush(out);
+    }
+
+    /** Forces the written part of the log to the storage, like fsync for the stream writer */
+    public void force() throws IOException {
+        buffer.force();
+        // Earlier mappings of the same file
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long length = length();
+        // The mappings stay valid until they are garbage collected, there is no explicit unmap
+        buffer = null;
+        try {
+            channel.truncate(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Truncates a CSV or binary log after the last complete record, e.g. after the app was
+     * killed while logging. Returns the new length.
+     */
+    public static long recover(File file) throws IOException {
+        long end = BinaryLogFormat.isBinaryLog(file)
+                ? BinaryLogFormat.completeLength(file) : completeCsvLength(file);
+        if (end < file.length()) {
+            try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+                log.setLength(end);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * The CSV log ends after the last line break. The text fields can contain zero bytes, so the
+     * preallocated zeros are only recognized by having no line break.
+     */
+    private static long completeCsvLength(File file) throws IOException {
+        long end = 0;
+        long position = 0;
+        byte[] chunk = new byte[65536];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\n')
+                        end = position + i + 1;
+                }
+                position += n;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.opendroneid.android.bluetooth.FrameRing;
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional on-device database of the aircraft, flights and location samples received, so they
+ * can still be queried after the app is closed, e.g. for the history of an aircraft across
+ * sessions.
+ *
+ * The store reads the received frames and their decoded messages from the frame ring, so it never
+ * blocks the ingest. A reader thread copies the Basic ID and Location messages out of the ring
+ * into a bounded queue right away, so the database never holds back the other consumers of the
+ * ring. Frames not published in the ring or not fitting into the queue are counted as dropped.
+ * A writer thread waits for a commit interval and then inserts everything queued in the
+ * meantime in one transaction. A flight is the samples of one
+ * UAS ID from one endpoint without a gap of more than FLIGHT_GAP_MILLIS. Location samples are
+ * stored once a Basic ID from the endpoint has told which aircraft they belong to. Data older than
+ * the retention period is deleted periodically.
+ *
+ * The queries read the committed data and must not be called on the main thread.
+ */
+public class TrackStore {
+    private static final String TAG = "TrackStore";
+
+    public static final String DATABASE_NAME = "tracks.db";
+    private static final int DATABASE_VERSION = 1;
+
+    public static final long DEFAULT_COMMIT_INTERVAL_MS = 2000;
+    public static final long DEFAULT_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    // A longer gap between two samples from an endpoint starts a new flight
+    public static final long FLIGHT_GAP_MILLIS = 5 * 60 * 1000;
+
+    // Maximum number of received frames inserted in one transaction
+    private static final int MAX_BATCH = 4096;
+    // Maximum number of received frames waiting for the writer thread
+    private static final int QUEUE_CAPACITY = 4 * MAX_BATCH;
+    // Upper bound for how long the reader thread waits for frames before checking for close()
+    private static final long IDLE_POLL_MS = 100;
+    // How often the data older than the retention period is deleted
+    private static final long RETENTION_CHECK_MS = 10 * 60 * 1000;
+    // How long close() waits for the published frames to be committed before giving up
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE aircraft (_id INTEGER PRIMARY KEY, uas_id TEXT NOT NULL UNIQUE, " +
+                    "id_type INTEGER, ua_type INTEGER, first_seen INTEGER, last_seen INTEGER)",
+            "CREATE TABLE flights (_id INTEGER PRIMARY KEY, aircraft_id INTEGER NOT NULL, " +
+                    "endpoint TEXT, start_time INTEGER, end_time INTEGER, samples INTEGER)",
+            "CREATE TABLE samples (flight_id INTEGER NOT NULL, time INTEGER NOT NULL, " +
+                    "latitude REAL, longitude REAL, altitude REAL, height REAL, speed REAL, " +
+                    "vertical_speed REAL, direction REAL, rssi INTEGER)",
+            "CREATE INDEX flights_aircraft ON flights (aircraft_id, start_time)",
+            "CREATE INDEX flights_end ON flights (end_time)",
+            "CREATE INDEX samples_flight ON samples (flight_id, time)",
+            "CREATE INDEX samples_time ON samples (time)",
+    };
+
+    public static class Stats {
+        public long read;
+        public long stored;
+        public long withoutId;
+        public long dropped;
+        public long commits;
+        public long errors;
+
+        @Override @NonNull
+        public String toString() {
+            return read + " frames read, " + dropped + " dropped, " + stored + " samples stored, " +
+                    withoutId + " without Basic ID, " + commits + " commits, " + errors + " errors";
+        }
+    }
+
+    /** What the store knows about one UAS ID */
+    public static class History {
+        public String uasId;
+        public long firstSeen;
+        public long lastSeen;
+        public int flights;
+        public long samples;
+    }
+
+    public static class Flight {
+        public long id;
+        public String endpoint;
+        public long startTime;
+        public long endTime;
+        public int samples;
+    }
+
+    public static class TrackPoint {
+        public long time;
+        public double latitude;
+        public double longitude;
+        public double altitude;
+        public double height;
+        public double speed;
+        public int rssi;
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // The queries do not wait for the writer thread, and the other way round
+            db.enableWriteAheadLogging();
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            for (String statement : SCHEMA)
+                db.execSQL(statement);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS samples");
+            db.execSQL("DROP TABLE IF EXISTS flights");
+            db.execSQL("DROP TABLE IF EXISTS aircraft");
+            onCreate(db);
+        }
+    }
+
+    /**
+     * The Basic ID and Location messages of a received frame, copied out of the ring. The
+     * messages are not changed after decoding, only the slot holding them is reused.
+     */
+    private static class Received {
+        final String endpoint;
+        final long time;
+        final int rssi;
+        final List<OpenDroneIdParser.Message<?>> messages = new ArrayList<>(2);
+
+        Received(String endpoint, long time, int rssi) {
+            this.endpoint = endpoint;
+            this.time = time;
+            this.rssi = rssi;
+        }
+    }
+
+    /** The aircraft and flight of an endpoint. Only used on the writer thread */
+    private static class Endpoint {
+        String uasId;
+        int idType;
+        long aircraftId = -1;
+        long flightId = -1;
+        long lastTime;
+        int samples;
+    }
+
+    private final Helper helper;
+    private final FrameRing ring;
+    private final FrameRing.Consumer consumer;
+    private final BlockingQueue<Received> received = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final FrameRing.Handler copyHandler = this::copy;
+    private final ExecutorService exec;
+    private volatile boolean closing = false;
+    // Held by the queries and when closing the database, so a query neither runs into a closed
+    // database nor opens it again
+    private final Object queryLock = new Object();
+    // Set when the reader thread has stopped reading the ring and queued its last frame
+    private volatile boolean readerDone = false;
+    private volatile long commitIntervalMillis = DEFAULT_COMMIT_INTERVAL_MS;
+    private volatile long retentionMillis = DEFAULT_RETENTION_MILLIS;
+
+    // Only used on the writer thread
+    private SQLiteDatabase db;
+    private SQLiteStatement insertAircraft;
+    private SQLiteStatement selectAircraft;
+    private SQLiteStatement updateAircraft;
+    private SQLiteStatement insertFlight;
+    private SQLiteStatement updateFlight;
+    private SQLiteStatement insertSample;
+    private final Map<String, Endpoint> endpoints = new HashMap<>();
+    private final Map<String, Long> aircraftIds = new HashMap<>();
+    private final Set<Endpoint> updated = new HashSet<>();
+    private final ArrayList<Received> batch = new ArrayList<>(MAX_BATCH);
+    private int batchSamples;
+    private long lastRetention = 0;
+    // Latest receive time inserted, on the clock of the data manager that stamped the frames
+    private long latestTime = 0;
+
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong withoutId = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /** Stores the frames published in the ring from now on */
+    public TrackStore(Context context, FrameRing ring) {
+        helper = new Helper(context.getApplicationContext());
+        this.ring = ring;
+        consumer = ring.addConsumer(TAG);
+        exec = Executors.newFixedThreadPool(2);
+        exec.submit(this::readLoop);
+        exec.submit(this::writeLoop);
+    }
+
+    /** Sets how often the received samples are committed, and thus how late the queries see them */
+    public void setCommitInterval(long millis) { this.commitIntervalMillis = millis; }
+
+    /** Sets how long samples, flights and aircraft are kept after they were last received */
+    public void setRetention(long millis) { this.retentionMillis = millis; }
+
+    /**
+     * Runs on the reader thread. Copies the frames published in the ring into the queue. After
+     * close(), the frames already published are copied before the ring is released.
+     */
+    private void readLoop() {
+        try {
+            while (!closing)
+                consumer.poll(copyHandler, MAX_BATCH, IDLE_POLL_MS);
+            long remaining = consumer.getLag();
+            int count;
+            while (remaining > 0 &&
+                    (count = consumer.poll(copyHandler, (int) Math.min(MAX_BATCH, remaining), 0)) > 0)
+                remaining -= count;
+        } catch (IOException e) {
+            // Copying does not throw
+            Log.e(TAG, "error reading the ring", e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "track store reader interrupted " + consumer.getLag() + " frames behind");
+        } finally {
+            ring.removeConsumer(consumer);
+            readerDone = true;
+        }
+    }
+
+    private void copy(FrameRing.Slot slot) {
+        read.incrementAndGet();
+        LogMessageEntry messages = slot.messages;
+        if (!messages.hasType(OpenDroneIdParser.Type.LOCATION) &&
+                !messages.hasType(OpenDroneIdParser.Type.BASIC_ID))
+            return;
+        Received frame = new Received(slot.frame.endpoint, slot.receivedMillis, slot.frame.rssi);
+        for (OpenDroneIdParser.Message<?> message : messages.getMessages()) {
+            if (message.header.type == OpenDroneIdParser.Type.BASIC_ID ||
+                    message.header.type == OpenDroneIdParser.Type.LOCATION)
+                frame.messages.add(message);
+        }
+        if (!received.offer(frame))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Runs on the writer thread. Inserts the queued frames once per commit interval. After
+     * close(), the frames still queued are inserted. Closes the database when it exits.
+     */
+    private void writeLoop() {
+        try {
+            db = helper.getWritableDatabase();
+            insertAircraft = db.compileStatement("INSERT OR IGNORE INTO aircraft " +
+                    "(uas_id, id_type, ua_type, first_seen, last_seen) VALUES (?, ?, ?, ?, ?)");
+            selectAircraft = db.compileStatement("SELECT _id FROM aircraft WHERE uas_id = ?");
+            updateAircraft = db.compileStatement("UPDATE aircraft SET last_seen = ? WHERE _id = ?");
+            insertFlight = db.compileStatement("INSERT INTO flights " +
+                    "(aircraft_id, endpoint, start_time, end_time, samples) VALUES (?, ?, ?, ?, 0)");
+            updateFlight = db.compileStatement("UPDATE flights SET end_time = ?, samples = ? WHERE _id = ?");
+            insertSample = db.compileStatement("INSERT INTO samples (flight_id, time, latitude, " +
+                    "longitude, altitude, height, speed, vertical_speed, direction, rssi) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        } catch (SQLException e) {
+            Log.e(TAG, "could not open the track store", e);
+            closing = true;
+            closeDatabase();
+            return;
+        }
+
+        try {
+            while (true) {
+                // Everything the reader queued is visible once it is done
+                boolean finished = closing && readerDone;
+                Received first = received.poll(finished ? 0 : closing ? IDLE_POLL_MS : commitIntervalMillis,
+                                               TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (finished)
+                        break;
+                    if (!closing)
+                        applyRetention();
+                    continue;
+                }
+                // Let the frames received during the commit interval collect for one transaction,
+                // unless a full one is waiting already
+                if (!closing && received.size() < MAX_BATCH)
+                    Thread.sleep(commitIntervalMillis);
+                batch.add(first);
+                received.drainTo(batch, MAX_BATCH - 1);
+                commit();
+                applyRetention();
+            }
+        } catch (InterruptedException e) {
+            // close() timed out
+            Log.w(TAG, "track store interrupted with " + received.size() + " frames queued");
+        } finally {
+            closeDatabase();
+        }
+    }
+
+    private void closeDatabase() {
+        synchronized (queryLock) {
+            helper.close();
+        }
+    }
+
+    /** Called by the queries while holding queryLock */
+    private SQLiteDatabase queryDatabase() {
+        if (closing)
+            throw new IllegalStateException("track store is closed");
+        return helper.getReadableDatabase();
+    }
+
+    private void commit() {
+        batchSamples = 0;
+        db.beginTransaction();
+        try {
+            for (Received frame : batch)
+                insert(frame);
+            for (Endpoint endpoint : updated) {
+                updateFlight.bindLong(1, endpoint.lastTime);
+                updateFlight.bindLong(2, endpoint.samples);
+                updateFlight.bindLong(3, endpoint.flightId);
+                updateFlight.executeUpdateDelete();
+                updateAircraft.bindLong(1, endpoint.lastTime);
+                updateAircraft.bindLong(2, endpoint.aircraftId);
+                updateAircraft.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+            stored.addAndGet(batchSamples);
+            commits.incrementAndGet();
+        } catch (SQLException e) {
+            // The rows this transaction created are rolled back, so are the cached ids
+            Log.e(TAG, "could not store the received frames", e);
+            errors.incrementAndGet();
+            endpoints.clear();
+            aircraftIds.clear();
+        } finally {
+            batch.clear();
+            updated.clear();
+            db.endTransaction();
+        }
+    }
+
+    /** Inserts the Basic ID and Location messages of a frame */
+    private void insert(Received frame) {
+        String endpointName = frame.endpoint;
+        long time = frame.time;
+        latestTime = Math.max(latestTime, time);
+        Endpoint endpoint = endpoints.get(endpointName);
+        for (OpenDroneIdParser.Message<?> message : frame.messages) {
+            if (message.header.type != OpenDroneIdParser.Type.BASIC_ID)
+                continue;
+            OpenDroneIdParser.BasicId basicId = (OpenDroneIdParser.BasicId) message.payload;
+            String uasId = LogMessageEntry.uasIdString(basicId);
+            if (uasId.isEmpty())
+                continue;
+            if (endpoint == null) {
+                endpoint = new Endpoint();
+                endpoints.put(endpointName, endpoint);
+            }
+            // An aircraft can send a second Basic ID of another type, the first one names it
+            if (endpoint.uasId == null ||
+                    (!uasId.equals(endpoint.uasId) && basicId.getIdType() == endpoint.idType)) {
+                endpoint.uasId = uasId;
+                endpoint.idType = basicId.getIdType();
+                endpoint.aircraftId = aircraftId(uasId, basicId, time);
+                endpoint.flightId = -1;
+            }
+        }
+
+        for (OpenDroneIdParser.Message<?> message : frame.messages) {
+            if (message.header.type != OpenDroneIdParser.Type.LOCATION)
+                continue;
+            if (endpoint == null || endpoint.aircraftId < 0) {
+                withoutId.incrementAndGet();
+                continue;
+            }
+            if (endpoint.flightId < 0 || time - endpoint.lastTime > FLIGHT_GAP_MILLIS) {
+                insertFlight.bindLong(1, endpoint.aircraftId);
+                insertFlight.bindString(2, endpointName);
+                insertFlight.bindLong(3, time);
+                insertFlight.bindLong(4, time);
+                endpoint.flightId = insertFlight.executeInsert();
+                endpoint.samples = 0;
+            }
+            OpenDroneIdParser.Location location = (OpenDroneIdParser.Location) message.payload;
+            insertSample.bindLong(1, endpoint.flightId);
+            insertSample.bindLong(2, time);
+            insertSample.bindDouble(3, location.getLatitude());
+            insertSample.bindDouble(4, location.getLongitude());
+            insertSample.bindDouble(5, location.getAltitudeGeodetic());
+            insertSample.bindDouble(6, location.getHeight());
+            insertSample.bindDouble(7, location.getSpeedHori());
+            insertSample.bindDouble(8, location.getSpeedVert());
+            insertSample.bindDouble(9, location.getDirection());
+            insertSample.bindLong(10, frame.rssi);
+            insertSample.executeInsert();
+            endpoint.lastTime = time;
+            endpoint.samples++;
+            updated.add(endpoint);
+            batchSamples++;
+        }
+    }
+
+    private long aircraftId(String uasId, OpenDroneIdParser.BasicId basicId, long time) {
+        Long id = aircraftIds.get(uasId);
+        if (id == null) {
+            insertAircraft.bindString(1, uasId);
+            insertAircraft.bindLong(2, basicId.getIdType());
+            insertAircraft.bindLong(3, basicId.getUaType());
+            insertAircraft.bindLong(4, time);
+            insertAircraft.bindLong(5, time);
+            insertAircraft.executeInsert();
+            selectAircraft.bindString(1, uasId);
+            id = selectAircraft.simpleQueryForLong();
+            aircraftIds.put(uasId, id);
+        }
+        return id;
+    }
+
+    /**
+     * Deletes what was last received before the retention period, at most every few minutes.
+     * Now is the latest frame inserted, so the cutoff is on the clock that stamped the samples.
+     */
+    private void applyRetention() {
+        long now = latestTime;
+        if (now == 0 || now - lastRetention < RETENTION_CHECK_MS)
+            return;
+        lastRetention = now;
+
+        // Endpoints not heard from for a flight gap start a new flight anyway
+        for (Iterator<Endpoint> it = endpoints.values().iterator(); it.hasNext(); ) {
+            Endpoint endpoint = it.next();
+            if (now - endpoint.lastTime > FLIGHT_GAP_MILLIS)
+                it.remove();
+        }
+
+        String[] cutoff = { String.valueOf(now - retentionMillis) };
+        try {
+            db.beginTransaction();
+            try {
+                int samples = db.delete("samples", "time < ?", cutoff);
+                int flights = db.delete("flights", "end_time < ?", cutoff);
+                int aircraft = db.delete("aircraft", "last_seen < ?", cutoff);
+                db.setTransactionSuccessful();
+                if (aircraft > 0)
+                    aircraftIds.clear();
+                if (samples + flights + aircraft > 0)
+                    Log.i(TAG, "retention deleted " + samples + " samples, " + flights +
+                            " flights, " + aircraft + " aircraft");
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "could not apply the retention", e);
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns what is stored about the UAS ID, or null if it was never received. The queries
+     * throw IllegalStateException once close() was called.
+     */
+    public History getHistory(String uasId) {
+        synchronized (queryLock) {
+            SQLiteDatabase db = queryDatabase();
+            try (Cursor cursor = db.rawQuery("SELECT a.first_seen, a.last_seen, COUNT(f._id), " +
+                    "TOTAL(f.samples) FROM aircraft a LEFT JOIN flights f ON f.aircraft_id = a._id " +
+                    "WHERE a.uas_id = ? GROUP BY a._id", new String[] { uasId })) {
+                if (!cursor.moveToFirst())
+                    return null;
+                History history = new History();
+                history.uasId = uasId;
+                history.firstSeen = cursor.getLong(0);
+                history.lastSeen = cursor.getLong(1);
+                history.flights = cursor.getInt(2);
+                history.samples = cursor.getLong(3);
+                return history;
+            }
+        }
+    }
+
+    /** Returns the flights of the UAS ID, the most recent first */
+    public List<Flight> getFlights(String uasId, int limit) {
+        synchronized (queryLock) {
+            SQLiteDatabase db = queryDatabase();
+            List<Flight> flights = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery("SELECT f._id, f.endpoint, f.start_time, f.end_time, " +
+                    "f.samples FROM flights f JOIN aircraft a ON f.aircraft_id = a._id " +
+                    "WHERE a.uas_id = ? ORDER BY f.start_time DESC LIMIT " + limit,
+                    new String[] { uasId })) {
+                while (cursor.moveToNext()) {
+                    Flight flight = new Flight();
+                    flight.id = cursor.getLong(0);
+                    flight.endpoint = cursor.getString(1);
+                    flight.startTime = cursor.getLong(2);
+                    flight.endTime = cursor.getLong(3);
+                    flight.samples = cursor.getInt(4);
+                    flights.add(flight);
+                }
+            }
+            return flights;
+        }
+    }
+
+    /** Returns the location samples of a flight in time order */
+    public List<TrackPoint> getTrack(long flightId) {
+        synchronized (queryLock) {
+            SQLiteDatabase db = queryDatabase();
+            List<TrackPoint> track = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery("SELECT time, latitude, longitude, altitude, height, " +
+                    "speed, rssi FROM samples WHERE flight_id = ? ORDER BY time",
+                    new String[] { String.valueOf(flightId) })) {
+                while (cursor.moveToNext()) {
+                    TrackPoint point = new TrackPoint();
+                    point.time = cursor.getLong(0);
+                    point.latitude = cursor.getDouble(1);
+                    point.longitude = cursor.getDouble(2);
+                    point.altitude = cursor.getDouble(3);
+                    point.height = cursor.getDouble(4);
+                    point.speed = cursor.getDouble(5);
+                    point.rssi = cursor.getInt(6);
+                    track.add(point);
+                }
+            }
+            return track;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.read = read.get();
+        stats.stored = stored.get();
+        stats.withoutId = withoutId.get();
+        stats.dropped = dropped.get() + consumer.getDropped();
+        stats.commits = commits.get();
+        stats.errors = errors.get();
+        return stats;
+    }
+
+    /**
+     * Commits the frames already published and closes the database. Waits up to
+     * CLOSE_TIMEOUT_MS, then interrupts the threads. They release the ring and close the database
+     * themselves when they exit, never while they still use them. Blocks, so call it off the
+     * main thread.
+     */
+    public void close() {
+        closing = true;
+        exec.shutdown();
+        try {
+            if (!exec.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "timeout committing the received frames");
+                exec.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            exec.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "closed: " + getStats());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.app;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendroneid.android.data.AircraftObject;
+import org.opendroneid.android.data.Connection;
+import org.opendroneid.android.data.LocationData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AircraftOrderTest {
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final AircraftOrder order = new AircraftOrder();
+    // The rows of the list, changed only by the reported moves
+    private final List<AircraftObject> rows = new ArrayList<>();
+    private int moves;
+
+    private void onMoved(int from, int to) {
+        rows.add(to, rows.remove(from));
+        moves++;
+    }
+
+    private static AircraftObject aircraft(long macAddress, int rssi, float distance) {
+        AircraftObject aircraft = new AircraftObject(macAddress);
+        Connection connection = new Connection();
+        connection.rssi = rssi;
+        aircraft.connection.setValue(connection);
+        LocationData location = new LocationData();
+        location.setDistance(distance);
+        aircraft.location.setValue(location);
+        return aircraft;
+    }
+
+    private void add(AircraftObject... aircraft) {
+        for (AircraftObject a : aircraft)
+            rows.add(order.add(a), a);
+    }
+
+    private static void setRssi(AircraftObject aircraft, int rssi) {
+        aircraft.getConnection().rssi = rssi;
+    }
+
+    private static void setDistance(AircraftObject aircraft, float distance) {
+        aircraft.getLocation().setDistance(distance);
+    }
+
+    @Test
+    public void keepsTheOrderOfArrival() {
+        AircraftObject a = aircraft(1, -80, 100), b = aircraft(2, -40, 50), c = aircraft(3, -60, 10);
+        add(a, b, c);
+        assertEquals(Arrays.asList(a, b, c), order.getAircraft());
+        assertEquals(-1, order.add(b));
+
+        setRssi(a, -30);
+        order.update(this::onMoved);
+        assertEquals(0, moves);
+
+        assertEquals(1, order.remove(b));
+        assertEquals(-1, order.remove(b));
+        assertFalse(order.contains(b));
+        assertEquals(Arrays.asList(a, c), order.getAircraft());
+    }
+
+    @Test
+    public void reportsTheMovesToANewKey() {
+        AircraftObject a = aircraft(1, -80, 100), b = aircraft(2, -40, 0), c = aircraft(3, -60, 10);
+        add(a, b, c);
+
+        order.setKey(AircraftOrder.Key.RSSI, this::onMoved);
+        assertEquals(Arrays.asList(b, c, a), order.getAircraft());
+        assertEquals(order.getAircraft(), rows);
+
+        // The distance of b is not known yet, so it goes last
+        order.setKey(AircraftOrder.Key.DISTANCE, this::onMoved);
+        assertEquals(Arrays.asList(c, a, b), order.getAircraft());
+        assertEquals(order.getAircraft(), rows);
+
+        // New aircraft are inserted at the place of their key
+        AircraftObject d = aircraft(4, -50, 50);
+        add(d);
+        assertEquals(Arrays.asList(c, d, a, b), rows);
+    }
+
+    @Test
+    public void movesOnlyOnLargeEnoughChanges() {
+        AircraftObject a = aircraft(1, -50, 0), b = aircraft(2, -52, 0), c = aircraft(3, -70, 0);
+        add(a, b, c);
+        order.setKey(AircraftOrder.Key.RSSI, this::onMoved);
+        moves = 0;
+
+        // Less than the minimum change of the signal
+        setRssi(b, -49);
+        order.update(this::onMoved);
+        assertEquals(0, moves);
+        assertEquals(Arrays.asList(a, b, c), rows);
+
+        setRssi(c, -40);
+        setRssi(a, -75);
+        order.update(this::onMoved);
+        assertEquals(Arrays.asList(c, b, a), order.getAircraft());
+        assertEquals(order.getAircraft(), rows);
+    }
+
+    @Test
+    public void keepsEqualKeysInTheOrderOfArrival() {
+        AircraftObject a = aircraft(1, -60, 500), b = aircraft(2, -60, 505), c = aircraft(3, -60, 100);
+        add(a, b, c);
+
+        order.setKey(AircraftOrder.Key.DISTANCE, this::onMoved);
+        assertEquals(Arrays.asList(c, a, b), rows);
+
+        // Within a tenth of the distance, so b stays behind a
+        setDistance(b, 460);
+        order.update(this::onMoved);
+        assertEquals(Arrays.asList(c, a, b), rows);
+
+        order.setKey(AircraftOrder.Key.RSSI, this::onMoved);
+        assertEquals(Arrays.asList(a, b, c), rows);
+        assertEquals(order.getAircraft(), rows);
+    }
+}
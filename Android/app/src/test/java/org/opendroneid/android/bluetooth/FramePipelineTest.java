@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.bluetooth;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendroneid.android.data.AircraftObject;
+import org.opendroneid.android.data.Identification;
+import org.opendroneid.android.data.LocationData;
+import org.opendroneid.android.log.LogWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/** Decodes Bluetooth 4 advertisements through the frame pipeline on the JVM */
+public class FramePipelineTest {
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String MAC = "E4:5F:01:2A:3B:4C";
+    private static final long MAC_KEY = 0xE45F012A3B4CL;
+    private static final int MESSAGE_OFFSET = 6;
+
+    // Service data header, message counter 1 and a Basic ID message: serial number
+    // 1596F3505211YA2A0001 of a helicopter or multirotor
+    private static final String BASIC_ID_FRAME =
+            "1E16FAFF0D01" + "0212" + "3135393646333530353231315941324130303031" + "000000";
+    // Message counter 2 and a Location message: airborne, heading 90 degrees at 5 m/s, climbing
+    // at 1 m/s at 52.52 N, 13.405 E, pressure altitude 100 m, geodetic altitude 110 m and
+    // 50 m above the takeoff
+    private static final String LOCATION_FRAME =
+            "1E16FAFF0D02" + "12205A1402" + "80EA4D1F" + "D070FD07" + "9808AC083408" + "0000" +
+            "E803" + "0000";
+
+    private static byte[] bytes(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return data;
+    }
+
+    private static RawFrame frame(String hex, long timestampNanos) {
+        return new RawFrame("BT4", MAC, MAC_KEY, -60, timestampNanos, bytes(hex), MESSAGE_OFFSET);
+    }
+
+    @Test
+    public void decodesFramesIntoTheAircraftAndTheRing() throws Exception {
+        List<AircraftObject> created = new ArrayList<>();
+        OpenDroneIdDataManager dataManager = new OpenDroneIdDataManager(new OpenDroneIdDataManager.Callback() {
+            @Override
+            public void onNewAircraft(AircraftObject object) {
+                created.add(object);
+            }
+        });
+        FramePipeline pipeline = new FramePipeline(dataManager, 16);
+        FrameRing.Consumer consumer = pipeline.getRing().addConsumer("test");
+
+        pipeline.onFrame(frame(BASIC_ID_FRAME, 1000000000L));
+        pipeline.onFrame(frame(LOCATION_FRAME, 2000000000L));
+
+        assertEquals(1, created.size());
+        AircraftObject aircraft = dataManager.getAircraft().get(MAC_KEY);
+        assertNotNull(aircraft);
+        assertEquals(-60, aircraft.getConnection().rssi);
+        assertEquals("BT4", aircraft.getConnection().transportType);
+
+        Identification id = aircraft.getIdentification1();
+        assertEquals(Identification.IdTypeEnum.Serial_Number, id.getIdType());
+        assertEquals(Identification.UaTypeEnum.Helicopter_or_Multirotor, id.getUaType());
+        assertEquals("1596F3505211YA2A0001", id.getUasIdAsString());
+
+        LocationData location = aircraft.getLocation();
+        assertEquals(LocationData.StatusEnum.Airborne, location.getStatus());
+        assertEquals(52.52, location.getLatitude(), 1e-7);
+        assertEquals(13.405, location.getLongitude(), 1e-7);
+        assertEquals(90, location.getDirection(), 1e-9);
+        assertEquals(5, location.getSpeedHorizontal(), 1e-9);
+        assertEquals(1, location.getSpeedVertical(), 1e-9);
+        assertEquals(100, location.getAltitudePressure(), 1e-9);
+        assertEquals(110, location.getAltitudeGeodetic(), 1e-9);
+        assertEquals(50, location.getHeight(), 1e-9);
+
+        List<FrameRing.Slot> slots = new ArrayList<>();
+        assertEquals(2, consumer.poll(slots::add, 10, 0));
+        assertTrue(slots.get(0).messages.hasType(OpenDroneIdParser.Type.BASIC_ID));
+        assertTrue(slots.get(1).messages.hasType(OpenDroneIdParser.Type.LOCATION));
+        assertEquals(52.52, slots.get(1).messages.getLocation().getLatitude(), 1e-7);
+        assertEquals(0, pipeline.getRing().getStats().dropped);
+    }
+
+    @Test
+    public void keepsReplayedFramesOutOfTheRing() {
+        OpenDroneIdDataManager dataManager = new OpenDroneIdDataManager(new OpenDroneIdDataManager.Callback());
+        dataManager.setClock(() -> 5000000L);
+        FramePipeline pipeline = new FramePipeline(dataManager, 16);
+        FrameRing.Consumer consumer = pipeline.getRing().addConsumer("test");
+
+        byte[] data = bytes(BASIC_ID_FRAME);
+        pipeline.onFrame(new RawFrame("BT4", MAC, MAC_KEY, -60, 1000000000L, data, MESSAGE_OFFSET,
+                                      1000L));
+        pipeline.onFrame(new RawFrame("BT4", MAC, MAC_KEY, -60, 1500000000L, data, MESSAGE_OFFSET,
+                                      1500L));
+
+        // The aircraft follows the time of the recording, not the live clock
+        AircraftObject aircraft = dataManager.getAircraft().get(MAC_KEY);
+        assertEquals(1000L, aircraft.getConnection().firstSeen);
+        assertEquals(1500L, aircraft.getConnection().lastSeen);
+        assertEquals(500L, aircraft.getConnection().msgDelta);
+        assertEquals(0, consumer.getLag());
+        assertEquals(0, pipeline.getRing().getStats().published);
+    }
+
+    @Test
+    public void logsTheFramesTheRingHasNoRoomFor() throws IOException {
+        OpenDroneIdDataManager dataManager = new OpenDroneIdDataManager(new OpenDroneIdDataManager.Callback());
+        FramePipeline pipeline = new FramePipeline(dataManager, 2);
+        // Never reads, so the ring is full after two frames
+        FrameRing.Consumer stalled = pipeline.getRing().addConsumer("stalled");
+        LogWriter logger = new LogWriter(folder.newFile("log.bin"), LogWriter.Format.BINARY);
+        pipeline.setLogger(logger);
+
+        for (int i = 1; i <= 5; i++)
+            pipeline.onFrame(frame(LOCATION_FRAME, i * 1000000000L));
+        pipeline.setLogger(null);
+        logger.close();
+
+        assertEquals(2, pipeline.getRing().getStats().published);
+        assertEquals(3, stalled.getDropped());
+        assertEquals(5, logger.getStats().written);
+        assertEquals(0, logger.getStats().dropped);
+    }
+
+    @Test
+    public void ignoresFramesTooShortForAMessage() {
+        OpenDroneIdDataManager dataManager = new OpenDroneIdDataManager(new OpenDroneIdDataManager.Callback());
+        FramePipeline pipeline = new FramePipeline(dataManager, 16);
+
+        pipeline.onFrame(frame(BASIC_ID_FRAME.substring(0, 40), 1000000000L));
+
+        assertTrue(dataManager.getAircraft().isEmpty());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/** Checks the formatting against java.util.Formatter and java.sql.Timestamp it replaces */
+public class FormatTest {
+    private static final double[] EDGE_VALUES = {
+            0, -0.0, 0.5, 1.5, 2.5, -2.5, 0.125, 0.375, 1.005, 1.015, 2.675, -1.005, 0.045,
+            9.995, 99.5, 0.0001, -0.0001, 123456.785, 99999999.999995, 1e14 + 0.5, 1e15 + 0.5,
+            1e17, 1e20, -1e20,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+            52.5200066, 13.4049540, -179.9999999, 89.99999995 };
+
+    private static void assertFixed(double value, int width, int decimals) {
+        String expected = String.format(Locale.US, "%" + (width > 0 ? width : "") + "." + decimals + "f m",
+                value);
+        assertEquals(value + " to " + decimals + " decimals", expected,
+                Format.fixed(value, width, decimals, " m"));
+    }
+
+    @Test
+    public void roundsHalfUpLikeStringFormat() {
+        for (double value : EDGE_VALUES)
+            for (int decimals = 0; decimals <= 7; decimals++)
+                assertFixed(value, 0, decimals);
+    }
+
+    @Test
+    public void matchesStringFormatForRandomValues() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double magnitude = Math.pow(10, random.nextInt(20) - 4);
+            double value = (random.nextDouble() - 0.5) * magnitude;
+            // Values with few decimal digits, where the halves are
+            if (i % 2 == 0)
+                value = Math.round(value * 1000) / 1000.0;
+            assertFixed(value, random.nextInt(12), random.nextInt(8));
+        }
+    }
+
+    @Test
+    public void padsLikeStringFormat() {
+        assertEquals(String.format(Locale.US, "%3d", 7), Format.integer(7, 3, ""));
+        assertEquals(String.format(Locale.US, "%3d s", -42), Format.integer(-42, 3, " s"));
+        assertEquals(String.format(Locale.US, "%1d", 12345), Format.integer(12345, 1, ""));
+        assertEquals(String.format(Locale.US, "Lat %10.6f", -1.5),
+                     Format.fixed("Lat ", -1.5, 10, 6, ""));
+        assertEquals(String.format(Locale.US, "%08.2f", -3.14159),
+                     Format.appendFixed(new StringBuilder(), -3.14159, 8, 2, true).toString());
+    }
+
+    @Test
+    public void formatsTimestampsLikeTimestampToString() {
+        long[] edges = {
+                0, -1, 1, 999, 1000, 1001, 1010, 1100, 951782400000L, 951868799999L,
+                4107542399999L, -2208988800000L, 1582934400000L,
+                // The first day of the Gregorian calendar, Timestamp uses the Julian one before
+                -12219292800000L };
+        for (long millis : edges)
+            assertEquals(new Timestamp(millis).toString(), Format.timestamp(millis));
+
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            // Between 1900 and 2100
+            long millis = -2208988800000L + (long) (random.nextDouble() * 6311433600000L);
+            assertEquals(new Timestamp(millis).toString(), Format.timestamp(millis));
+        }
+    }
+}
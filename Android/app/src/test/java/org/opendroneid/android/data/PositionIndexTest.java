@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class PositionIndexTest {
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private static void setLocation(AircraftObject aircraft, double latitude, double longitude) {
+        LocationData location = new LocationData();
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        aircraft.location.setValue(location);
+    }
+
+    private static void setOperator(AircraftObject aircraft, double latitude, double longitude) {
+        SystemData system = new SystemData();
+        system.setOperatorLatitude(latitude);
+        system.setOperatorLongitude(longitude);
+        aircraft.system.setValue(system);
+    }
+
+    private static Set<AircraftObject> find(PositionIndex index, double south, double north,
+                                            double west, double east, boolean allLongitudes) {
+        List<AircraftObject> found = new ArrayList<>();
+        index.find(south, north, west, east, allLongitudes, found);
+        return new HashSet<>(found);
+    }
+
+    @Test
+    public void findsTheAircraftOrElseTheOperatorInTheBounds() {
+        PositionIndex index = new PositionIndex();
+        AircraftObject a = new AircraftObject(1), b = new AircraftObject(2), c = new AircraftObject(3);
+        setLocation(a, 52.52, 13.405);
+        setOperator(b, 52.51, 13.39);
+        setLocation(c, 0, 0);
+        index.update(a);
+        index.update(b);
+        index.update(c);
+        assertEquals(2, index.size());
+
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), find(index, 52.5, 52.6, 13.3, 13.5, false));
+        assertEquals(Collections.singleton(a), find(index, 52.515, 52.6, 13.3, 13.5, false));
+        assertEquals(Collections.emptySet(), find(index, 52.5, 52.6, 14, 15, false));
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), find(index, 52.5, 52.6, 0, 0, true));
+
+        // The location takes over from the operator, and moves the aircraft to another cell
+        setLocation(b, -33.86, 151.21);
+        index.update(b);
+        assertEquals(Collections.singleton(a), find(index, 52.5, 52.6, 13.3, 13.5, false));
+        // Across the antimeridian
+        assertEquals(Collections.singleton(b), find(index, -34, -33, 151, -179, false));
+
+        index.remove(a);
+        assertEquals(Collections.emptySet(), find(index, 52.5, 52.6, 13.3, 13.5, false));
+        index.clear();
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void matchesAScanOfAllAircraft() {
+        Random random = new Random(8);
+        PositionIndex index = new PositionIndex();
+        List<AircraftObject> aircraft = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            AircraftObject a = new AircraftObject(i);
+            aircraft.add(a);
+            // Mostly around one city, so cells hold many aircraft
+            if (i % 4 == 0)
+                setLocation(a, random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180);
+            else
+                setLocation(a, 48 + random.nextDouble(), 11 + random.nextDouble());
+            index.update(a);
+        }
+        for (int i = 0; i < 500; i++) {
+            AircraftObject a = aircraft.get(random.nextInt(aircraft.size()));
+            setLocation(a, a.getLocation().getLatitude() + random.nextDouble() * 0.1,
+                        a.getLocation().getLongitude());
+            index.update(a);
+
+            double size = Math.pow(10, random.nextInt(4) - 2);
+            double south = 48 + random.nextDouble() - size / 2;
+            double west = 11 + random.nextDouble() - size / 2;
+            Set<AircraftObject> expected = new HashSet<>();
+            for (AircraftObject b : aircraft) {
+                LocationData loc = b.getLocation();
+                if (loc.getLatitude() >= south && loc.getLatitude() <= south + size &&
+                        loc.getLongitude() >= west && loc.getLongitude() <= west + size)
+                    expected.add(b);
+            }
+            assertEquals(expected, find(index, south, south + size, west, west + size, false));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private static Identification id(int idType, byte[] uasId) {
+        Identification id = new Identification();
+        id.setIdType(idType);
+        id.setUasId(uasId);
+        return id;
+    }
+
+    private static AircraftObject aircraft(long macAddress, String serialNumber) {
+        AircraftObject aircraft = new AircraftObject(macAddress);
+        // Padded with zeros as received
+        aircraft.identification1.setValue(id(1, Arrays.copyOf(serialNumber.getBytes(), 20)));
+        return aircraft;
+    }
+
+    private static OperatorIdData operatorId(String text) {
+        OperatorIdData data = new OperatorIdData();
+        data.setOperatorId(Arrays.copyOf(text.getBytes(), 20));
+        return data;
+    }
+
+    @Test
+    public void findsSubstringsOfEveryTextIgnoringCase() {
+        SearchIndex index = new SearchIndex();
+        AircraftObject a = aircraft(1, "1596F3505211YA2A0001");
+        a.operatorid.setValue(operatorId("FIN87astrdge12k8"));
+        AircraftObject b = aircraft(2, "ABC123");
+        index.update(a);
+        index.update(b);
+
+        assertEquals(Collections.singletonList(a), index.search("5211ya"));
+        assertEquals(Collections.singletonList(a), index.search("ASTRD"));
+        assertEquals(Collections.singletonList(b), index.search(" abc "));
+        assertEquals(Collections.emptyList(), index.search("xyz"));
+        assertEquals(Collections.emptyList(), index.search(""));
+        // Shorter than a gram, so every aircraft is checked
+        assertEquals(2, index.search("1").size());
+    }
+
+    @Test
+    public void listsTheTextsStartingWithTheQueryFirst() {
+        SearchIndex index = new SearchIndex();
+        AircraftObject inside = aircraft(1, "XXDRONE");
+        AircraftObject start = aircraft(2, "DRONEXX");
+        index.update(inside);
+        index.update(start);
+
+        assertEquals(Arrays.asList(start, inside), index.search("drone"));
+    }
+
+    @Test
+    public void keepsBothIdsWhenTheSecondIsFormattedFirstHere() {
+        // The session ID is shown in hex. Its text is not cached yet when the index reads it,
+        // which used to clear the shared format buffer holding the first ID
+        SearchIndex index = new SearchIndex();
+        AircraftObject a = aircraft(1, "SERIAL42");
+        a.identification2.setValue(id(4, new byte[] { 0x12, 0x34, (byte) 0xAB }));
+        index.update(a);
+
+        assertEquals(Collections.singletonList(a), index.search("serial42"));
+        assertEquals(Collections.singletonList(a), index.search("0x1234ab"));
+        assertEquals(Collections.emptyList(), index.search("0x1234ab0x"));
+        assertEquals("0x1234AB", a.getIdentification2().getUasIdAsString());
+    }
+
+    @Test
+    public void changesTheVersionOnlyWhenATextChanges() {
+        SearchIndex index = new SearchIndex();
+        AircraftObject a = aircraft(1, "FIRST");
+        index.update(a);
+        int version = index.getVersion();
+
+        // A new message with the same ID
+        a.identification1.setValue(id(1, Arrays.copyOf("FIRST".getBytes(), 20)));
+        index.update(a);
+        assertEquals(version, index.getVersion());
+
+        a.identification1.setValue(id(1, Arrays.copyOf("SECOND".getBytes(), 20)));
+        index.update(a);
+        assertNotEquals(version, index.getVersion());
+        assertTrue(index.search("first").isEmpty());
+        assertEquals(Collections.singletonList(a), index.search("second"));
+
+        version = index.getVersion();
+        index.remove(a);
+        assertNotEquals(version, index.getVersion());
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrailTest {
+    private static final double LATITUDE = 52.52;
+    private static final double LONGITUDE = 13.405;
+    // About 11 m of latitude
+    private static final double STEP = 0.0001;
+
+    private static boolean contains(Trail trail, double latitude, double longitude) {
+        for (int i = 0; i < trail.size(); i++)
+            if (trail.getLatitude(i) == latitude && trail.getLongitude(i) == longitude)
+                return true;
+        return false;
+    }
+
+    @Test
+    public void skipsPointsTooCloseToTheLastOne() {
+        Trail trail = new Trail(100);
+        assertTrue(trail.add(LATITUDE, LONGITUDE));
+        assertFalse(trail.add(LATITUDE + 0.000001, LONGITUDE));
+        assertTrue(trail.add(LATITUDE + STEP, LONGITUDE));
+        assertEquals(2, trail.size());
+    }
+
+    @Test
+    public void reducesAStraightLineToItsEnds() {
+        Trail trail = new Trail(40);
+        for (int i = 0; i <= 40; i++)
+            trail.add(LATITUDE + i * STEP, LONGITUDE);
+
+        // The older part is its two ends, the newest quarter is kept as received
+        assertEquals(2 + 10, trail.size());
+        assertEquals(LATITUDE, trail.getLatitude(0), 0);
+        for (int i = 0; i < 10; i++)
+            assertEquals(LATITUDE + (31 + i) * STEP, trail.getLatitude(2 + i), 0);
+    }
+
+    @Test
+    public void keepsTheCornersAndTheEnds() {
+        Trail trail = new Trail(40);
+        // North for 20 points, then east for 21, so the turn is in the simplified part
+        for (int i = 0; i < 20; i++)
+            trail.add(LATITUDE + i * STEP, LONGITUDE);
+        double cornerLatitude = LATITUDE + 19 * STEP;
+        for (int i = 1; i <= 21; i++)
+            trail.add(cornerLatitude, LONGITUDE + i * STEP);
+
+        assertTrue(trail.size() <= 40);
+        assertTrue(contains(trail, LATITUDE, LONGITUDE));
+        assertTrue(contains(trail, cornerLatitude, LONGITUDE));
+        assertEquals(LONGITUDE + 21 * STEP, trail.getLongitude(trail.size() - 1), 0);
+    }
+
+    @Test
+    public void staysWithinTheCapOfALongZigzag() {
+        Trail trail = new Trail(50);
+        for (int i = 0; i < 5000; i++)
+            trail.add(LATITUDE + i * STEP, LONGITUDE + (i % 2) * STEP);
+
+        assertTrue(trail.size() <= 50);
+        assertEquals(LATITUDE, trail.getLatitude(0), 0);
+        assertEquals(LATITUDE + 4999 * STEP, trail.getLatitude(trail.size() - 1), 0);
+        for (int i = 1; i < trail.size(); i++)
+            assertTrue(trail.getLatitude(i) > trail.getLatitude(i - 1));
+    }
+
+    @Test
+    public void simplifiesWhenTheCapIsLowered() {
+        Trail trail = new Trail(100);
+        for (int i = 0; i < 80; i++)
+            trail.add(LATITUDE + i * STEP, LONGITUDE + (i % 2) * STEP);
+        assertEquals(80, trail.size());
+
+        trail.setMaxVertices(20);
+        assertEquals(20, trail.getMaxVertices());
+        assertTrue(trail.size() <= 20);
+        assertEquals(LATITUDE + 79 * STEP, trail.getLatitude(trail.size() - 1), 0);
+    }
+
+    @Test
+    public void changesTheVersionOnlyWhenThePointsChange() {
+        Trail trail = new Trail(100);
+        int version = trail.getVersion();
+        trail.add(LATITUDE, LONGITUDE);
+        assertTrue(trail.getVersion() != version);
+
+        version = trail.getVersion();
+        assertFalse(trail.add(LATITUDE, LONGITUDE));
+        trail.setMaxVertices(200);
+        assertEquals(version, trail.getVersion());
+
+        // Grows past its initial arrays while keeping the points
+        for (int i = 1; i < 150; i++)
+            trail.add(LATITUDE + i * STEP, LONGITUDE + (i % 2) * STEP);
+        assertEquals(150, trail.size());
+        assertEquals(LATITUDE + 149 * STEP, trail.getLatitude(149), 0);
+
+        version = trail.getVersion();
+        trail.setMaxVertices(50);
+        assertTrue(trail.getVersion() != version);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendroneid.android.bluetooth.Transport;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BinaryLogFormatTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LogEntry entry(long timestamp) {
+        LogEntry entry = new LogEntry();
+        entry.session = 3;
+        entry.timestamp = timestamp;
+        entry.transportType = Transport.BT4;
+        entry.macAddress = "E4:5F:01:2A:3B:4C";
+        entry.endpointKey = 0xE45F012A3B4CL;
+        entry.rssi = -70;
+        entry.msgVersion = 2;
+        entry.offset = 6;
+        entry.data = new byte[31];
+        entry.data[6] = 0x02;
+        return entry;
+    }
+
+    /** Writes a log with the given entries, followed by the given raw bytes */
+    private File write(byte[] tail, LogEntry... entries) throws IOException {
+        File file = folder.newFile("log" + BinaryLogFormat.FILE_EXTENSION);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            BinaryLogFormat.writeHeader(out);
+            for (LogEntry entry : entries)
+                BinaryLogFormat.writeRecord(out, entry);
+            out.write(tail);
+        }
+        return file;
+    }
+
+    @Test
+    public void readsBackTheWrittenRecords() throws IOException {
+        File file = write(new byte[0], entry(1000), entry(2000));
+        try (BinaryLogFormat.Reader reader = new BinaryLogFormat.Reader(file)) {
+            LogEntry first = reader.read();
+            assertNotNull(first);
+            assertEquals(3, first.session);
+            assertEquals(1000, first.timestamp);
+            assertEquals(Transport.BT4, first.transportType);
+            assertEquals("E4:5F:01:2A:3B:4C", first.macAddress);
+            assertEquals(0xE45F012A3B4CL, first.endpointKey);
+            assertEquals(-70, first.rssi);
+            assertEquals(6, first.offset);
+            assertArrayEquals(entry(1000).data, first.data);
+            assertEquals(2000, reader.read().timestamp);
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void treatsARecordCutShortAsTheEnd() throws IOException {
+        // A plausible record length with only part of the record written
+        File file = write(new byte[] { 0, 0, 0, 60, 0, 0, 0, 3, 0, 0 }, entry(1000));
+        try (BinaryLogFormat.Reader reader = new BinaryLogFormat.Reader(file)) {
+            assertNotNull(reader.read());
+            assertNull(reader.read());
+        }
+        assertEquals(file.length() - 10, BinaryLogFormat.completeLength(file));
+    }
+
+    @Test
+    public void rejectsARecordLengthNoRecordCanHave() throws IOException {
+        File file = write(new byte[] { 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0, 1, 2, 3 }, entry(1000));
+        try (BinaryLogFormat.Reader reader = new BinaryLogFormat.Reader(file)) {
+            assertNotNull(reader.read());
+            reader.read();
+            fail("A corrupt record length must be reported");
+        } catch (IOException expected) {
+            // The record is not allocated
+        }
+        assertEquals(file.length() - 7, BinaryLogFormat.completeLength(file));
+    }
+}
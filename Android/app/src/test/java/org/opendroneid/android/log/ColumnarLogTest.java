@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendroneid.android.bluetooth.Transport;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // A message pack with a serial number, a location at 52.52 N, 13.405 E, a self ID, the
+    // operator location and an operator ID, behind a message counter
+    private static final String PACK = "01" + "F21905" +
+            "0212" + "3135393646333530353231315941324130303031" + "000000" +
+            "12205A1402" + "80EA4D1F" + "D070FD07" + "9808AC083408" + "0000" + "E803" + "0000" +
+            "3200" + "43726F7020696E7370656374696F6E" + "0000000000000000" +
+            "4204" + "80EA4D1F" + "D070FD07" + "0100" + "0A" + "0000" + "0000" + "12" + "0000" +
+            "0000" + "0000" + "00" +
+            "5200" + "46494E38376173747264676531326B38" + "00000000" + "000000";
+    // Beyond the integers a double holds exactly
+    private static final long FIRST_TIMESTAMP = (1L << 60) + 1;
+    private static final int ROWS = ColumnarLog.BLOCK_ROWS + 10;
+
+    private static byte[] bytes(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return data;
+    }
+
+    private static LogEntry entry(long timestamp, int rssi) {
+        LogEntry entry = new LogEntry();
+        entry.session = 1;
+        entry.timestamp = timestamp;
+        entry.transportType = Transport.BT4;
+        entry.macAddress = "E4:5F:01:2A:3B:4C";
+        entry.endpointKey = 0xE45F012A3B4CL;
+        entry.rssi = rssi;
+        entry.offset = 1;
+        entry.data = bytes(PACK);
+        return entry;
+    }
+
+    private File exportLog() throws IOException {
+        File log = folder.newFile("log" + BinaryLogFormat.FILE_EXTENSION);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log))) {
+            BinaryLogFormat.writeHeader(out);
+            for (int i = 0; i < ROWS; i++)
+                BinaryLogFormat.writeRecord(out, entry(FIRST_TIMESTAMP + i, -40 - i % 50));
+        }
+        List<File> tables = ColumnarLog.export(log, folder.getRoot());
+        assertEquals(5, tables.size());
+        return log;
+    }
+
+    @Test
+    public void readsBackTheExportedTables() throws IOException {
+        File log = exportLog();
+        File file = ColumnarLog.tableFile(folder.getRoot(), log, ColumnarLog.LOCATION.name);
+        try (ColumnarLog.Reader reader = new ColumnarLog.Reader(file)) {
+            assertEquals("location", reader.getTable());
+            assertEquals(ROWS, reader.getRowCount());
+            assertEquals(2, reader.getBlockCount());
+            assertEquals(ColumnarLog.BLOCK_ROWS, reader.getRows(0));
+            assertEquals(10, reader.getRows(1));
+
+            int timestamp = reader.getColumn("timestamp");
+            long[] timestamps = reader.readLongs(1, timestamp);
+            for (int i = 0; i < timestamps.length; i++)
+                assertEquals(FIRST_TIMESTAMP + ColumnarLog.BLOCK_ROWS + i, timestamps[i]);
+
+            double[] latitudes = reader.readDoubles(0, reader.getColumn("latitude"));
+            double[] longitudes = reader.readDoubles(0, reader.getColumn("longitude"));
+            assertEquals(52.52, latitudes[0], 1e-7);
+            assertEquals(13.405, longitudes[ColumnarLog.BLOCK_ROWS - 1], 1e-7);
+
+            int uasId = reader.getColumn("uasId");
+            assertEquals(ColumnarLog.ColumnType.STRING, reader.getType(uasId));
+            String[] dictionary = reader.getDictionary(uasId);
+            assertEquals("1596F3505211YA2A0001", dictionary[(int) reader.readLongs(0, uasId)[0]]);
+            assertEquals(-1, reader.getColumn("missing"));
+        }
+
+        file = ColumnarLog.tableFile(folder.getRoot(), log, ColumnarLog.OPERATOR_ID.name);
+        try (ColumnarLog.Reader reader = new ColumnarLog.Reader(file)) {
+            int operatorId = reader.getColumn("operatorId");
+            assertEquals("FIN87astrdge12k8", reader.getDictionary(operatorId)[0]);
+        }
+    }
+
+    @Test
+    public void keepsTheExactMinAndMaxOfTheLongColumns() throws IOException {
+        File log = exportLog();
+        File file = ColumnarLog.tableFile(folder.getRoot(), log, ColumnarLog.BASIC_ID.name);
+        try (ColumnarLog.Reader reader = new ColumnarLog.Reader(file)) {
+            int timestamp = reader.getColumn("timestamp");
+            assertEquals(FIRST_TIMESTAMP, reader.getMinLong(0, timestamp));
+            assertEquals(FIRST_TIMESTAMP + ColumnarLog.BLOCK_ROWS - 1, reader.getMaxLong(0, timestamp));
+            assertEquals(FIRST_TIMESTAMP + ColumnarLog.BLOCK_ROWS, reader.getMinLong(1, timestamp));
+            // One past the first block, which a double rounds to a value inside it
+            long next = FIRST_TIMESTAMP + ColumnarLog.BLOCK_ROWS;
+            assertFalse(reader.mayContain(0, timestamp, next, next));
+            assertTrue(reader.mayContain(1, timestamp, next, next));
+
+            int rssi = reader.getColumn("rssi");
+            assertEquals(-89, reader.getMinLong(0, rssi));
+            assertEquals(-40, reader.getMaxLong(0, rssi));
+            assertEquals(-89.0, reader.getMin(0, rssi), 0);
+        }
+
+        file = ColumnarLog.tableFile(folder.getRoot(), log, ColumnarLog.LOCATION.name);
+        try (ColumnarLog.Reader reader = new ColumnarLog.Reader(file)) {
+            int latitude = reader.getColumn("latitude");
+            assertEquals(52.52, reader.getMin(1, latitude), 1e-7);
+            assertEquals(reader.getMin(1, latitude), reader.getMax(1, latitude), 0);
+            assertFalse(reader.mayContain(1, latitude, 53.0, 54.0));
+        }
+    }
+}
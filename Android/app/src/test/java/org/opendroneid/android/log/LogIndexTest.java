@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogIndexTest {
+    private static final long SECOND = 1000000000L;
+    private static final long START = 1000 * SECOND;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LogEntry entry(long timestamp, String macAddress) {
+        LogEntry entry = new LogEntry();
+        entry.timestamp = timestamp;
+        entry.macAddress = macAddress;
+        entry.endpointKey = macAddress.hashCode();
+        return entry;
+    }
+
+    /** Adds the entries as records of 100 bytes each */
+    private static void add(LogIndex index, LogEntry... entries) {
+        for (LogEntry entry : entries)
+            index.add(entry, 100L * index.getRecordCount());
+    }
+
+    private LogIndex writeAndRead(LogIndex index) throws IOException {
+        File log = folder.newFile("log.csv");
+        index.write(LogIndex.indexFile(log), 100L * index.getRecordCount());
+        LogIndex read = LogIndex.read(log);
+        assertNotNull(read);
+        return read;
+    }
+
+    private static void assertRange(long start, long end, LogIndex.Range range) {
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+
+    @Test
+    public void readsBackTheBucketsAndEndpoints() throws IOException {
+        LogIndex index = new LogIndex(10000);
+        add(index, entry(START, "A"), entry(START + 5 * SECOND, "B"),
+            entry(START + 12 * SECOND, "A"), entry(START + 25 * SECOND, "B"));
+
+        LogIndex read = writeAndRead(index);
+        assertEquals(START, read.getFirstTimestamp());
+        assertEquals(4, read.getRecordCount());
+        assertEquals(2, read.getKeys().size());
+        assertEquals(Collections.singleton("A"), read.endpointsFor("A"));
+
+        List<LogIndex.Range> all = read.find(Long.MIN_VALUE, Long.MAX_VALUE, null);
+        assertEquals(1, all.size());
+        assertRange(0, 400, all.get(0));
+
+        List<LogIndex.Range> b = read.find(Long.MIN_VALUE, Long.MAX_VALUE, "B");
+        assertEquals(2, b.size());
+        assertRange(0, 200, b.get(0));
+        assertRange(300, 400, b.get(1));
+
+        List<LogIndex.Range> window = read.find(START + 11 * SECOND, START + 19 * SECOND, null);
+        assertEquals(1, window.size());
+        assertRange(200, 300, window.get(0));
+    }
+
+    @Test
+    public void findsRecordsArrivingOutOfOrder() throws IOException {
+        LogIndex index = new LogIndex(10000);
+        // The last record belongs to the time of the first bucket, but is in the second
+        add(index, entry(START, "A"), entry(START + 15 * SECOND, "A"), entry(START + 3 * SECOND, "B"));
+
+        for (LogIndex source : new LogIndex[] { index, writeAndRead(index) }) {
+            List<LogIndex.Range> ranges = source.find(START + 2 * SECOND, START + 4 * SECOND, "B");
+            assertEquals(1, ranges.size());
+            assertRange(100, 300, ranges.get(0));
+        }
+    }
+
+    @Test
+    public void rejectsCountsTheIndexCannotHold() throws IOException {
+        File log = folder.newFile("log.csv");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(LogIndex.indexFile(log)))) {
+            out.write(LogIndex.MAGIC);
+            out.writeShort(LogIndex.VERSION);
+            out.writeLong(START);
+            out.writeLong(10 * SECOND);
+            out.writeLong(400);
+            // A bucket count of 2^35, as a varint
+            out.write(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 });
+        }
+        try {
+            LogIndex.read(log);
+            fail("A corrupt bucket count must be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Corrupt"));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.junit.Test;
+import org.opendroneid.android.Constants;
+import org.opendroneid.android.bluetooth.OpenDroneIdParser;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the CSV columns of the messages against the output of the string concatenation and
+ * sorting they were built with before the encoder and the message slots.
+ */
+public class LogMessageEntryTest {
+    private static final int OFFSET = 2;
+
+    // A message pack holding one message of each type: a serial number, a location at 52.52 N,
+    // 13.405 E, the first authentication page, a self ID, the operator location and an operator ID
+    private static final String PACK = "0D01" + "F21906" +
+            "0212" + "3135393646333530353231315941324130303031" + "000000" +
+            "12205A1402" + "80EA4D1F" + "D070FD07" + "9808AC083408" + "0000" + "E803" + "0000" +
+            "2210" + "00" + "11" + "A0B0C0D0" + "000102030405060708090A0B0C0D0E0F10" +
+            "3200" + "43726F7020696E7370656374696F6E" + "0000000000000000" +
+            "4204" + "80EA4D1F" + "D070FD07" + "0100" + "0A" + "0000" + "0000" + "12" + "0000" +
+            "0000" + "0000" + "00" +
+            "5200" + "46494E38376173747264676531326B38" + "00000000" + "000000";
+
+    // SHA-256 of the lines of RANDOM_PACKS packs from randomPack(new Random(2019)), each line
+    // followed by a line feed, as written by the previous implementation
+    private static final int RANDOM_PACKS = 5000;
+    private static final String RANDOM_PACKS_SHA256 =
+            "19b121cb3fa9c67ab629800a1876383f80cce8bb8aebaf9cc2064eca0e86ed8f";
+
+    private static byte[] bytes(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return data;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            sb.append(text);
+        return sb.toString();
+    }
+
+    private static String export(byte[] frame, long timestamp) {
+        LogMessageEntry entry = new LogMessageEntry();
+        OpenDroneIdParser.parseForLog(frame, OFFSET, timestamp, entry, null);
+        if (entry.isEmpty())
+            return "";
+        CsvEncoder csv = new CsvEncoder();
+        entry.appendCsv(csv);
+        return csv.toString();
+    }
+
+    /**
+     * A pack of one to nine messages of random types and contents. Authentication pages are
+     * often repeated, and half of the packs have printable text only.
+     */
+    private static byte[] randomPack(Random random) {
+        int count = 1 + random.nextInt(Constants.MAX_MESSAGES_IN_PACK);
+        int size = Constants.MAX_MESSAGE_SIZE;
+        byte[] frame = new byte[OFFSET + 3 + count * size];
+        frame[0] = 0x0D;
+        frame[1] = (byte) random.nextInt(256);
+        frame[2] = (byte) 0xF2;
+        frame[3] = (byte) size;
+        frame[4] = (byte) count;
+        boolean printable = random.nextBoolean();
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[size];
+            random.nextBytes(message);
+            if (printable)
+                for (int j = 2; j < size; j++)
+                    message[j] = (byte) (32 + (message[j] & 0x7F) % 95);
+            // Basic ID, Location, Authentication, Self ID, System or Operator ID
+            int type = random.nextInt(6);
+            message[0] = (byte) (type << 4 | 2);
+            if (type == 2)
+                message[1] = (byte) (random.nextInt(16) << 4 | random.nextInt(5));
+            System.arraycopy(message, 0, frame, OFFSET + 3 + i * size, size);
+        }
+        return frame;
+    }
+
+    @Test
+    public void exportsTheColumnsOfEveryMessageType() {
+        String expected = "1,2,1596F3505211YA2A0001,,,," +
+                "2,0,0,0,90,20,2,525200000,134050000,2200,2220,2100,0,0,0,0,1000,0,0.0,0," +
+                "Crop inspection\0\0\0\0\0\0\0\0," +
+                "0,1,525200000,134050000,1,10,0,0,1,2,0," +
+                "0,FIN87astrdge12k8\0\0\0\0," +
+                "1,0,0,17,3502289056,00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F 10 " +
+                repeat("00 ", Constants.MAX_AUTH_DATA - Constants.MAX_AUTH_PAGE_ZERO_SIZE) + "," +
+                repeat(",,,,,,", Constants.MAX_AUTH_DATA_PAGES - 1);
+        assertEquals(expected, export(bytes(PACK), 0));
+    }
+
+    @Test
+    public void matchesThePreviousExportForRandomPacks() throws NoSuchAlgorithmException {
+        Random random = new Random(2019);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < RANDOM_PACKS; i++)
+            digest.update((export(randomPack(random), i * 1000L) + "\n").getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        assertEquals(RANDOM_PACKS_SHA256, hex.toString());
+    }
+}
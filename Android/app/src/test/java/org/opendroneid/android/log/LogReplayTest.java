@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+package org.opendroneid.android.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendroneid.android.bluetooth.RawFrame;
+import org.opendroneid.android.bluetooth.Transport;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogReplayTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final long SECOND_NANOS = 1000000000L;
+
+    /** Advances its time by the sleeps only */
+    private static class FakePacer implements LogReplay.Pacer {
+        long now = 5 * SECOND_NANOS;
+        final List<Long> sleeps = new ArrayList<>();
+
+        @Override public long nanoTime() { return now; }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            sleeps.add(nanos);
+            now += nanos;
+        }
+    }
+
+    private static LogEntry entry(long timestamp) {
+        LogEntry entry = new LogEntry();
+        entry.session = 1;
+        entry.timestamp = timestamp;
+        entry.transportType = Transport.BT4;
+        entry.macAddress = "E4:5F:01:2A:3B:4C";
+        entry.endpointKey = 0xE45F012A3B4CL;
+        entry.rssi = -70;
+        entry.offset = 6;
+        entry.data = new byte[31];
+        entry.data[6] = 0x02;
+        return entry;
+    }
+
+    /** Writes a binary log with frames at the given offsets in seconds from the first */
+    private File write(double... seconds) throws IOException {
+        File file = folder.newFile("log" + BinaryLogFormat.FILE_EXTENSION);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            BinaryLogFormat.writeHeader(out);
+            for (double s : seconds)
+                BinaryLogFormat.writeRecord(out, entry(100 * SECOND_NANOS + (long) (s * SECOND_NANOS)));
+        }
+        return file;
+    }
+
+    private static LogReplay replay(File file, List<RawFrame> frames, FakePacer pacer, double speed) {
+        LogReplay replay = new LogReplay(file, frames::add, Runnable::run);
+        replay.setPacer(pacer);
+        replay.setSpeed(speed);
+        return replay;
+    }
+
+    @Test
+    public void pacesTheFramesByTheRecordingScaledByTheSpeed() throws Exception {
+        File file = write(0, 1, 1.5, 4);
+        List<RawFrame> frames = new ArrayList<>();
+        FakePacer pacer = new FakePacer();
+        LogReplay.Stats stats = replay(file, frames, pacer, 2).runBlocking();
+
+        assertEquals(4, stats.frames);
+        assertEquals(4000, stats.recordingMillis);
+        assertEquals(2000, stats.elapsedMillis);
+        List<Long> expected = new ArrayList<>();
+        expected.add(SECOND_NANOS / 2);
+        expected.add(SECOND_NANOS / 4);
+        expected.add(SECOND_NANOS * 5 / 4);
+        assertEquals(expected, pacer.sleeps);
+
+        // The frames carry the time of the recording, whatever the speed
+        assertEquals(4, frames.size());
+        assertEquals(1000, frames.get(1).replayTimeMillis - frames.get(0).replayTimeMillis);
+        assertEquals(4000, frames.get(3).replayTimeMillis - frames.get(0).replayTimeMillis);
+    }
+
+    @Test
+    public void neverWaitsAtSpeedZero() throws Exception {
+        File file = write(0, 10, 20);
+        List<RawFrame> frames = new ArrayList<>();
+        FakePacer pacer = new FakePacer();
+        LogReplay.Stats stats = replay(file, frames, pacer, 0).runBlocking();
+
+        assertEquals(3, stats.frames);
+        assertEquals(20000, stats.recordingMillis);
+        assertEquals(0, stats.elapsedMillis);
+        assertEquals(0, pacer.sleeps.size());
+    }
+}